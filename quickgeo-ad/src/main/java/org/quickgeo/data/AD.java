@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class AD implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/AD.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "AD";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return new PostalDb.GeoRect(42.6, 1.4833, 42.4667, 1.6667);
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "194-f3e6466";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class AR implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/AR.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "AR";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return new PostalDb.GeoRect(-21.9, -72.7833, -53.8667, -53.65);
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "172119-4d60206c";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
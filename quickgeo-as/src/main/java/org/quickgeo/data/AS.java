@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class AS implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/AS.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "AS";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return new PostalDb.GeoRect(-14.3333, -170.0, -14.3333, -170.0);
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "68-5dcd97dc";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
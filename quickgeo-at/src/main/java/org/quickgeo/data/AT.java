@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class AT implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/AT.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "AT";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return new PostalDb.GeoRect(48.9833, 9.5786, 46.4686, 17.1);
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "54160-1c12ee40";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
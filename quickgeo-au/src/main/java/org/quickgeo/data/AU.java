@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class AU implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/AU.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "AU";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return new PostalDb.GeoRect(-10.1201, 96.8628, -43.3558, 159.0768);
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "102360-9730a48a";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
@@ -0,0 +1,142 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import java.util.Random;
+import java.util.ServiceLoader;
+import org.quickgeo.Place;
+import org.quickgeo.PostalDb;
+import org.quickgeo.PostalDbFactory;
+import org.quickgeo.PostalSource;
+
+/**
+ * The datasets every suite is run against, picked by a {@code dataset}
+ * parameter:
+ *
+ * <ul>
+ *   <li>{@value #US}, the United States module alone, which is the largest
+ *   and densest country</li>
+ *   <li>{@value #ALL}, every data module on the classpath</li>
+ * </ul>
+ *
+ * Queries are drawn from the dataset with a fixed seed, so every run, and
+ * every fork of a run, asks exactly the same questions.
+ */
+public final class Datasets {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  public static final String US = "US";
+  
+  public static final String ALL = "ALL";
+  
+  /**
+   * The number of queries each suite cycles through, a power of two so the
+   * next one is picked with a mask.
+   */
+  public static final int QUERIES = 1 << 10;
+  
+  static final long SEED = 0x5EED;
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  /**
+   * Get the postal sources of a dataset, in classpath order.
+   * @param dataset {@value #US} or {@value #ALL}
+   * @return The sources.
+   */
+  public static List<PostalSource> sources(String dataset) {
+    List<PostalSource> sources = Lists.newArrayList();
+    for (PostalSource source : ServiceLoader.load(PostalSource.class)) {
+      if (ALL.equals(dataset) || dataset.equals(source.getCountryCode())) {
+        sources.add(source);
+      }
+    }
+    if (sources.isEmpty()) {
+      throw new IllegalStateException("No postal sources on the classpath for dataset " + dataset);
+    }
+    return sources;
+  }
+  
+  /**
+   * Load a dataset, with the index mode and other settings taken from the
+   * usual system properties, which can be passed to the benchmark forks
+   * with {@code -jvmArgs}.
+   * @param dataset {@value #US} or {@value #ALL}
+   * @return The loaded database.
+   */
+  public static PostalDb load(String dataset) {
+    return PostalDbFactory.fromSources(sources(dataset));
+  }
+  
+  /**
+   * Pick places of a database at random, so queries land where the places
+   * are.  Every place is equally likely, so dense countries and cities get
+   * most of the queries, as they do in practice.
+   * @param db The database to sample
+   * @return {@link #QUERIES} places.
+   */
+  public static Place[] samplePlaces(PostalDb db) {
+    // The whole globe
+    List<Place> all = db.withinRect(new PostalDb.GeoRect(90, -180, -90, 180));
+    Random random = new Random(SEED);
+    Place[] sample = new Place[QUERIES];
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = all.get(random.nextInt(all.size()));
+    }
+    return sample;
+  }
+  
+  /**
+   * Pick points uniformly over the area the places of a database span, so
+   * most queries land where the places are sparse or missing altogether.
+   * @param db The database to sample
+   * @return {@link #QUERIES} points, each a latitude and longitude pair.
+   */
+  public static double[][] samplePoints(PostalDb db) {
+    double north = -90;
+    double south = 90;
+    double west = 180;
+    double east = -180;
+    for (Place p : samplePlaces(db)) {
+      north = Math.max(north, p.getLatitude());
+      south = Math.min(south, p.getLatitude());
+      west = Math.min(west, p.getLongitude());
+      east = Math.max(east, p.getLongitude());
+    }
+    
+    Random random = new Random(SEED);
+    double[][] points = new double[QUERIES][];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = new double[] {south + random.nextDouble() * (north - south),
+        west + random.nextDouble() * (east - west)};
+    }
+    return points;
+  }
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  private Datasets() {
+  }
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
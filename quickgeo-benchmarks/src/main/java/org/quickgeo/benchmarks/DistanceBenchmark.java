@@ -0,0 +1,98 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import com.darkcorner.minotaur.util.GeoMath;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quickgeo.Place;
+import org.quickgeo.PostalDb;
+
+/**
+ * The distance functions, between pairs of places picked from the dataset,
+ * so the mix of short and long distances follows where the places are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DistanceBenchmark {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Param({Datasets.US, Datasets.ALL})
+  public String dataset;
+  
+  private PostalDb db;
+  
+  private Place[] places;
+  
+  private int next;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Setup
+  public void setUp() {
+    db = Datasets.load(dataset);
+    places = Datasets.samplePlaces(db);
+  }
+  
+  @Benchmark
+  public double greatCircleDistance() {
+    int i = next++;
+    Place p1 = places[i & (Datasets.QUERIES - 1)];
+    Place p2 = places[(i + 1) & (Datasets.QUERIES - 1)];
+    return GeoMath.greatCircleDistance(p1.getLatitude(), p1.getLongitude(), p2.getLatitude(), p2.getLongitude());
+  }
+  
+  @Benchmark
+  public double distanceInMiles() {
+    int i = next++;
+    return db.distanceInMiles(places[i & (Datasets.QUERIES - 1)], places[(i + 1) & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public double distanceInKilometers() {
+    int i = next++;
+    return db.distanceInKilometers(places[i & (Datasets.QUERIES - 1)], places[(i + 1) & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public PostalDb.GeoRect boundingBoxInMiles() {
+    Place p = places[next++ & (Datasets.QUERIES - 1)];
+    return db.boundingBoxInMiles(p.getLatitude(), p.getLongitude(), 50);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
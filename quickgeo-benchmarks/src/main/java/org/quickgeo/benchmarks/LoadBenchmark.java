@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quickgeo.PostalDb;
+import org.quickgeo.PostalDbFactory;
+import org.quickgeo.PostalSource;
+
+/**
+ * Building a PostalDb from its sources, from decoding the binary data to
+ * the last index.  Every measurement is a cold load into a fresh instance,
+ * so each fork runs a few loads only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(3)
+public class LoadBenchmark {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Param({Datasets.US, Datasets.ALL})
+  public String dataset;
+  
+  @Param({"GRID", "CELL"})
+  public String indexMode;
+  
+  private List<PostalSource> sources;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Setup
+  public void setUp() {
+    System.setProperty(PostalDbFactory.INDEX_MODE_PROPERTY, indexMode);
+    sources = Datasets.sources(dataset);
+  }
+  
+  @Benchmark
+  public PostalDb load() {
+    return PostalDbFactory.fromSources(sources);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
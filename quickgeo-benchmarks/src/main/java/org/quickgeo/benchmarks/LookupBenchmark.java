@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quickgeo.Place;
+import org.quickgeo.PostalDb;
+
+/**
+ * Postal code and place name lookups, each for a place picked from the
+ * dataset, both across every country and narrowed to the place's own.
+ * Postal codes are passed as they are, which is how they are usually
+ * looked up, while names are quoted since some hold regex characters.
+ * Name regexes are narrowed down by a trigram index, except for the
+ * unindexed ones, which carry an embedded flag the index can't analyse and
+ * so show the cost of scanning every name.  Suggestions are for the first
+ * one to four letters of a name, as typed into a search box.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LookupBenchmark {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Param({Datasets.US, Datasets.ALL})
+  public String dataset;
+  
+  private PostalDb db;
+  
+  private Place[] places;
+  
+  private String[] names;
+  
+  private String[] prefixes;
+  
+  private String[] infixes;
+  
+  private String[] typed;
+  
+  private String[] codePrefixes;
+  
+  private int next;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Setup
+  public void setUp() {
+    db = Datasets.load(dataset);
+    places = Datasets.samplePlaces(db);
+    names = new String[places.length];
+    prefixes = new String[places.length];
+    infixes = new String[places.length];
+    typed = new String[places.length];
+    codePrefixes = new String[places.length];
+    for (int i = 0; i < places.length; i++) {
+      String name = places[i].getPlaceName();
+      names[i] = Pattern.quote(name);
+      prefixes[i] = Pattern.quote(name.substring(0, Math.min(3, name.length()))) + ".*";
+      int middle = Math.max(0, name.length() / 2 - 2);
+      infixes[i] = ".*" + Pattern.quote(name.substring(middle, Math.min(name.length(), middle + 4))) + ".*";
+      // What has been typed into a search box so far, one to four letters
+      typed[i] = name.substring(0, Math.min(name.length(), 1 + (i & 3)));
+      String code = places[i].getPostalCode();
+      codePrefixes[i] = code.substring(0, Math.min(3, code.length()));
+    }
+  }
+  
+  @Benchmark
+  public List<Place> byPostalCode() {
+    return db.byPostalCode(places[next++ & (Datasets.QUERIES - 1)].getPostalCode());
+  }
+  
+  @Benchmark
+  public List<Place> byPostalCodeInCountry() {
+    Place p = places[next++ & (Datasets.QUERIES - 1)];
+    return db.byPostalCode(p.getCountryCode(), p.getPostalCode());
+  }
+  
+  @Benchmark
+  public List<Place> byExactPostalCode() {
+    Place p = places[next++ & (Datasets.QUERIES - 1)];
+    return db.byExactPostalCode(p.getCountryCode(), p.getPostalCode());
+  }
+  
+  @Benchmark
+  public List<Place> byPostalCodePrefix() {
+    int i = next++ & (Datasets.QUERIES - 1);
+    return db.byPostalCodePrefix(places[i].getCountryCode(), codePrefixes[i]);
+  }
+  
+  @Benchmark
+  public List<Place> byPostalCodePrefixRegex() {
+    int i = next++ & (Datasets.QUERIES - 1);
+    return db.byPostalCode(places[i].getCountryCode(), codePrefixes[i] + ".*");
+  }
+  
+  @Benchmark
+  public List<Place> byName() {
+    return db.byName(names[next++ & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public List<Place> byNameInCountry() {
+    int i = next++ & (Datasets.QUERIES - 1);
+    return db.byName(places[i].getCountryCode(), names[i]);
+  }
+  
+  @Benchmark
+  public List<Place> byNamePrefix() {
+    return db.byName(prefixes[next++ & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public List<Place> byNameInfix() {
+    return db.byName(infixes[next++ & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public List<Place> byNameUnindexed() {
+    return db.byName("(?i)" + names[next++ & (Datasets.QUERIES - 1)]);
+  }
+  
+  @Benchmark
+  public List<PostalDb.Suggestion> suggest() {
+    return db.suggest(typed[next++ & (Datasets.QUERIES - 1)], 10);
+  }
+  
+  @Benchmark
+  public List<PostalDb.Suggestion> suggestInCountry() {
+    int i = next++ & (Datasets.QUERIES - 1);
+    return db.suggest(places[i].getCountryCode(), typed[i], 10);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quickgeo.Place;
+import org.quickgeo.PlaceFactory;
+
+/**
+ * Parsing a single GeoNames row, which is what loading the text form of a
+ * source costs per place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PlaceFactoryBenchmark {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  private static final Joiner TAB = Joiner.on('\t');
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Param({Datasets.US, Datasets.ALL})
+  public String dataset;
+  
+  private String[] lines;
+  
+  private int next;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Setup
+  public void setUp() {
+    // The module jars only ship the binary form, so the rows are formatted
+    // from loaded places just as GeoNames lists them
+    Place[] sample = Datasets.samplePlaces(Datasets.load(dataset));
+    lines = new String[sample.length];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = row(sample[i]);
+    }
+  }
+  
+  @Benchmark
+  public Place fromLine() {
+    return PlaceFactory.fromLine(lines[next++ & (Datasets.QUERIES - 1)]);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  private static String row(Place p) {
+    return TAB.join(Strings.nullToEmpty(p.getCountryCode()), Strings.nullToEmpty(p.getPostalCode()),
+            Strings.nullToEmpty(p.getPlaceName()), Strings.nullToEmpty(p.getAdminName1()),
+            Strings.nullToEmpty(p.getAdminCode1()), Strings.nullToEmpty(p.getAdminName2()),
+            Strings.nullToEmpty(p.getAdminCode2()), Strings.nullToEmpty(p.getAdminName3()),
+            Strings.nullToEmpty(p.getAdminCode3()), p.getLatitude(), p.getLongitude(),
+            p.getAccuracy() == null ? "" : p.getAccuracy());
+  }
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
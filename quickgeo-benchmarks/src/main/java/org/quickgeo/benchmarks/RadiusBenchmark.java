@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quickgeo.Place;
+import org.quickgeo.PostalDb;
+import org.quickgeo.PostalDbFactory;
+
+/**
+ * Radius searches, at radii from a neighbourhood to a large region, and at
+ * two densities: {@code places} centres each search on a place, which is
+ * where real searches land and where the places are densest, while
+ * {@code uniform} spreads them evenly over the area of the dataset, most of
+ * which is sparse or empty.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RadiusBenchmark {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Param({Datasets.US, Datasets.ALL})
+  public String dataset;
+  
+  @Param({"GRID", "CELL"})
+  public String indexMode;
+  
+  @Param({"1", "10", "50", "250"})
+  public int radius;
+  
+  @Param({"places", "uniform"})
+  public String origins;
+  
+  private PostalDb db;
+  
+  private double[][] points;
+  
+  private int next;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  @Setup
+  public void setUp() {
+    System.setProperty(PostalDbFactory.INDEX_MODE_PROPERTY, indexMode);
+    db = Datasets.load(dataset);
+    
+    if ("uniform".equals(origins)) {
+      points = Datasets.samplePoints(db);
+    } else {
+      Place[] places = Datasets.samplePlaces(db);
+      points = new double[places.length][];
+      for (int i = 0; i < places.length; i++) {
+        points[i] = new double[] {places[i].getLatitude(), places[i].getLongitude()};
+      }
+    }
+  }
+  
+  @Benchmark
+  public List<Place> withinMilesOf() {
+    double[] point = points[next++ & (Datasets.QUERIES - 1)];
+    return db.withinMilesOf(point[0], point[1], radius);
+  }
+  
+  @Benchmark
+  public List<Place> withinKilometersOf() {
+    double[] point = points[next++ & (Datasets.QUERIES - 1)];
+    return db.withinKilometersOf(point[0], point[1], radius);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  //---------------------------- Property Methods -----------------------------     
+
+}
@@ -0,0 +1,467 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A spatial index that maps every {@link Place} to a 64-bit hierarchical cell
+ * id, in the style of Google's S2 geometry library, and keeps the ids in a
+ * single sorted {@code long[]}.
+ *
+ * The sphere is projected onto the six faces of a cube.  Each face is
+ * recursively split into four children down to {@link #MAX_LEVEL}, and the
+ * cells on a face are numbered along a Hilbert curve.  An id is laid out as
+ * <pre>
+ * 3 bits face | 60 bits Hilbert position | 1 sentinel bit
+ * </pre>
+ * so the ids of every leaf inside a cell form one contiguous range.  A
+ * radius query covers its spherical cap with a handful of cells and turns
+ * each one into a binary searched range scan.  Because the covering is
+ * worked out on the unit sphere, it is correct at the poles and across the
+ * antimeridian.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class CellIndex {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  static final int MAX_LEVEL = 30;
+
+  private static final int POS_BITS = 2 * MAX_LEVEL + 1;
+
+  private static final long MAX_SIZE = 1L << MAX_LEVEL;
+
+  // Slack, in radians, to keep coverings conservative under rounding error
+  private static final double EPSILON = 1e-7d;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Compute the leaf cell id for a set of coordinates.
+   * @param latitude The latitude, in degrees
+   * @param longitude The longitude, in degrees
+   * @return The id of the leaf cell containing the coordinates.
+   */
+  static long cellId(double latitude, double longitude) {
+    double[] p = toPoint(latitude, longitude);
+    int face = face(p);
+    double[] uv = toUV(face, p);
+    long i = toIJ(uvToST(uv[0]));
+    long j = toIJ(uvToST(uv[1]));
+    return ((long) face << POS_BITS) | (hilbert(i, j, MAX_LEVEL) << 1) | 1L;
+  }
+
+  /**
+   * Reorder places along the Hilbert curve of their leaf cells, so that
+   * places which are close together on the sphere are also close together
+   * in the returned array.  Places sharing a leaf cell keep their original
+   * relative order.
+   * @param places The places to reorder
+   * @return A new array holding the same places in curve order.
+   */
+  static Place[] hilbertOrder(Place[] places) {
+    long[] keys = new long[places.length];
+    int[] ids = new int[places.length];
+    for (int i = 0; i < places.length; i++) {
+      keys[i] = cellId(places[i].getLatitude(), places[i].getLongitude());
+      ids[i] = i;
+    }
+    sort(keys, ids, 0, keys.length - 1);
+
+    // The sort is not stable, so restore the source order within each run
+    // of equal keys to keep the result deterministic
+    for (int start = 0, end = 0; start < keys.length; start = end) {
+      while (end < keys.length && keys[end] == keys[start]) {
+        end++;
+      }
+      Arrays.sort(ids, start, end);
+    }
+
+    Place[] ordered = new Place[places.length];
+    for (int i = 0; i < places.length; i++) {
+      ordered[i] = places[ids[i]];
+    }
+    return ordered;
+  }
+
+  private static double[] toPoint(double latitude, double longitude) {
+    double lat = Math.toRadians(latitude);
+    double lon = Math.toRadians(longitude);
+    return new double[]{Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+  }
+
+  private static int face(double[] p) {
+    int face = Math.abs(p[0]) > Math.abs(p[1]) ? 0 : 1;
+    if (Math.abs(p[2]) > Math.abs(p[face])) {
+      face = 2;
+    }
+    return p[face] < 0 ? face + 3 : face;
+  }
+
+  private static double[] toUV(int face, double[] p) {
+    switch (face) {
+      case 0:
+        return new double[]{p[1] / p[0], p[2] / p[0]};
+      case 1:
+        return new double[]{-p[0] / p[1], p[2] / p[1]};
+      case 2:
+        return new double[]{-p[0] / p[2], -p[1] / p[2]};
+      case 3:
+        return new double[]{p[2] / p[0], p[1] / p[0]};
+      case 4:
+        return new double[]{p[2] / p[1], -p[0] / p[1]};
+      default:
+        return new double[]{-p[1] / p[2], -p[0] / p[2]};
+    }
+  }
+
+  private static double[] fromUV(int face, double u, double v) {
+    double[] p;
+    switch (face) {
+      case 0:
+        p = new double[]{1, u, v};
+        break;
+      case 1:
+        p = new double[]{-u, 1, v};
+        break;
+      case 2:
+        p = new double[]{-u, -v, 1};
+        break;
+      case 3:
+        p = new double[]{-1, -v, -u};
+        break;
+      case 4:
+        p = new double[]{v, -1, -u};
+        break;
+      default:
+        p = new double[]{v, u, -1};
+        break;
+    }
+    double norm = Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+    p[0] /= norm;
+    p[1] /= norm;
+    p[2] /= norm;
+    return p;
+  }
+
+  // The quadratic transform keeps cell areas within a small factor of each
+  // other across the face
+  private static double uvToST(double u) {
+    return u >= 0 ? 0.5d * Math.sqrt(1 + 3 * u) : 1 - 0.5d * Math.sqrt(1 - 3 * u);
+  }
+
+  private static double stToUV(double s) {
+    return s >= 0.5d ? (4 * s * s - 1) / 3d : (1 - 4 * (1 - s) * (1 - s)) / 3d;
+  }
+
+  private static long toIJ(double s) {
+    return Math.max(0, Math.min(MAX_SIZE - 1, (long) Math.floor(s * MAX_SIZE)));
+  }
+
+  /**
+   * Position of cell {@code (i, j)} along the Hilbert curve filling a
+   * {@code 2^level} square grid.  The first {@code 2k} bits of the position
+   * at any level identify the enclosing cell at level {@code k}.
+   */
+  private static long hilbert(long i, long j, int level) {
+    long mask = (1L << level) - 1;
+    long d = 0;
+    for (long s = 1L << (level - 1); s > 0; s >>= 1) {
+      long ri = (i & s) != 0 ? 1 : 0;
+      long rj = (j & s) != 0 ? 1 : 0;
+      d += s * s * ((3 * ri) ^ rj);
+      if (rj == 0) {
+        if (ri == 1) {
+          i = mask - i;
+          j = mask - j;
+        }
+        long t = i;
+        i = j;
+        j = t;
+      }
+    }
+    return d;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Sorted leaf cell ids, and the place id stored at each position
+  private final long[] cells;
+
+  private final int[] ids;
+
+  // Unit vectors of the places, also in cell order, so that range scans can
+  // drop most of the over-fetch while reading memory sequentially
+  private final float[] xs;
+  private final float[] ys;
+  private final float[] zs;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  CellIndex(PlaceTable table) {
+    this.cells = new long[table.size()];
+    this.ids = new int[table.size()];
+
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = cellId(table.latitude(i), table.longitude(i));
+      ids[i] = i;
+    }
+    sort(cells, ids, 0, cells.length - 1);
+
+    this.xs = new float[cells.length];
+    this.ys = new float[cells.length];
+    this.zs = new float[cells.length];
+    for (int i = 0; i < cells.length; i++) {
+      double[] p = toPoint(table.latitude(ids[i]), table.longitude(ids[i]));
+      xs[i] = (float) p[0];
+      ys[i] = (float) p[1];
+      zs[i] = (float) p[2];
+    }
+  }
+
+  /**
+   * Restore an index written by {@link #write(Snapshot.Output)}.
+   */
+  CellIndex(Snapshot.Input in) throws IOException {
+    this.cells = in.readLongs();
+    this.ids = in.readInts();
+    this.xs = in.readFloats();
+    this.ys = in.readFloats();
+    this.zs = in.readFloats();
+    if (ids.length != cells.length || xs.length != cells.length
+            || ys.length != cells.length || zs.length != cells.length) {
+      throw new IOException("Cell index columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this index to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeLongs(cells);
+    out.writeInts(ids);
+    out.writeFloats(xs);
+    out.writeFloats(ys);
+    out.writeFloats(zs);
+  }
+
+  /**
+   * Find every row that may lie within the supplied angular distance of
+   * the origin.  The result is a superset of the exact answer, and callers
+   * are expected to trim it with an exact distance check.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param radians The radius of the search, as an angle
+   * @return The candidate rows, in ascending order.
+   */
+  int[] within(double latitude, double longitude, double radians) {
+    if (radians < 0 || cells.length == 0) {
+      return new int[0];
+    }
+
+    double[] center = toPoint(latitude, longitude);
+    long[] ranges = cover(center, radians + EPSILON);
+
+    // The chord is well conditioned even for tiny angles, so comparing it
+    // against the cap keeps single precision vectors conservative
+    double chord = radians + EPSILON >= Math.PI ? 2d : 2 * Math.sin((radians + EPSILON) / 2) + EPSILON;
+    double limit = chord * chord;
+
+    int count = 0;
+    int[] candidates = new int[16];
+    for (int r = 0; r < ranges.length; r += 2) {
+      int start = lowerBound(ranges[r]);
+      int end = upperBound(ranges[r + 1]);
+      if (count + end - start > candidates.length) {
+        candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, count + end - start));
+      }
+      for (int i = start; i < end; i++) {
+        double dx = xs[i] - center[0];
+        double dy = ys[i] - center[1];
+        double dz = zs[i] - center[2];
+        if (dx * dx + dy * dy + dz * dz <= limit) {
+          candidates[count++] = ids[i];
+        }
+      }
+    }
+
+    // Restore the table order so results match a full scan
+    candidates = Arrays.copyOf(candidates, count);
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  /**
+   * Cover a spherical cap with cells no smaller than the cap itself, and
+   * return the merged, inclusive leaf id ranges as {@code [min, max]} pairs.
+   */
+  private static long[] cover(double[] center, double radians) {
+    int level = MAX_LEVEL;
+    if (radians > 0) {
+      // Cells at this level are roughly as wide as the cap's radius, which
+      // keeps the covering small.  Over-fetch from the coarse cells is cheap
+      // to drop during the scan.
+      level = (int) Math.floor(Math.log((Math.PI / 2) / radians) / Math.log(2));
+      level = Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    List<long[]> pairs = Lists.newArrayList();
+    for (int face = 0; face < 6; face++) {
+      cover(center, radians, face, 0, 0, 0, level, pairs);
+    }
+
+    // Sorting by the start of each range lets neighbouring ranges merge
+    Collections.sort(pairs, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+      }
+    });
+
+    long[] merged = new long[pairs.size() * 2];
+    int n = 0;
+    for (long[] pair : pairs) {
+      if (n > 0 && pair[0] <= merged[n - 1] + 2) {
+        merged[n - 1] = Math.max(merged[n - 1], pair[1]);
+      } else {
+        merged[n++] = pair[0];
+        merged[n++] = pair[1];
+      }
+    }
+    return Arrays.copyOf(merged, n);
+  }
+
+  private static void cover(double[] center, double radians, int face, int level,
+          long i, long j, int maxLevel, List<long[]> pairs) {
+
+    double size = 1d / (1L << level);
+    double u0 = stToUV(i * size);
+    double u1 = stToUV((i + 1) * size);
+    double um = stToUV((i + 0.5d) * size);
+    double v0 = stToUV(j * size);
+    double v1 = stToUV((j + 1) * size);
+    double vm = stToUV((j + 0.5d) * size);
+    double[] middle = fromUV(face, um, vm);
+
+    // Bound the angle from the middle of the cell to any point in it.  The
+    // cell is a box on the cube face, at least nearU/nearV from the face
+    // center, and seen from the center of the sphere a segment on the face
+    // subtends at most its length divided by its distance to the origin.
+    double du = Math.max(um - u0, u1 - um);
+    double dv = Math.max(vm - v0, v1 - vm);
+    double nearU = u0 > 0 ? u0 : u1 < 0 ? -u1 : 0;
+    double nearV = v0 > 0 ? v0 : v1 < 0 ? -v1 : 0;
+    double reach = Math.sqrt((du * du + dv * dv) / (1 + nearU * nearU + nearV * nearV));
+
+    // Compare cosines rather than angles, which avoids an inverse
+    // trigonometric call per cell
+    double cosDistance = middle[0] * center[0] + middle[1] * center[1] + middle[2] * center[2];
+    if (radians + reach < Math.PI && cosDistance < Math.cos(radians + reach)) {
+      return;
+    }
+
+    if (level == maxLevel || (reach <= radians && cosDistance >= Math.cos(radians - reach))) {
+      int shift = 2 * (MAX_LEVEL - level);
+      long first = hilbert(i, j, level) << shift;
+      long last = first + (1L << shift) - 1;
+      long faceBits = (long) face << POS_BITS;
+      pairs.add(new long[]{faceBits | (first << 1) | 1L, faceBits | (last << 1) | 1L});
+      return;
+    }
+
+    for (int child = 0; child < 4; child++) {
+      cover(center, radians, face, level + 1, 2 * i + (child & 1), 2 * j + (child >> 1), maxLevel, pairs);
+    }
+  }
+
+  // The first position holding a cell id of at least the supplied value
+  private int lowerBound(long value) {
+    int lo = 0;
+    int hi = cells.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (cells[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // The first position holding a cell id greater than the supplied value
+  private int upperBound(long value) {
+    int lo = 0;
+    int hi = cells.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (cells[mid] <= value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private static void sort(long[] keys, int[] ids, int lo, int hi) {
+    while (hi > lo) {
+      long pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          long key = keys[i];
+          keys[i] = keys[j];
+          keys[j] = key;
+          int id = ids[i];
+          ids[i++] = ids[j];
+          ids[j--] = id;
+        }
+      }
+      // Recurse into the smaller half to bound the stack depth
+      if (j - lo < hi - i) {
+        sort(keys, ids, lo, j);
+        lo = i;
+      } else {
+        sort(keys, ids, i, hi);
+        hi = j;
+      }
+    }
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The fixed point encoding of coordinates used by the place tables and the
+ * rectangle based indexes.
+ *
+ * A coordinate is held as an int count of 1e-7 degrees, which covers the
+ * whole +/-180 degree range and represents every GeoNames coordinate
+ * exactly, since they never have more than seven decimals.  A fixed point
+ * coordinate takes half the space of a double, and rectangle tests become
+ * plain int comparisons once the rectangle edges are converted with
+ * {@link #above(double)} and {@link #below(double)}.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class FixedPoint {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * The number of fixed point units in one degree.
+   */
+  static final int SCALE = 10000000;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Encode a coordinate, rounding it to the nearest unit.
+   * @param degrees The coordinate, between -180 and 180 degrees
+   * @return The fixed point coordinate.
+   */
+  static int encode(double degrees) {
+    return (int) Math.round(degrees * SCALE);
+  }
+
+  /**
+   * Decode a fixed point coordinate.
+   * @param fixed The fixed point coordinate
+   * @return The coordinate in degrees, which for a coordinate with at most
+   * seven decimals is exactly the value that was encoded.
+   */
+  static double decode(int fixed) {
+    return fixed / (double) SCALE;
+  }
+
+  /**
+   * Find the smallest fixed point coordinate whose decoded value is strictly
+   * greater than a bound, so that {@code decode(f) > bound} exactly when
+   * {@code f >= above(bound)}.
+   * @param bound The bound in degrees
+   * @return The smallest fixed point coordinate above the bound.
+   */
+  static int above(double bound) {
+    if (Double.isNaN(bound)) {
+      return Integer.MAX_VALUE;
+    }
+    long f = clamp(Math.floor(bound * SCALE));
+    while (f <= Integer.MAX_VALUE && f / (double) SCALE <= bound) {
+      f++;
+    }
+    while (f > Integer.MIN_VALUE && (f - 1) / (double) SCALE > bound) {
+      f--;
+    }
+    return (int) Math.min(f, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Find the largest fixed point coordinate whose decoded value is strictly
+   * less than a bound, so that {@code decode(f) < bound} exactly when
+   * {@code f <= below(bound)}.
+   * @param bound The bound in degrees
+   * @return The largest fixed point coordinate below the bound.
+   */
+  static int below(double bound) {
+    if (Double.isNaN(bound)) {
+      return Integer.MIN_VALUE;
+    }
+    long f = clamp(Math.ceil(bound * SCALE));
+    while (f >= Integer.MIN_VALUE && f / (double) SCALE >= bound) {
+      f--;
+    }
+    while (f < Integer.MAX_VALUE && (f + 1) / (double) SCALE < bound) {
+      f++;
+    }
+    return (int) Math.max(f, Integer.MIN_VALUE);
+  }
+
+  private static long clamp(double value) {
+    return (long) Math.max(Integer.MIN_VALUE - 1L, Math.min(Integer.MAX_VALUE + 1L, value));
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private FixedPoint() {
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+}
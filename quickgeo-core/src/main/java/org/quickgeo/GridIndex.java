@@ -0,0 +1,216 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A uniform latitude/longitude bucket grid over the rows of a
+ * {@link PlaceTable}.
+ *
+ * Each place is assigned to exactly one cell, and the cells are stored in a
+ * compressed layout: a single array of place ids ordered by cell, plus an
+ * offset array marking where each cell begins.  Only the block of cells
+ * between the table's extreme rows and columns is laid out, so a partition
+ * holding a single country costs a few cells rather than the whole world.
+ * A rectangle query only visits the cells that the rectangle overlaps.
+ * Cells are found, and candidates tested against the rectangle, using the
+ * {@link FixedPoint} coordinates of the table, so neither needs any floating
+ * point work.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class GridIndex {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Half a degree, in fixed point units
+  private static final long CELL_UNITS = FixedPoint.SCALE / 2;
+
+  private static final int LAT_CELLS = 180 * 2;
+
+  private static final int LON_CELLS = 360 * 2;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static int latCell(int latitude) {
+    return clamp(Math.floorDiv(latitude + 90L * FixedPoint.SCALE, CELL_UNITS), LAT_CELLS);
+  }
+
+  private static int lonCell(int longitude) {
+    return clamp(Math.floorDiv(longitude + 180L * FixedPoint.SCALE, CELL_UNITS), LON_CELLS);
+  }
+
+  private static int clamp(long cell, int cells) {
+    return (int) Math.max(0, Math.min(cells - 1, cell));
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final PlaceTable table;
+
+  // The block of cells laid out, rows firstLat .. firstLat + latCells - 1
+  // and columns firstLon .. firstLon + lonCells - 1 of the world grid
+  private final int firstLat;
+  private final int firstLon;
+  private final int latCells;
+  private final int lonCells;
+
+  // cellStart[c] .. cellStart[c + 1] is the range of ids belonging to cell c
+  // of the block, numbered row by row
+  private final int[] cellStart;
+
+  private final int[] ids;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  GridIndex(PlaceTable table) {
+    this.table = table;
+    int n = table.size();
+
+    int[] lats = new int[n];
+    int[] lons = new int[n];
+    int minLat = LAT_CELLS;
+    int maxLat = -1;
+    int minLon = LON_CELLS;
+    int maxLon = -1;
+    for (int i = 0; i < n; i++) {
+      lats[i] = latCell(table.fixedLatitude(i));
+      lons[i] = lonCell(table.fixedLongitude(i));
+      minLat = Math.min(minLat, lats[i]);
+      maxLat = Math.max(maxLat, lats[i]);
+      minLon = Math.min(minLon, lons[i]);
+      maxLon = Math.max(maxLon, lons[i]);
+    }
+    this.firstLat = n == 0 ? 0 : minLat;
+    this.firstLon = n == 0 ? 0 : minLon;
+    this.latCells = n == 0 ? 0 : maxLat - minLat + 1;
+    this.lonCells = n == 0 ? 0 : maxLon - minLon + 1;
+
+    int blockCells = latCells * lonCells;
+    this.cellStart = new int[blockCells + 1];
+    this.ids = new int[n];
+
+    int[] cells = new int[n];
+    for (int i = 0; i < n; i++) {
+      cells[i] = (lats[i] - firstLat) * lonCells + lons[i] - firstLon;
+      cellStart[cells[i] + 1]++;
+    }
+
+    for (int c = 0; c < blockCells; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+
+    // Ids are written in ascending order, so each cell stays sorted
+    int[] next = Arrays.copyOf(cellStart, blockCells);
+    for (int i = 0; i < n; i++) {
+      ids[next[cells[i]]++] = i;
+    }
+  }
+
+  /**
+   * Restore an index written by {@link #write(Snapshot.Output)}.
+   */
+  GridIndex(PlaceTable table, Snapshot.Input in) throws IOException {
+    this.table = table;
+    this.firstLat = in.readInt();
+    this.firstLon = in.readInt();
+    this.latCells = in.readInt();
+    this.lonCells = in.readInt();
+    this.cellStart = in.readInts();
+    this.ids = in.readInts();
+    if (firstLat < 0 || firstLon < 0 || latCells < 0 || lonCells < 0
+            || firstLat + latCells > LAT_CELLS || firstLon + lonCells > LON_CELLS
+            || cellStart.length != latCells * lonCells + 1 || ids.length != table.size()) {
+      throw new IOException("Grid index doesn't match its table");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this index to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeInt(firstLat);
+    out.writeInt(firstLon);
+    out.writeInt(latCells);
+    out.writeInt(lonCells);
+    out.writeInts(cellStart);
+    out.writeInts(ids);
+  }
+
+  /**
+   * Find every row contained by the supplied rectangle.
+   * @param rect The rectangle to search
+   * @return The matching rows, in ascending order.
+   */
+  int[] within(PostalDb.GeoRect rect) {
+    // The rectangle is strict, so convert it to the inclusive range of fixed
+    // point coordinates inside it, and compare ints from then on
+    int minLat = FixedPoint.above(rect.getBottomRightLat());
+    int maxLat = FixedPoint.below(rect.getTopLeftLat());
+    int minLon = FixedPoint.above(rect.getTopLeftLon());
+    int maxLon = FixedPoint.below(rect.getBottomRightLon());
+
+    // An inverted rectangle (from a negative radius) contains nothing
+    if (minLat > maxLat || minLon > maxLon) {
+      return new int[0];
+    }
+
+    // Only the part of the rectangle inside the block can hold any rows
+    int fromLat = Math.max(latCell(minLat), firstLat) - firstLat;
+    int toLat = Math.min(latCell(maxLat), firstLat + latCells - 1) - firstLat;
+    int fromLon = Math.max(lonCell(minLon), firstLon) - firstLon;
+    int toLon = Math.min(lonCell(maxLon), firstLon + lonCells - 1) - firstLon;
+    if (fromLat > toLat || fromLon > toLon) {
+      return new int[0];
+    }
+
+    int count = 0;
+    for (int lat = fromLat; lat <= toLat; lat++) {
+      count += cellStart[lat * lonCells + toLon + 1] - cellStart[lat * lonCells + fromLon];
+    }
+
+    // Cells in a row are contiguous, so each row is a single range of ids
+    int[] candidates = new int[count];
+    int n = 0;
+    for (int lat = fromLat; lat <= toLat; lat++) {
+      int start = cellStart[lat * lonCells + fromLon];
+      int end = cellStart[lat * lonCells + toLon + 1];
+      for (int i = start; i < end; i++) {
+        int latitude = table.fixedLatitude(ids[i]);
+        int longitude = table.fixedLongitude(ids[i]);
+        if (latitude >= minLat && latitude <= maxLat && longitude >= minLon && longitude <= maxLon) {
+          candidates[n++] = ids[i];
+        }
+      }
+    }
+
+    // Restore the table order so results match a full scan
+    candidates = Arrays.copyOf(candidates, n);
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+}
@@ -0,0 +1,224 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Columnar heap storage for a fixed set of {@link Place Places}.
+ *
+ * Coordinates are kept in fixed point int arrays, and every text field is
+ * stored as an id into a single dictionary of the distinct values, so a row
+ * costs a few dozen bytes instead of a Place object, nine Strings and a boxed
+ * accuracy.  Rows are addressed by their position, which is also the id
+ * used by the spatial indexes, and {@link Place} instances are only created
+ * for the rows a query actually returns.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class HeapPlaceTable extends PlaceTable {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Dictionary id of a null text field
+  private static final int NULL_STRING = -1;
+
+  // Stored accuracy of a row without one
+  private static final int NO_ACCURACY = Integer.MIN_VALUE;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Every distinct text value, referenced by id from the text columns
+  private final String[] strings;
+
+  private final int[] countryCodes;
+  private final int[] postalCodes;
+  private final int[] placeNames;
+  private final int[] adminNames1;
+  private final int[] adminCodes1;
+  private final int[] adminNames2;
+  private final int[] adminCodes2;
+  private final int[] adminNames3;
+  private final int[] adminCodes3;
+
+  private final int[] latitudes;
+  private final int[] longitudes;
+
+  private final int[] accuracies;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  HeapPlaceTable(Place[] places) {
+    int n = places.length;
+    this.countryCodes = new int[n];
+    this.postalCodes = new int[n];
+    this.placeNames = new int[n];
+    this.adminNames1 = new int[n];
+    this.adminCodes1 = new int[n];
+    this.adminNames2 = new int[n];
+    this.adminCodes2 = new int[n];
+    this.adminNames3 = new int[n];
+    this.adminCodes3 = new int[n];
+    this.latitudes = new int[n];
+    this.longitudes = new int[n];
+    this.accuracies = new int[n];
+
+    Map<String, Integer> ids = Maps.newHashMap();
+    List<String> values = Lists.newArrayList();
+
+    for (int i = 0; i < n; i++) {
+      Place p = places[i];
+      countryCodes[i] = encode(p.getCountryCode(), ids, values);
+      postalCodes[i] = encode(p.getPostalCode(), ids, values);
+      placeNames[i] = encode(p.getPlaceName(), ids, values);
+      adminNames1[i] = encode(p.getAdminName1(), ids, values);
+      adminCodes1[i] = encode(p.getAdminCode1(), ids, values);
+      adminNames2[i] = encode(p.getAdminName2(), ids, values);
+      adminCodes2[i] = encode(p.getAdminCode2(), ids, values);
+      adminNames3[i] = encode(p.getAdminName3(), ids, values);
+      adminCodes3[i] = encode(p.getAdminCode3(), ids, values);
+      latitudes[i] = FixedPoint.encode(p.getLatitude());
+      longitudes[i] = FixedPoint.encode(p.getLongitude());
+      accuracies[i] = p.getAccuracy() == null ? NO_ACCURACY : p.getAccuracy();
+    }
+
+    this.strings = values.toArray(new String[values.size()]);
+  }
+
+  /**
+   * Restore a table written by {@link #write(Snapshot.Output)}.
+   */
+  HeapPlaceTable(Snapshot.Input in) throws IOException {
+    this.strings = in.readStrings();
+    this.countryCodes = in.readInts();
+    this.postalCodes = in.readInts();
+    this.placeNames = in.readInts();
+    this.adminNames1 = in.readInts();
+    this.adminCodes1 = in.readInts();
+    this.adminNames2 = in.readInts();
+    this.adminCodes2 = in.readInts();
+    this.adminNames3 = in.readInts();
+    this.adminCodes3 = in.readInts();
+    this.latitudes = in.readInts();
+    this.longitudes = in.readInts();
+    this.accuracies = in.readInts();
+
+    int n = latitudes.length;
+    for (int[] column : textColumns()) {
+      if (column.length != n) {
+        throw new IOException("Place table columns differ in length");
+      }
+      for (int id : column) {
+        if (id < NULL_STRING || id >= strings.length) {
+          throw new IOException("Unknown text id : " + id);
+        }
+      }
+    }
+    if (longitudes.length != n || accuracies.length != n) {
+      throw new IOException("Place table columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this table to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeStrings(strings);
+    for (int[] column : textColumns()) {
+      out.writeInts(column);
+    }
+    out.writeInts(latitudes);
+    out.writeInts(longitudes);
+    out.writeInts(accuracies);
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  @Override
+  Place place(int row) {
+    return new Place(decode(countryCodes[row]), decode(postalCodes[row]),
+            decode(placeNames[row]), decode(adminNames1[row]), decode(adminCodes1[row]),
+            decode(adminNames2[row]), decode(adminCodes2[row]), decode(adminNames3[row]),
+            decode(adminCodes3[row]), latitude(row), longitude(row),
+            accuracies[row] == NO_ACCURACY ? null : Integer.valueOf(accuracies[row]));
+  }
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static int encode(String value, Map<String, Integer> ids, List<String> values) {
+    if (value == null) {
+      return NULL_STRING;
+    }
+
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = values.size();
+      ids.put(value, id);
+      values.add(value);
+    }
+    return id;
+  }
+
+  private int[][] textColumns() {
+    return new int[][] {countryCodes, postalCodes, placeNames, adminNames1, adminCodes1,
+      adminNames2, adminCodes2, adminNames3, adminCodes3};
+  }
+
+  private String decode(int id) {
+    return id == NULL_STRING ? null : strings[id];
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  @Override
+  int size() {
+    return latitudes.length;
+  }
+
+  @Override
+  int fixedLatitude(int row) {
+    return latitudes[row];
+  }
+
+  @Override
+  int fixedLongitude(int row) {
+    return longitudes[row];
+  }
+
+  @Override
+  String countryCode(int row) {
+    return decode(countryCodes[row]);
+  }
+
+  @Override
+  String postalCode(int row) {
+    return decode(postalCodes[row]);
+  }
+
+  @Override
+  String placeName(int row) {
+    return decode(placeNames[row]);
+  }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A static, balanced KD-tree over the 3D unit vectors of the rows of a
+ * {@link PlaceTable}, used for nearest neighbour searches.
+ *
+ * Working on the unit sphere instead of raw latitude/longitude avoids any
+ * special handling of the poles or the antimeridian.  The straight line
+ * (chord) distance between two unit vectors grows monotonically with the
+ * great circle distance between them, so the nearest places by chord are
+ * also the nearest places by great circle.
+ *
+ * The tree is implicit: the node for the range {@code [lo, hi)} of the
+ * reordered arrays sits at its midpoint, with the left subtree to the left
+ * of it and the right subtree to the right.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class KdTree {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Row ids in tree order
+  private final int[] ids;
+
+  // Unit vectors in tree order, one array per axis
+  private final double[][] coords;
+
+  // The axis each node splits on
+  private final byte[] axis;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  KdTree(PlaceTable table) {
+    int n = table.size();
+    this.ids = new int[n];
+    this.coords = new double[3][n];
+    this.axis = new byte[n];
+
+    for (int i = 0; i < n; i++) {
+      ids[i] = i;
+      double lat = Math.toRadians(table.latitude(i));
+      double lon = Math.toRadians(table.longitude(i));
+      coords[0][i] = Math.cos(lat) * Math.cos(lon);
+      coords[1][i] = Math.cos(lat) * Math.sin(lon);
+      coords[2][i] = Math.sin(lat);
+    }
+
+    build(0, n);
+  }
+
+  /**
+   * Restore a tree written by {@link #write(Snapshot.Output)}.
+   */
+  KdTree(Snapshot.Input in) throws IOException {
+    this.ids = in.readInts();
+    this.coords = new double[][] {in.readDoubles(), in.readDoubles(), in.readDoubles()};
+    this.axis = in.readBytes();
+    if (coords[0].length != ids.length || coords[1].length != ids.length
+            || coords[2].length != ids.length || axis.length != ids.length) {
+      throw new IOException("Kd-tree columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this tree to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeInts(ids);
+    for (double[] c : coords) {
+      out.writeDoubles(c);
+    }
+    out.writeBytes(axis);
+  }
+
+  /**
+   * Find the rows closest to the supplied coordinates.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param k The maximum number of ids to return
+   * @return Up to {@code k} rows, nearest first.
+   */
+  int[] nearest(double latitude, double longitude, int k) {
+    k = Math.min(k, ids.length);
+    if (k <= 0) {
+      return new int[0];
+    }
+
+    double lat = Math.toRadians(latitude);
+    double lon = Math.toRadians(longitude);
+    double[] target = {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+
+    Neighbours best = new Neighbours(k);
+    search(0, ids.length, target, best);
+    return best.sorted();
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private void build(int lo, int hi) {
+    if (hi - lo <= 1) {
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    int dim = widestAxis(lo, hi);
+    select(lo, hi - 1, mid, dim);
+    axis[mid] = (byte) dim;
+
+    build(lo, mid);
+    build(mid + 1, hi);
+  }
+
+  private int widestAxis(int lo, int hi) {
+    int widest = 0;
+    double widestSpread = -1d;
+    for (int dim = 0; dim < 3; dim++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = lo; i < hi; i++) {
+        min = Math.min(min, coords[dim][i]);
+        max = Math.max(max, coords[dim][i]);
+      }
+      if (max - min > widestSpread) {
+        widestSpread = max - min;
+        widest = dim;
+      }
+    }
+    return widest;
+  }
+
+  // Quickselect, leaving the k-th smallest value on the axis at position k
+  private void select(int lo, int hi, int k, int dim) {
+    double[] values = coords[dim];
+    while (hi > lo) {
+      double pivot = values[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int i, int j) {
+    int id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+    for (double[] values : coords) {
+      double v = values[i];
+      values[i] = values[j];
+      values[j] = v;
+    }
+  }
+
+  private void search(int lo, int hi, double[] target, Neighbours best) {
+    if (lo >= hi) {
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    double dx = coords[0][mid] - target[0];
+    double dy = coords[1][mid] - target[1];
+    double dz = coords[2][mid] - target[2];
+    best.offer(ids[mid], dx * dx + dy * dy + dz * dz);
+
+    if (hi - lo == 1) {
+      return;
+    }
+
+    // Descend into the side holding the target first, and only visit the
+    // other side if the splitting plane is closer than the current k-th best
+    double delta = target[axis[mid]] - coords[axis[mid]][mid];
+    if (delta < 0) {
+      search(lo, mid, target, best);
+      if (delta * delta <= best.worst()) {
+        search(mid + 1, hi, target, best);
+      }
+    } else {
+      search(mid + 1, hi, target, best);
+      if (delta * delta <= best.worst()) {
+        search(lo, mid, target, best);
+      }
+    }
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * A bounded max-heap of the closest ids found so far, keyed on squared
+   * chord distance.
+   */
+  private static final class Neighbours {
+
+    private final int[] ids;
+    private final double[] distances;
+    private int size;
+
+    Neighbours(int k) {
+      this.ids = new int[k];
+      this.distances = new double[k];
+    }
+
+    double worst() {
+      return size < ids.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    void offer(int id, double distance) {
+      if (size < ids.length) {
+        ids[size] = id;
+        distances[size] = distance;
+        siftUp(size++);
+      } else if (closer(id, distance, 0)) {
+        ids[0] = id;
+        distances[0] = distance;
+        siftDown(0);
+      }
+    }
+
+    int[] sorted() {
+      int[] result = new int[size];
+      for (int i = size - 1; i >= 0; i--) {
+        result[i] = ids[0];
+        swap(0, --size);
+        siftDown(0);
+      }
+      return result;
+    }
+
+    // Ties are broken on id so results do not depend on tree layout
+    private boolean closer(int id, double distance, int slot) {
+      return distance < distances[slot] || (distance == distances[slot] && id < ids[slot]);
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (!closer(ids[parent], distances[parent], i)) {
+          return;
+        }
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int largest = i;
+        for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+          if (closer(ids[largest], distances[largest], child)) {
+            largest = child;
+          }
+        }
+        if (largest == i) {
+          return;
+        }
+        swap(i, largest);
+        i = largest;
+      }
+    }
+
+    private void swap(int i, int j) {
+      int id = ids[i];
+      ids[i] = ids[j];
+      ids[j] = id;
+      double d = distances[i];
+      distances[i] = distances[j];
+      distances[j] = d;
+    }
+  }
+
+}
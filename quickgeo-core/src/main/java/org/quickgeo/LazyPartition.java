@@ -0,0 +1,230 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link Partition} that is only parsed and indexed the first time a query
+ * needs it.
+ *
+ * The country code and bounds published by the {@link PostalSource} are kept
+ * up front, so a {@link PostalDb} can tell which partitions a query can touch
+ * without loading any of them.  A partition with unknown bounds or country
+ * is conservatively assumed to match every query.
+ *
+ * A partition holding the rows added by {@link PlaceDelta PlaceDeltas} is
+ * marked as such, so later deltas for its country merge into it rather than
+ * adding partitions of their own.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@ThreadSafe
+final class LazyPartition {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Allowance for rounding when comparing against the distance to the bounds
+  private static final double SLACK_RADIANS = 1e-9;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Compute a lower bound on the great circle distance from a point to any
+   * point inside a rectangle.  Outside the rectangle's longitudes the closest
+   * point always lies on one of its two meridian edges, and the closest point
+   * of a meridian is where it meets the great circle through the origin that
+   * crosses it at a right angle.
+   * @return The distance in radians, zero inside the rectangle.
+   */
+  private static double distance(PostalDb.GeoRect rect, double latitude, double longitude) {
+    double north = Math.toRadians(rect.getTopLeftLat());
+    double south = Math.toRadians(rect.getBottomRightLat());
+    double lat = Math.toRadians(latitude);
+
+    if (longitude >= rect.getTopLeftLon() && longitude <= rect.getBottomRightLon()) {
+      return lat > north ? lat - north : lat < south ? south - lat : 0d;
+    }
+
+    return Math.min(
+            distanceToMeridian(lat, Math.toRadians(longitude - rect.getTopLeftLon()), south, north),
+            distanceToMeridian(lat, Math.toRadians(longitude - rect.getBottomRightLon()), south, north));
+  }
+
+  private static double distanceToMeridian(double lat, double deltaLon, double south, double north) {
+    double closest = Math.min(haversine(lat, deltaLon, south), haversine(lat, deltaLon, north));
+    if (Math.cos(deltaLon) > 0) {
+      double foot = Math.atan(Math.tan(lat) / Math.cos(deltaLon));
+      if (foot > south && foot < north) {
+        closest = Math.min(closest, haversine(lat, deltaLon, foot));
+      }
+    }
+    return closest;
+  }
+
+  private static double haversine(double lat1, double deltaLon, double lat2) {
+    double dLat = Math.sin((lat2 - lat1) / 2);
+    double dLon = Math.sin(deltaLon / 2);
+    double a = dLat * dLat + Math.cos(lat1) * Math.cos(lat2) * dLon * dLon;
+    return 2 * Math.asin(Math.min(1d, Math.sqrt(a)));
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Cleared once loaded, so the source can be collected
+  private PostalSource source;
+
+  private final PostalDb.IndexMode indexMode;
+
+  private final String countryCode;
+
+  private final PostalDb.GeoRect bounds;
+
+  private final boolean delta;
+
+  private volatile Partition partition;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Wrap a partition that has already been loaded.  It is assumed to hold
+   * places of every country, anywhere.
+   */
+  LazyPartition(Partition partition) {
+    this(partition, null, null, false);
+  }
+
+  /**
+   * Wrap a partition that has already been loaded, whose country and bounds
+   * are known.
+   * @param countryCode The country of every place, or {@code null} if unknown
+   * @param bounds The bounds of every place, or {@code null} if unknown
+   * @param delta Whether the partition holds rows added by deltas
+   */
+  LazyPartition(Partition partition, String countryCode, PostalDb.GeoRect bounds, boolean delta) {
+    this.indexMode = null;
+    this.countryCode = countryCode;
+    this.bounds = bounds;
+    this.delta = delta;
+    this.partition = partition;
+  }
+
+  /**
+   * Create a partition that loads a source on first use.
+   */
+  LazyPartition(PostalSource source, PostalDb.IndexMode indexMode) {
+    this.source = source;
+    this.indexMode = indexMode;
+    this.countryCode = source.getCountryCode();
+    this.bounds = source.getBounds();
+    this.delta = false;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Get the partition, parsing and indexing its source if this is the first
+   * call.  Concurrent first calls block until a single load has finished.
+   * @return The loaded partition.
+   */
+  Partition get() {
+    Partition loaded = partition;
+    if (loaded == null) {
+      synchronized (this) {
+        loaded = partition;
+        if (loaded == null) {
+          loaded = Partition.of(SourceLoader.read(source), indexMode);
+          Logger.getLogger(getClass().getName()).log(Level.INFO, "Loaded {0} with {1} zips",
+                  new Object[] {countryCode, loaded.size()});
+          partition = loaded;
+          source = null;
+        }
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Check whether a query scoped to a country can touch this partition.
+   * @param code The country code of the query
+   * @return {@code false} only if this partition holds another country.
+   */
+  boolean covers(String code) {
+    return countryCode == null || countryCode.equalsIgnoreCase(code);
+  }
+
+  /**
+   * Check whether this partition can hold a place within a given distance of
+   * an origin.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param radians The great circle distance of the search
+   * @return {@code false} only if every place is known to be further away.
+   */
+  boolean near(double latitude, double longitude, double radians) {
+    return bounds == null || distance(bounds, latitude, longitude) <= radians + SLACK_RADIANS;
+  }
+
+  /**
+   * Check whether this partition can hold a place inside a rectangle.
+   * @param rect The rectangle of the search
+   * @return {@code false} only if every place is known to be outside it.
+   */
+  boolean overlaps(PostalDb.GeoRect rect) {
+    return bounds == null
+            || (rect.getBottomRightLat() <= bounds.getTopLeftLat()
+            && rect.getTopLeftLat() >= bounds.getBottomRightLat()
+            && rect.getTopLeftLon() <= bounds.getBottomRightLon()
+            && rect.getBottomRightLon() >= bounds.getTopLeftLon());
+  }
+
+  /**
+   * Get a lower bound on the great circle distance from an origin to the
+   * places of this partition.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @return The distance in radians, zero if the bounds are unknown.
+   */
+  double distanceTo(double latitude, double longitude) {
+    return bounds == null ? 0d : distance(bounds, latitude, longitude);
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  String getCountryCode() {
+    return countryCode;
+  }
+
+  PostalDb.GeoRect getBounds() {
+    return bounds;
+  }
+
+  boolean isDelta() {
+    return delta;
+  }
+
+  boolean isLoaded() {
+    return partition != null;
+  }
+
+  int size() {
+    Partition loaded = partition;
+    return loaded == null ? 0 : loaded.size();
+  }
+
+}
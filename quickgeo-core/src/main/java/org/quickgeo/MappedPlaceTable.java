@@ -0,0 +1,415 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Columnar storage for a fixed set of {@link Place Places}, read straight
+ * from a memory mapped store file.
+ *
+ * The file is mapped read only, so every JVM on a host that opens the same
+ * store shares a single copy of it in the page cache, and none of it counts
+ * against the heap.  Coordinates are read from the mapped bytes as the
+ * indexes and queries ask for them, and text is only decoded into Strings
+ * for the rows a query returns.  Scans compare country codes against the
+ * mapped bytes and match names and postal codes through a reused
+ * {@link TextReader}, so they don't create a String per row.  The layout,
+ * all big endian, is:
+ *
+ * <pre>
+ *   int      magic number
+ *   int      row count (n)
+ *   int      string count (s)
+ *   int      byte length of the source list, followed by it in UTF-8 and
+ *            padding to a multiple of four bytes
+ *   int[]    n fixed point latitudes
+ *   int[]    n fixed point longitudes
+ *   int[]    n string ids for each of the nine text fields in turn, -1
+ *            for null
+ *   int[]    n accuracies, Integer.MIN_VALUE for none
+ *   int[]    s + 1 offsets of each string into the string bytes
+ *   byte[]   the UTF-8 bytes of every distinct string
+ * </pre>
+ *
+ * The source list records which {@link PostalSource PostalSources} the store
+ * was built from, along with the length and checksum of the data each one
+ * supplied, so a store left over from a different set of countries or from
+ * older data is rejected instead of being used.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class MappedPlaceTable extends PlaceTable {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // "QGM2", bumped whenever the layout changes
+  private static final int MAGIC = 0x51474D32;
+
+  private static final int TEXT_FIELDS = 9;
+
+  private static final int NULL_STRING = -1;
+
+  private static final int NO_ACCURACY = Integer.MIN_VALUE;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write a store file holding a set of places.  The file is written next to
+   * its final location and then moved into place, so another process never
+   * maps a partly written store.
+   * @param places The places to store, in row order
+   * @param sources The list of sources the places were loaded from
+   * @param file The store file to write
+   * @throws IOException If the file can't be written.
+   */
+  static void write(Place[] places, String sources, File file) throws IOException {
+    int n = places.length;
+
+    Map<String, Integer> ids = Maps.newHashMap();
+    List<byte[]> values = Lists.newArrayList();
+    int[] text = new int[TEXT_FIELDS * n];
+    for (int i = 0; i < n; i++) {
+      Place p = places[i];
+      text[i] = id(p.getCountryCode(), ids, values);
+      text[n + i] = id(p.getPostalCode(), ids, values);
+      text[2 * n + i] = id(p.getPlaceName(), ids, values);
+      text[3 * n + i] = id(p.getAdminName1(), ids, values);
+      text[4 * n + i] = id(p.getAdminCode1(), ids, values);
+      text[5 * n + i] = id(p.getAdminName2(), ids, values);
+      text[6 * n + i] = id(p.getAdminCode2(), ids, values);
+      text[7 * n + i] = id(p.getAdminName3(), ids, values);
+      text[8 * n + i] = id(p.getAdminCode3(), ids, values);
+    }
+
+    byte[] sourceBytes = sources.getBytes(Charsets.UTF_8);
+    long length = header(sourceBytes.length) + (long) n * 4 * (TEXT_FIELDS + 3)
+            + 4L * (values.size() + 1);
+    for (byte[] value : values) {
+      length += value.length;
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Too many places for a single store file");
+    }
+
+    File parent = file.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(n);
+        out.writeInt(values.size());
+        out.writeInt(sourceBytes.length);
+        out.write(sourceBytes);
+        for (int i = 16 + sourceBytes.length; i < header(sourceBytes.length); i++) {
+          out.writeByte(0);
+        }
+
+        for (Place p : places) {
+          out.writeInt(FixedPoint.encode(p.getLatitude()));
+        }
+        for (Place p : places) {
+          out.writeInt(FixedPoint.encode(p.getLongitude()));
+        }
+        for (int id : text) {
+          out.writeInt(id);
+        }
+        for (Place p : places) {
+          out.writeInt(p.getAccuracy() == null ? NO_ACCURACY : p.getAccuracy());
+        }
+
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] value : values) {
+          offset += value.length;
+          out.writeInt(offset);
+        }
+        for (byte[] value : values) {
+          out.write(value);
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Map an existing store file.
+   * @param file The store file to map
+   * @param sources The list of sources the store is expected to hold
+   * @return A table reading the mapped file.
+   * @throws IOException If the file can't be mapped, isn't a store file, or
+   * was built from other sources.
+   */
+  static MappedPlaceTable open(File file, String sources) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ByteBuffer buffer;
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      // The mapping stays valid once the file is closed
+      raf.close();
+    }
+
+    try {
+      return new MappedPlaceTable(buffer, sources);
+    } catch (RuntimeException ex) {
+      // A truncated file
+      throw new IOException("Corrupt store file : " + file, ex);
+    }
+  }
+
+  private static boolean equalsIgnoreCase(char a, char b) {
+    // The same comparison String.equalsIgnoreCase makes
+    if (a == b) {
+      return true;
+    }
+    char upperA = Character.toUpperCase(a);
+    char upperB = Character.toUpperCase(b);
+    return upperA == upperB || Character.toLowerCase(upperA) == Character.toLowerCase(upperB);
+  }
+
+  private static int header(int sourceLength) {
+    return (16 + sourceLength + 3) & ~3;
+  }
+
+  private static int id(String value, Map<String, Integer> ids, List<byte[]> values) {
+    if (value == null) {
+      return NULL_STRING;
+    }
+
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = values.size();
+      ids.put(value, id);
+      values.add(value.getBytes(Charsets.UTF_8));
+    }
+    return id;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final ByteBuffer buffer;
+
+  private final int size;
+
+  // Byte offsets of each section of the file
+  private final int latitudes;
+  private final int longitudes;
+  private final int text;
+  private final int accuracies;
+  private final int offsets;
+  private final int strings;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private MappedPlaceTable(ByteBuffer buffer, String sources) throws IOException {
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a store file");
+    }
+    this.buffer = buffer;
+    this.size = buffer.getInt(4);
+    int stringCount = buffer.getInt(8);
+
+    byte[] sourceBytes = new byte[buffer.getInt(12)];
+    ByteBuffer view = buffer.duplicate();
+    view.position(16);
+    view.get(sourceBytes);
+    if (!sources.equals(new String(sourceBytes, Charsets.UTF_8))) {
+      throw new IOException("Store file was built from other sources");
+    }
+
+    this.latitudes = header(sourceBytes.length);
+    this.longitudes = latitudes + 4 * size;
+    this.text = longitudes + 4 * size;
+    this.accuracies = text + 4 * TEXT_FIELDS * size;
+    this.offsets = accuracies + 4 * size;
+    this.strings = offsets + 4 * (stringCount + 1);
+
+    if (strings + buffer.getInt(strings - 4) != buffer.capacity()) {
+      throw new IOException("Store file has the wrong length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  @Override
+  boolean inCountry(int row, String countryCode) {
+    int id = buffer.getInt(text + 4 * row);
+    if (id == NULL_STRING) {
+      return false;
+    }
+
+    int start = strings + buffer.getInt(offsets + 4 * id);
+    int length = strings + buffer.getInt(offsets + 4 * id + 4) - start;
+    boolean equal = length == countryCode.length();
+    for (int i = 0; i < length; i++) {
+      byte b = buffer.get(start + i);
+      if (b < 0) {
+        // Not ASCII, so the bytes don't line up with the chars
+        return super.inCountry(row, countryCode);
+      }
+      equal = equal && equalsIgnoreCase((char) b, countryCode.charAt(i));
+    }
+    return equal;
+  }
+
+  @Override
+  TextReader textReader() {
+    return new MappedTextReader();
+  }
+
+  @Override
+  Place place(int row) {
+    int accuracy = buffer.getInt(accuracies + 4 * row);
+    return new Place(text(0, row), text(1, row), text(2, row), text(3, row), text(4, row),
+            text(5, row), text(6, row), text(7, row), text(8, row), latitude(row), longitude(row),
+            accuracy == NO_ACCURACY ? null : Integer.valueOf(accuracy));
+  }
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private String text(int field, int row) {
+    int id = buffer.getInt(text + 4 * (field * size + row));
+    if (id == NULL_STRING) {
+      return null;
+    }
+
+    int start = buffer.getInt(offsets + 4 * id);
+    byte[] bytes = new byte[buffer.getInt(offsets + 4 * id + 4) - start];
+    ByteBuffer view = buffer.duplicate();
+    view.position(strings + start);
+    view.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  @Override
+  int size() {
+    return size;
+  }
+
+  @Override
+  int fixedLatitude(int row) {
+    return buffer.getInt(latitudes + 4 * row);
+  }
+
+  @Override
+  int fixedLongitude(int row) {
+    return buffer.getInt(longitudes + 4 * row);
+  }
+
+  @Override
+  String countryCode(int row) {
+    return text(0, row);
+  }
+
+  @Override
+  String postalCode(int row) {
+    return text(1, row);
+  }
+
+  @Override
+  String placeName(int row) {
+    return text(2, row);
+  }
+
+  /**
+   * Decodes each text field into the same reused buffer, which is what the
+   * reader returns, so a scan creates no String per row.
+   */
+  private final class MappedTextReader extends TextReader {
+
+    private final ByteBuffer bytes = buffer.duplicate();
+
+    private final CharsetDecoder decoder = Charsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private CharBuffer chars = CharBuffer.allocate(64);
+
+    @Override
+    CharSequence postalCode(int row) {
+      return read(1, row);
+    }
+
+    @Override
+    CharSequence placeName(int row) {
+      return read(2, row);
+    }
+
+    private CharSequence read(int field, int row) {
+      int id = buffer.getInt(text + 4 * (field * size + row));
+      if (id == NULL_STRING) {
+        return null;
+      }
+
+      int start = strings + buffer.getInt(offsets + 4 * id);
+      int end = strings + buffer.getInt(offsets + 4 * id + 4);
+      // UTF-8 never decodes to more chars than it has bytes
+      if (chars.capacity() < end - start) {
+        chars = CharBuffer.allocate(end - start);
+      }
+      chars.clear();
+
+      for (int i = start; i < end; i++) {
+        byte b = buffer.get(i);
+        if (b < 0) {
+          return decode(start, end);
+        }
+        chars.put((char) b);
+      }
+      chars.flip();
+      return chars;
+    }
+
+    private CharSequence decode(int start, int end) {
+      chars.clear();
+      bytes.limit(end);
+      bytes.position(start);
+      decoder.reset();
+      decoder.decode(bytes, chars, true);
+      decoder.flush(chars);
+      chars.flip();
+      return chars;
+    }
+
+  }
+
+}
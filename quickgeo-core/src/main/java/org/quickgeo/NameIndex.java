@@ -0,0 +1,333 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A trigram inverted index over the place names of a {@link PlaceTable},
+ * used to narrow a name regex down to the few names that could match it.
+ *
+ * Each distinct name is numbered, and its rows are grouped under its
+ * number.  Every trigram, each run of three characters, of a name with its
+ * ASCII letters folded to lower case has a posting list of the numbers of
+ * the names holding it.  A {@link TrigramQuery} is answered by intersecting
+ * and merging posting lists, and only the names it yields need the full
+ * regex, each of them once however many rows share it.  Everything is held
+ * in flat arrays.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class NameIndex {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Get the distinct trigrams of a name, sorted.
+   */
+  private static long[] grams(String name) {
+    String folded = TrigramQuery.fold(name);
+    if (folded.length() < 3) {
+      return new long[0];
+    }
+    long[] grams = new long[folded.length() - 2];
+    for (int i = 0; i < grams.length; i++) {
+      grams[i] = TrigramQuery.gram(folded.charAt(i), folded.charAt(i + 1), folded.charAt(i + 2));
+    }
+    Arrays.sort(grams);
+    int n = 0;
+    for (int i = 0; i < grams.length; i++) {
+      if (n == 0 || grams[n - 1] != grams[i]) {
+        grams[n++] = grams[i];
+      }
+    }
+    return n == grams.length ? grams : Arrays.copyOf(grams, n);
+  }
+
+  private static int[] intersect(int[] a, int[] b) {
+    int[] both = new int[Math.min(a.length, b.length)];
+    int n = 0;
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        both[n++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return n == both.length ? both : Arrays.copyOf(both, n);
+  }
+
+  private static int[] union(int[] a, int[] b) {
+    int[] either = new int[a.length + b.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        either[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        either[n++] = b[j++];
+      } else {
+        either[n++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    while (i < a.length) {
+      either[n++] = a[i++];
+    }
+    while (j < b.length) {
+      either[n++] = b[j++];
+    }
+    return n == either.length ? either : Arrays.copyOf(either, n);
+  }
+
+  private static String text(String value) {
+    return value == null ? "" : value;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // The distinct names, numbered in order of first appearance
+  private final String[] names;
+
+  // The rows of name i are rows[offsets[i]] to rows[offsets[i + 1]]
+  private final int[] offsets;
+  private final int[] rows;
+
+  // The distinct trigrams, sorted, the names holding grams[g] being
+  // postings[gramStart[g]] to postings[gramStart[g + 1]] in ascending order
+  private final long[] grams;
+  private final int[] gramStart;
+  private final int[] postings;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  NameIndex(PlaceTable table) {
+    int n = table.size();
+
+    // Number the names
+    Map<String, Integer> nameIds = Maps.newHashMap();
+    List<String> nameList = Lists.newArrayList();
+    int[] rowName = new int[n];
+    int[] counts = new int[n + 1];
+    for (int row = 0; row < n; row++) {
+      String name = text(table.placeName(row));
+      Integer id = nameIds.get(name);
+      if (id == null) {
+        id = nameList.size();
+        nameIds.put(name, id);
+        nameList.add(name);
+      }
+      rowName[row] = id;
+      counts[id + 1]++;
+    }
+    int distinct = nameList.size();
+    this.names = nameList.toArray(new String[distinct]);
+
+    // Lay the rows out name by name, ascending within each
+    this.offsets = Arrays.copyOf(counts, distinct + 1);
+    for (int i = 0; i < distinct; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    this.rows = new int[n];
+    int[] next = Arrays.copyOf(offsets, distinct);
+    for (int row = 0; row < n; row++) {
+      rows[next[rowName[row]]++] = row;
+    }
+
+    // Collect the trigrams of every name, then the sorted distinct set
+    long[][] nameGrams = new long[distinct][];
+    int total = 0;
+    for (int i = 0; i < distinct; i++) {
+      nameGrams[i] = grams(names[i]);
+      total += nameGrams[i].length;
+    }
+    long[] all = new long[total];
+    int at = 0;
+    for (long[] g : nameGrams) {
+      System.arraycopy(g, 0, all, at, g.length);
+      at += g.length;
+    }
+    Arrays.sort(all);
+    int unique = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (unique == 0 || all[unique - 1] != all[i]) {
+        all[unique++] = all[i];
+      }
+    }
+    this.grams = Arrays.copyOf(all, unique);
+
+    // Fill the posting lists, ascending since names are visited in order
+    this.gramStart = new int[unique + 1];
+    int[][] nameSlots = new int[distinct][];
+    for (int i = 0; i < distinct; i++) {
+      nameSlots[i] = new int[nameGrams[i].length];
+      for (int j = 0; j < nameGrams[i].length; j++) {
+        int g = Arrays.binarySearch(grams, nameGrams[i][j]);
+        nameSlots[i][j] = g;
+        gramStart[g + 1]++;
+      }
+    }
+    for (int g = 0; g < unique; g++) {
+      gramStart[g + 1] += gramStart[g];
+    }
+    this.postings = new int[total];
+    int[] fill = Arrays.copyOf(gramStart, unique);
+    for (int i = 0; i < distinct; i++) {
+      for (int g : nameSlots[i]) {
+        postings[fill[g]++] = i;
+      }
+    }
+  }
+
+  /**
+   * Restore an index written by {@link #write(Snapshot.Output)}.
+   */
+  NameIndex(Snapshot.Input in) throws IOException {
+    this.names = in.readStrings();
+    this.offsets = in.readInts();
+    this.rows = in.readInts();
+    this.grams = in.readLongs();
+    this.gramStart = in.readInts();
+    this.postings = in.readInts();
+    if (offsets.length != names.length + 1 || gramStart.length != grams.length + 1
+            || offsets[names.length] != rows.length || gramStart[grams.length] != postings.length) {
+      throw new IOException("Name index columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this index to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeStrings(names);
+    out.writeInts(offsets);
+    out.writeInts(rows);
+    out.writeLongs(grams);
+    out.writeInts(gramStart);
+    out.writeInts(postings);
+  }
+
+  /**
+   * Find the names that satisfy a trigram query.
+   * @param query The query to answer
+   * @return The numbers of the candidate names in ascending order, or
+   * {@code null} if the query doesn't narrow them down.
+   */
+  int[] candidates(TrigramQuery query) {
+    switch (query.getOp()) {
+      case ALL:
+        return null;
+      case NONE:
+        return new int[0];
+      case GRAM:
+        int g = Arrays.binarySearch(grams, query.getGram());
+        return g < 0 ? new int[0] : Arrays.copyOfRange(postings, gramStart[g], gramStart[g + 1]);
+      case AND:
+        // Intersect the shortest lists first, so the rest shrink fastest
+        List<int[]> lists = Lists.newArrayList();
+        for (TrigramQuery sub : query.getSubs()) {
+          int[] ids = candidates(sub);
+          if (ids != null) {
+            lists.add(ids);
+          }
+        }
+        if (lists.isEmpty()) {
+          return null;
+        }
+        int[][] sorted = lists.toArray(new int[lists.size()][]);
+        Arrays.sort(sorted, new Comparator<int[]>() {
+          @Override
+          public int compare(int[] a, int[] b) {
+            return a.length - b.length;
+          }
+        });
+        int[] both = sorted[0];
+        for (int i = 1; i < sorted.length && both.length > 0; i++) {
+          both = intersect(both, sorted[i]);
+        }
+        return both;
+      case OR:
+        int[] either = new int[0];
+        for (TrigramQuery sub : query.getSubs()) {
+          int[] ids = candidates(sub);
+          if (ids == null) {
+            return null;
+          }
+          either = union(either, ids);
+        }
+        return either;
+      default:
+        throw new IllegalStateException("Unknown query " + query.getOp());
+    }
+  }
+
+  /**
+   * Get a name by its number.
+   */
+  String name(int id) {
+    return names[id];
+  }
+
+  /**
+   * Get the number of rows holding a name.
+   */
+  int count(int id) {
+    return offsets[id + 1] - offsets[id];
+  }
+
+  /**
+   * Copy the rows holding a name, in ascending order.
+   * @param id The number of the name
+   * @param dest The array to copy into
+   * @param at The index of dest to copy the first row to
+   * @return The index of dest after the last row copied.
+   */
+  int copyRows(int id, int[] dest, int at) {
+    int n = count(id);
+    System.arraycopy(rows, offsets[id], dest, at, n);
+    return at + n;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * Get the number of distinct names.
+   */
+  int size() {
+    return names.length;
+  }
+
+}
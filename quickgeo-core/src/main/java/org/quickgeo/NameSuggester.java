@@ -0,0 +1,657 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A sorted dictionary of place names, used to suggest the names starting
+ * with a prefix, ranked by how many postal codes each covers.
+ *
+ * Names are keyed in a normalized form, lower cased and with accents
+ * stripped, so {@code zur} suggests Zürich.  Each entry is a key within
+ * one country, with the rows holding it as its postings, and the number
+ * of those rows is its rank.  The entries are sorted by key and then
+ * country, and their keys are front coded in blocks: the first key of a
+ * block is whole, and each of the rest is stored as the length it shares
+ * with the key before it and the characters that follow.  A prefix is
+ * found by binary searching the first keys of the blocks and scanning one
+ * block, and the entries starting with it form one range.  The entries are
+ * also listed country by country, still sorted by key, so a prefix within
+ * a country is a range of that list.
+ *
+ * The best entries of a range are taken highest rank first, with a
+ * priority queue of sub ranges, each headed by its best entry.  Taking an
+ * entry splits its range in two either side of it.  The best entry of a
+ * range is found by scanning the blocks at either end and looking up the
+ * best of each whole block between in a tree, so a suggestion costs a few
+ * block scans per entry returned, however common the prefix.  Rows masked
+ * out by a delta lower an entry's rank as it is taken, which at worst puts
+ * it back in the queue.  Everything is held in flat arrays.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class NameSuggester {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Keys are front coded in blocks of this many, each starting with a whole key
+  private static final int BLOCK = 16;
+
+  private static final int NONE = -1;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Normalize a place name, or a prefix of one, for suggestion.
+   * @param name The name to normalize
+   * @return The name lower cased and with accents stripped.
+   */
+  static String normalize(String name) {
+    boolean ascii = true;
+    for (int i = 0; i < name.length() && ascii; i++) {
+      ascii = name.charAt(i) < 0x80;
+    }
+    String decomposed = ascii ? name : Normalizer.normalize(name, Normalizer.Form.NFD);
+    StringBuilder sb = new StringBuilder(decomposed.length());
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      if (!ascii) {
+        int type = Character.getType(c);
+        if (type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK) {
+          continue;
+        }
+      }
+      sb.append(Character.toLowerCase(c));
+    }
+    return sb.toString();
+  }
+
+  private static int compare(CharSequence a, String b) {
+    int n = Math.min(a.length(), b.length());
+    for (int i = 0; i < n; i++) {
+      char x = a.charAt(i);
+      char y = b.charAt(i);
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length() - b.length();
+  }
+
+  private static String text(String value) {
+    return value == null ? "" : value;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // The keys of the entries, front coded: entry i shares shared[i] leading
+  // characters with entry i - 1, followed by keyChars[keyStart[i]] to
+  // keyChars[keyStart[i + 1]], and shares none at the start of a block
+  private final char[] keyChars;
+  private final int[] keyStart;
+  private final char[] shared;
+
+  // The rows of entry i are rows[offsets[i]] to rows[offsets[i + 1]]
+  private final int[] offsets;
+  private final int[] rows;
+
+  // The entries of country c, sorted by key, are byCountry[countryStart[c]]
+  // to byCountry[countryStart[c + 1]]
+  private final String[] countries;
+  private final int[] countryStart;
+  private final int[] byCountry;
+
+  // The position of the best entry of each block and of each node above
+  // them, for the entries in key order and in country order, with the
+  // blocks in the second half and node i above nodes 2i and 2i + 1
+  private final int[] bestByKey;
+  private final int[] bestByCountry;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  NameSuggester(PlaceTable table) {
+    int n = table.size();
+
+    // Number the countries in order, which breaks ties between entries
+    Set<String> codes = Sets.newTreeSet();
+    for (int row = 0; row < n; row++) {
+      codes.add(text(table.countryCode(row)));
+    }
+    this.countries = codes.toArray(new String[codes.size()]);
+    Map<String, Integer> countryIds = Maps.newHashMap();
+    for (int country = 0; country < countries.length; country++) {
+      countryIds.put(countries[country], country);
+    }
+    int[] rowCountry = new int[n];
+    for (int row = 0; row < n; row++) {
+      rowCountry[row] = countryIds.get(text(table.countryCode(row)));
+    }
+
+    // Group the rows by key and country
+    Map<String, String> keys = Maps.newHashMap();
+    Map<String, Integer> groupIds = Maps.newHashMap();
+    final List<String> groupKeys = Lists.newArrayList();
+    List<Integer> groupCountries = Lists.newArrayList();
+    int[] rowGroup = new int[n];
+    for (int row = 0; row < n; row++) {
+      String name = text(table.placeName(row));
+      String key = keys.get(name);
+      if (key == null) {
+        key = normalize(name);
+        keys.put(name, key);
+      }
+      String id = rowCountry[row] + "\t" + key;
+      Integer group = groupIds.get(id);
+      if (group == null) {
+        group = groupKeys.size();
+        groupIds.put(id, group);
+        groupKeys.add(key);
+        groupCountries.add(rowCountry[row]);
+      }
+      rowGroup[row] = group;
+    }
+
+    // Number the entries in key order
+    int entries = groupKeys.size();
+    final int[] groupCountry = new int[entries];
+    Integer[] order = new Integer[entries];
+    for (int g = 0; g < entries; g++) {
+      groupCountry[g] = groupCountries.get(g);
+      order[g] = g;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int byKey = groupKeys.get(a).compareTo(groupKeys.get(b));
+        return byKey != 0 ? byKey : groupCountry[a] - groupCountry[b];
+      }
+    });
+    int[] entryOf = new int[entries];
+    for (int i = 0; i < entries; i++) {
+      entryOf[order[i]] = i;
+    }
+
+    // Lay the rows out entry by entry, ascending within each
+    this.offsets = new int[entries + 1];
+    for (int row = 0; row < n; row++) {
+      offsets[entryOf[rowGroup[row]] + 1]++;
+    }
+    for (int i = 0; i < entries; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    this.rows = new int[n];
+    int[] next = Arrays.copyOf(offsets, entries);
+    for (int row = 0; row < n; row++) {
+      rows[next[entryOf[rowGroup[row]]]++] = row;
+    }
+
+    // Front code the keys
+    StringBuilder chars = new StringBuilder();
+    this.keyStart = new int[entries + 1];
+    this.shared = new char[entries];
+    String previous = "";
+    for (int i = 0; i < entries; i++) {
+      String key = groupKeys.get(order[i]);
+      int common = 0;
+      if (i % BLOCK != 0) {
+        int max = Math.min(Math.min(previous.length(), key.length()), Character.MAX_VALUE);
+        while (common < max && previous.charAt(common) == key.charAt(common)) {
+          common++;
+        }
+      }
+      shared[i] = (char) common;
+      chars.append(key, common, key.length());
+      keyStart[i + 1] = chars.length();
+      previous = key;
+    }
+    this.keyChars = new char[chars.length()];
+    chars.getChars(0, chars.length(), keyChars, 0);
+
+    // List the entries country by country, keeping key order within each
+    this.countryStart = new int[countries.length + 1];
+    for (int i = 0; i < entries; i++) {
+      countryStart[groupCountry[order[i]] + 1]++;
+    }
+    for (int country = 0; country < countries.length; country++) {
+      countryStart[country + 1] += countryStart[country];
+    }
+    this.byCountry = new int[entries];
+    int[] fill = Arrays.copyOf(countryStart, countries.length);
+    for (int i = 0; i < entries; i++) {
+      byCountry[fill[groupCountry[order[i]]]++] = i;
+    }
+
+    this.bestByKey = buildTree(null);
+    this.bestByCountry = buildTree(byCountry);
+  }
+
+  /**
+   * Restore an index written by {@link #write(Snapshot.Output)}.
+   */
+  NameSuggester(Snapshot.Input in) throws IOException {
+    this.keyChars = in.readChars();
+    this.keyStart = in.readInts();
+    this.shared = in.readChars();
+    this.offsets = in.readInts();
+    this.rows = in.readInts();
+    this.countries = in.readStrings();
+    this.countryStart = in.readInts();
+    this.byCountry = in.readInts();
+    this.bestByKey = in.readInts();
+    this.bestByCountry = in.readInts();
+    int entries = shared.length;
+    int tree = 2 * leaves(entries);
+    if (keyStart.length != entries + 1 || keyStart[entries] != keyChars.length
+            || offsets.length != entries + 1 || offsets[entries] != rows.length
+            || countryStart.length != countries.length + 1 || byCountry.length != entries
+            || bestByKey.length != tree || bestByCountry.length != tree) {
+      throw new IOException("Name suggester columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this index to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeChars(keyChars);
+    out.writeInts(keyStart);
+    out.writeChars(shared);
+    out.writeInts(offsets);
+    out.writeInts(rows);
+    out.writeStrings(countries);
+    out.writeInts(countryStart);
+    out.writeInts(byCountry);
+    out.writeInts(bestByKey);
+    out.writeInts(bestByCountry);
+  }
+
+  /**
+   * Find the entries whose key starts with a prefix, best first.  Entries
+   * of equal rank are taken in key order.
+   * @param prefix The start of the names to find, normalized here
+   * @param countryCode The country to search, or {@code null} for all
+   * @param limit The maximum number of entries to return
+   * @param removed The rows masked out, or {@code null} if there are none
+   * @return The entries, ranked by the number of their rows not masked out,
+   * leaving out those with none, and then by key and country code.
+   */
+  int[] suggest(String prefix, String countryCode, int limit, BitSet removed) {
+    Cursor cursor = cursor(prefix, countryCode, removed);
+    int[] found = new int[Math.max(0, limit)];
+    int n = 0;
+    while (n < found.length) {
+      int entry = cursor.next();
+      if (entry == NONE) {
+        break;
+      }
+      found[n++] = entry;
+    }
+    return n == found.length ? found : Arrays.copyOf(found, n);
+  }
+
+  /**
+   * Start taking the entries whose key starts with a prefix, in the order
+   * {@link #suggest(String, String, int, BitSet)} returns them, for as long
+   * as the caller needs them.
+   * @param prefix The start of the names to find, normalized here
+   * @param countryCode The country to search, or {@code null} for all
+   * @param removed The rows masked out, or {@code null} if there are none
+   * @return A cursor over the entries, best first.
+   */
+  Cursor cursor(String prefix, String countryCode, BitSet removed) {
+    String key = normalize(prefix);
+    // Sorts after every key that starts with the prefix
+    String after = key + Character.MAX_VALUE;
+
+    Cursor cursor = new Cursor(countryCode == null ? null : byCountry,
+            countryCode == null ? bestByKey : bestByCountry, removed);
+    if (countryCode == null) {
+      cursor.push(lowerBound(key), lowerBound(after) - 1);
+    } else {
+      for (int country = 0; country < countries.length; country++) {
+        if (countryCode.equalsIgnoreCase(countries[country])) {
+          int start = countryStart[country];
+          int end = countryStart[country + 1];
+          cursor.push(lowerBound(start, end, key), lowerBound(start, end, after) - 1);
+        }
+      }
+    }
+    return cursor;
+  }
+
+  /**
+   * Find the entry of a name within a country.
+   * @param name The name, normalized here
+   * @param countryCode The country code, matched exactly
+   * @return The entry, or -1 if the country has no place of that name.
+   */
+  int find(String name, String countryCode) {
+    int country = Arrays.binarySearch(countries, text(countryCode));
+    if (country < 0) {
+      return NONE;
+    }
+    String key = normalize(name);
+    int position = lowerBound(countryStart[country], countryStart[country + 1], key);
+    if (position == countryStart[country + 1]) {
+      return NONE;
+    }
+    StringBuilder sb = new StringBuilder();
+    key(byCountry[position], sb);
+    return compare(sb, key) == 0 ? byCountry[position] : NONE;
+  }
+
+  /**
+   * Check whether any place is in a country.
+   * @param countryCode The country code, matched exactly
+   */
+  boolean hasCountry(String countryCode) {
+    return Arrays.binarySearch(countries, text(countryCode)) >= 0;
+  }
+
+  /**
+   * Get the codes of every country with a place, sorted.
+   */
+  String[] countries() {
+    return countries.clone();
+  }
+
+  /**
+   * Count the rows of an entry that aren't masked out.
+   */
+  int count(int entry, BitSet removed) {
+    if (removed == null) {
+      return offsets[entry + 1] - offsets[entry];
+    }
+    int n = 0;
+    for (int i = offsets[entry]; i < offsets[entry + 1]; i++) {
+      if (!removed.get(rows[i])) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Get the first row of an entry that isn't masked out.
+   * @return The row, or -1 if every row is masked out.
+   */
+  int firstRow(int entry, BitSet removed) {
+    for (int i = offsets[entry]; i < offsets[entry + 1]; i++) {
+      if (removed == null || !removed.get(rows[i])) {
+        return rows[i];
+      }
+    }
+    return NONE;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static int leaves(int entries) {
+    int blocks = (entries + BLOCK - 1) / BLOCK;
+    return Integer.highestOneBit(Math.max(1, blocks) * 2 - 1);
+  }
+
+  private int rank(int[] order, int position) {
+    int entry = order == null ? position : order[position];
+    return offsets[entry + 1] - offsets[entry];
+  }
+
+  /**
+   * Pick the better of two positions, the higher ranked or else the first.
+   */
+  private int better(int[] order, int a, int b) {
+    if (a == NONE) {
+      return b;
+    }
+    if (b == NONE) {
+      return a;
+    }
+    int ra = rank(order, a);
+    int rb = rank(order, b);
+    return ra > rb || (ra == rb && a < b) ? a : b;
+  }
+
+  private int scan(int[] order, int from, int to) {
+    int best = NONE;
+    for (int position = from; position <= to; position++) {
+      best = better(order, best, position);
+    }
+    return best;
+  }
+
+  private int[] buildTree(int[] order) {
+    int entries = shared.length;
+    int leaves = leaves(entries);
+    int[] tree = new int[2 * leaves];
+    Arrays.fill(tree, NONE);
+    for (int block = 0; block * BLOCK < entries; block++) {
+      tree[leaves + block] = scan(order, block * BLOCK, Math.min(entries, (block + 1) * BLOCK) - 1);
+    }
+    for (int node = leaves - 1; node > 0; node--) {
+      tree[node] = better(order, tree[2 * node], tree[2 * node + 1]);
+    }
+    return tree;
+  }
+
+  /**
+   * Find the best position from one to another, inclusive.
+   */
+  private int best(int[] order, int[] tree, int from, int to) {
+    int first = from / BLOCK;
+    int last = to / BLOCK;
+    if (first == last) {
+      return scan(order, from, to);
+    }
+    int best = better(order, scan(order, from, (first + 1) * BLOCK - 1), scan(order, last * BLOCK, to));
+
+    // The whole blocks between, a node at a time
+    int leaves = tree.length / 2;
+    int lo = leaves + first + 1;
+    int hi = leaves + last - 1;
+    while (lo <= hi) {
+      if ((lo & 1) == 1) {
+        best = better(order, best, tree[lo++]);
+      }
+      if ((hi & 1) == 0) {
+        best = better(order, best, tree[hi--]);
+      }
+      lo >>= 1;
+      hi >>= 1;
+    }
+    return best;
+  }
+
+  /**
+   * Decode the key of an entry from the start of its block.
+   */
+  private void key(int entry, StringBuilder sb) {
+    sb.setLength(0);
+    for (int i = entry - entry % BLOCK; i <= entry; i++) {
+      sb.setLength(shared[i]);
+      sb.append(keyChars, keyStart[i], keyStart[i + 1] - keyStart[i]);
+    }
+  }
+
+  /**
+   * Find the first entry, in key order, whose key isn't before a target.
+   */
+  private int lowerBound(String target) {
+    int entries = shared.length;
+    StringBuilder sb = new StringBuilder();
+
+    // The first block whose first key isn't before the target
+    int lo = 0;
+    int hi = (entries + BLOCK - 1) / BLOCK;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      key(mid * BLOCK, sb);
+      if (compare(sb, target) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == 0) {
+      return 0;
+    }
+
+    // Otherwise the entry is in the block before, or starts this one
+    int end = Math.min(entries, lo * BLOCK);
+    sb.setLength(0);
+    for (int i = (lo - 1) * BLOCK; i < end; i++) {
+      sb.setLength(shared[i]);
+      sb.append(keyChars, keyStart[i], keyStart[i + 1] - keyStart[i]);
+      if (compare(sb, target) >= 0) {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Find the first position of a country's entries whose key isn't before a
+   * target.
+   */
+  private int lowerBound(int start, int end, String target) {
+    StringBuilder sb = new StringBuilder();
+    int lo = start;
+    int hi = end;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      key(byCountry[mid], sb);
+      if (compare(sb, target) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * The entries of a prefix, taken best first.  A cursor is used by one
+   * thread at a time.
+   */
+  final class Cursor {
+
+    private final int[] order;
+    private final int[] tree;
+    private final BitSet removed;
+    private final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+
+    // The rank of the entry last taken
+    private int rank = Integer.MAX_VALUE;
+
+    private Cursor(int[] order, int[] tree, BitSet removed) {
+      this.order = order;
+      this.tree = tree;
+      this.removed = removed;
+    }
+
+    /**
+     * Take the next entry.
+     * @return The entry, or -1 once every entry with a row that isn't
+     * masked out has been taken.
+     */
+    int next() {
+      while (!queue.isEmpty()) {
+        Candidate best = queue.poll();
+        int entry = order == null ? best.position : order[best.position];
+        if (best.from == NONE) {
+          rank = best.rank;
+          return entry;
+        }
+
+        push(best.from, best.position - 1);
+        push(best.position + 1, best.to);
+        int live = count(entry, removed);
+        if (live == best.rank) {
+          // Still ahead of everything queued
+          rank = live;
+          return entry;
+        } else if (live > 0) {
+          queue.add(new Candidate(NONE, NONE, best.position, live));
+        }
+      }
+      rank = 0;
+      return NONE;
+    }
+
+    /**
+     * Get the number of rows not masked out of the entry last taken, which
+     * no entry still to be taken has more of.  This is
+     * {@link Integer#MAX_VALUE} before the first entry is taken, and 0 once
+     * they are all taken.
+     */
+    int getRank() {
+      return rank;
+    }
+
+    private void push(int from, int to) {
+      if (from <= to) {
+        int position = best(order, tree, from, to);
+        queue.add(new Candidate(from, to, position, rank(order, position)));
+      }
+    }
+  }
+
+  /**
+   * A range of positions queued by the rank of its best entry, or, with no
+   * range, an entry whose rank was lowered by masked out rows.
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    private final int from;
+    private final int to;
+    private final int position;
+    private final int rank;
+
+    Candidate(int from, int to, int position, int rank) {
+      this.from = from;
+      this.to = to;
+      this.position = position;
+      this.rank = rank;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      if (rank != other.rank) {
+        return rank > other.rank ? -1 : 1;
+      }
+      return position < other.position ? -1 : position > other.position ? 1 : 0;
+    }
+  }
+
+}
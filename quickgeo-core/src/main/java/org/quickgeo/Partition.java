@@ -0,0 +1,584 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.darkcorner.minotaur.util.GeoMath;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A {@link PlaceTable} together with the spatial indexes over its rows, and
+ * the indexes for postal code and name queries.  The
+ * {@link PostalCodeIndex}, {@link NameIndex} and {@link NameSuggester} are
+ * only needed by postal code queries, name queries and suggestions, so each
+ * is built by the first query that needs it rather than on load, which
+ * keeps a mapped table from decoding every row up front.
+ *
+ * An eagerly loaded {@link PostalDb} keeps every place in one partition, and
+ * a lazily loaded one keeps a partition per {@link PostalSource}, so the
+ * queries here only ever see the rows of a single table.
+ *
+ * Rows removed by a {@link PlaceDelta} are masked out rather than deleted,
+ * so the partition left after a delta shares its table and every index with
+ * the one before, and the queries simply skip the masked rows.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class Partition {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Store and index a set of places.
+   * @param places The places to store
+   * @param indexMode The spatial index used for radius queries
+   * @return A new Partition holding the places.
+   */
+  static Partition of(List<Place> places, PostalDb.IndexMode indexMode) {
+
+    // Stored in Hilbert order, the same layout as an eager load
+    Place[] ordered = CellIndex.hilbertOrder(places.toArray(new Place[places.size()]));
+
+    return new Partition(new HeapPlaceTable(ordered), indexMode);
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final PlaceTable table;
+
+  private final PostalDb.IndexMode indexMode;
+
+  private final GridIndex grid;
+
+  private final CellIndex cells;
+
+  private final KdTree tree;
+
+  private final RTree rtree;
+
+  // Built on first use, and shared by every partition masking this one
+  private final Supplier<PostalCodeIndex> postalCodes;
+
+  private final Supplier<NameIndex> names;
+
+  private final Supplier<NameSuggester> suggester;
+
+  // Rows removed by deltas, or null if there are none
+  private final BitSet removed;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  Partition(final PlaceTable table, PostalDb.IndexMode indexMode) {
+    this.table = table;
+    this.indexMode = indexMode;
+    this.grid = indexMode == PostalDb.IndexMode.GRID ? new GridIndex(table) : null;
+    this.cells = indexMode == PostalDb.IndexMode.CELL ? new CellIndex(table) : null;
+    this.tree = new KdTree(table);
+    this.rtree = new RTree(table);
+    this.postalCodes = Suppliers.memoize(new Supplier<PostalCodeIndex>() {
+      @Override
+      public PostalCodeIndex get() {
+        return new PostalCodeIndex(table);
+      }
+    });
+    this.names = Suppliers.memoize(new Supplier<NameIndex>() {
+      @Override
+      public NameIndex get() {
+        return new NameIndex(table);
+      }
+    });
+    this.suggester = Suppliers.memoize(new Supplier<NameSuggester>() {
+      @Override
+      public NameSuggester get() {
+        return new NameSuggester(table);
+      }
+    });
+    this.removed = null;
+  }
+
+  /**
+   * Share the table and indexes of another partition, masking out some of
+   * its rows.
+   */
+  private Partition(Partition base, BitSet removed) {
+    this.table = base.table;
+    this.indexMode = base.indexMode;
+    this.grid = base.grid;
+    this.cells = base.cells;
+    this.tree = base.tree;
+    this.rtree = base.rtree;
+    this.postalCodes = base.postalCodes;
+    this.names = base.names;
+    this.suggester = base.suggester;
+    this.removed = removed.isEmpty() ? null : removed;
+  }
+
+  /**
+   * Restore a partition written by {@link #write(Snapshot.Output)}, without
+   * rebuilding any of its indexes.
+   */
+  Partition(Snapshot.Input in) throws IOException {
+    try {
+      this.indexMode = PostalDb.IndexMode.valueOf(in.readString());
+    } catch (RuntimeException ex) {
+      throw new IOException("Unknown index mode", ex);
+    }
+    this.table = new HeapPlaceTable(in);
+    this.grid = indexMode == PostalDb.IndexMode.GRID ? new GridIndex(table, in) : null;
+    this.cells = indexMode == PostalDb.IndexMode.CELL ? new CellIndex(in) : null;
+    this.tree = new KdTree(in);
+    this.rtree = new RTree(in);
+    this.postalCodes = Suppliers.ofInstance(new PostalCodeIndex(in));
+    this.names = Suppliers.ofInstance(new NameIndex(in));
+    this.suggester = Suppliers.ofInstance(new NameSuggester(in));
+    BitSet rows = BitSet.valueOf(in.readLongs());
+    if (rows.length() > table.size()) {
+      throw new IOException("Removed rows outside the table");
+    }
+    this.removed = rows.isEmpty() ? null : rows;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this partition and its indexes to a snapshot.  A mapped table is
+   * written in the heap layout, so the snapshot stands on its own.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeString(indexMode.name());
+
+    if (table instanceof HeapPlaceTable) {
+      ((HeapPlaceTable) table).write(out);
+    } else {
+      // Rows are copied in order, so the indexes still apply to the copy
+      int[] rows = new int[table.size()];
+      for (int row = 0; row < rows.length; row++) {
+        rows[row] = row;
+      }
+      List<Place> places = table.places(rows);
+      new HeapPlaceTable(places.toArray(new Place[places.size()])).write(out);
+    }
+
+    if (grid != null) {
+      grid.write(out);
+    }
+    if (cells != null) {
+      cells.write(out);
+    }
+    tree.write(out);
+    rtree.write(out);
+    postalCodes.get().write(out);
+    names.get().write(out);
+    suggester.get().write(out);
+    out.writeLongs(removed == null ? new long[0] : removed.toLongArray());
+  }
+
+  /**
+   * Find a row holding exactly the given place.
+   * @param p The place to look for
+   * @param claimed Rows already matched to other places, which are skipped
+   * so that duplicate places each match a row of their own
+   * @return The row, or -1 if no remaining row holds the place.
+   */
+  int find(Place p, BitSet claimed) {
+    // Only rows at the same coordinates can match, and the R-tree finds them
+    // without scanning the table
+    double slack = 1d / FixedPoint.SCALE;
+    int[] rows = rtree.within(new PostalDb.GeoRect(p.getLatitude() + slack, p.getLongitude() - slack,
+            p.getLatitude() - slack, p.getLongitude() + slack));
+
+    String line = PlaceDelta.line(p);
+    for (int row : rows) {
+      if (!isRemoved(row) && !claimed.get(row) && line.equals(PlaceDelta.line(table.place(row)))) {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Create the places of every row that hasn't been removed.
+   * @return The places, in storage order.
+   */
+  List<Place> places() {
+    int[] rows = new int[table.size()];
+    for (int row = 0; row < rows.length; row++) {
+      rows[row] = row;
+    }
+    return table.places(live(rows));
+  }
+
+  /**
+   * Mask out rows, sharing the table and indexes of this partition.
+   * @param rows The rows to remove
+   * @return A new partition without the rows.
+   */
+  Partition without(BitSet rows) {
+    BitSet all = removed == null ? new BitSet() : (BitSet) removed.clone();
+    all.or(rows);
+    return new Partition(this, all);
+  }
+
+  /**
+   * Find the places within a given great circle distance of an origin.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param range The radius of the search
+   * @param radius The radius of the earth, in the same unit as the range
+   * @param box The bounding box of the search, used by the grid index
+   * @return The places within range, in storage order.
+   */
+  List<Place> within(double latitude, double longitude, int range, double radius,
+          PostalDb.GeoRect box) {
+
+    int[] rows;
+
+    if (indexMode == PostalDb.IndexMode.CELL) {
+      // Use the cell index to find all Places in cells covering the search
+      // radius.  A closer check is done on the next pass below that gives a
+      // definitive answer.
+      rows = cells.within(latitude, longitude, range / radius);
+    } else {
+      // Use the grid to find all Places that fit within the box. This will
+      // eliminate most places out of the specified range very quickly.  A
+      // closer check is done on the next pass below that gives a definitive answer.
+      rows = grid.within(box);
+    }
+
+    // Trim to exact cutoff straight from the coordinate columns, so that a
+    // Place is only created for the rows that are returned
+    int n = 0;
+    for (int row : rows) {
+      if (isRemoved(row)) {
+        continue;
+      }
+      if (GeoMath.greatCircleDistance(latitude, longitude, table.latitude(row), table.longitude(row)) * radius > range) {
+        continue;
+      }
+      rows[n++] = row;
+    }
+
+    return table.places(Arrays.copyOf(rows, n));
+  }
+
+  /**
+   * Find the places strictly inside a rectangle.
+   * @param rect The rectangle to search
+   * @return The places inside the rectangle.
+   */
+  List<Place> within(PostalDb.GeoRect rect) {
+    return table.places(live(rtree.within(rect)));
+  }
+
+  /**
+   * Find the places closest to an origin.
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param k The maximum number of places to return
+   * @return Up to {@code k} places, nearest first.
+   */
+  List<Place> nearest(double latitude, double longitude, int k) {
+    if (removed == null) {
+      return table.places(tree.nearest(latitude, longitude, k));
+    }
+
+    // Every removed row may be among the nearest, so fetch enough to be left
+    // with k once they are dropped, but never more than the table holds, so
+    // a huge k can't overflow
+    int fetch = (int) Math.min(table.size(), (long) k + removed.cardinality());
+    int[] rows = live(tree.nearest(latitude, longitude, fetch));
+    return table.places(rows.length > k ? Arrays.copyOf(rows, k) : rows);
+  }
+
+  /**
+   * Find the places whose postal code matches a pattern.
+   * @param pattern The pattern to match
+   * @param countryCode The country to search, or {@code null} for all
+   * @return The matching places, in storage order.
+   */
+  List<Place> byPostalCode(Pattern pattern, String countryCode) {
+    List<Place> list = Lists.newArrayList();
+    PlaceTable.TextReader reader = table.textReader();
+    Matcher matcher = pattern.matcher("");
+    for (int row = 0; row < table.size(); row++) {
+      if (!isRemoved(row) && inCountry(row, countryCode)
+              && matches(matcher, reader.postalCode(row))) {
+        list.add(table.place(row));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Find the places whose postal code equals a code, compared in the
+   * normalized form described by {@link PostalCodeIndex}.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param code The postal code to look up
+   * @return The matching places, in storage order.
+   */
+  List<Place> byPostalCode(String countryCode, String code) {
+    return table.places(live(postalCodes.get().rows(countryCode, code)));
+  }
+
+  /**
+   * Find the places a literal postal code pattern matches, without scanning
+   * the table.  The normalized lookup finds every row the pattern can match,
+   * and each is then compared just as the pattern would compare it, so the
+   * result is exactly that of {@link #byPostalCode(Pattern, String)}.
+   * @param literal The text of a pattern holding no regex constructs, which
+   * is matched case insensitively
+   * @param countryCode The country to search, or {@code null} for all
+   * @return The matching places, in storage order.
+   */
+  List<Place> byLiteralPostalCode(String literal, String countryCode) {
+    int[] rows = live(postalCodes.get().rows(countryCode, literal));
+    int n = 0;
+    for (int row : rows) {
+      String code = table.postalCode(row);
+      if (code != null && PostalCodeIndex.equalsIgnoreAsciiCase(literal, code)) {
+        rows[n++] = row;
+      }
+    }
+    return table.places(n == rows.length ? rows : Arrays.copyOf(rows, n));
+  }
+
+  /**
+   * Find the places whose postal code starts with a prefix, compared in
+   * normalized form.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param prefix The start of the postal codes to find
+   * @return The matching places, in storage order.
+   */
+  List<Place> byPostalCodePrefix(String countryCode, String prefix) {
+    return table.places(live(postalCodes.get().rowsWithPrefix(countryCode, prefix)));
+  }
+
+  /**
+   * Find the places whose postal code lies in a range, compared in
+   * normalized form.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param from The lowest postal code to find
+   * @param to The highest postal code to find
+   * @return The matching places, in storage order.
+   */
+  List<Place> byPostalCodeRange(String countryCode, String from, String to) {
+    return table.places(live(postalCodes.get().rowsInRange(countryCode, from, to)));
+  }
+
+  /**
+   * Find the places a pattern made of a literal prefix followed by
+   * {@code .*} matches, without scanning the table.  As with
+   * {@link #byLiteralPostalCode(String, String)}, the normalized scan finds
+   * every row the pattern can match and each is then compared as the
+   * pattern would, so the result is exactly that of
+   * {@link #byPostalCode(Pattern, String)}.
+   * @param prefix The literal text before the {@code .*}, which is matched
+   * case insensitively
+   * @param countryCode The country to search, or {@code null} for all
+   * @return The matching places, in storage order.
+   */
+  List<Place> byLiteralPostalCodePrefix(String prefix, String countryCode) {
+    int[] rows = live(postalCodes.get().rowsWithPrefix(countryCode, prefix));
+    int n = 0;
+    for (int row : rows) {
+      String code = table.postalCode(row);
+      if (code != null && PostalCodeIndex.matchesPrefix(prefix, code)) {
+        rows[n++] = row;
+      }
+    }
+    return table.places(n == rows.length ? rows : Arrays.copyOf(rows, n));
+  }
+
+  /**
+   * Find the places whose name matches a pattern.  Only the names the
+   * trigram query yields are matched, each once however many rows share it,
+   * and every row is scanned if there is no query or it yields every name.
+   * @param pattern The pattern to match
+   * @param query The trigrams every matching name holds, or {@code null}
+   * @param countryCode The country to search, or {@code null} for all
+   * @return The matching places, in storage order.
+   */
+  List<Place> byName(Pattern pattern, TrigramQuery query, String countryCode) {
+    if (query == null) {
+      return byName(pattern, countryCode);
+    }
+    NameIndex index = names.get();
+    int[] candidates = index.candidates(query);
+    if (candidates == null) {
+      return byName(pattern, countryCode);
+    }
+
+    int matched = 0;
+    int total = 0;
+    for (int id : candidates) {
+      if (pattern.matcher(index.name(id)).matches()) {
+        candidates[matched++] = id;
+        total += index.count(id);
+      }
+    }
+    int[] rows = new int[total];
+    int at = 0;
+    for (int i = 0; i < matched; i++) {
+      at = index.copyRows(candidates[i], rows, at);
+    }
+    // Each name's rows are ascending, but they interleave in the table
+    Arrays.sort(rows);
+
+    int n = 0;
+    for (int row : rows) {
+      if (!isRemoved(row) && inCountry(row, countryCode)) {
+        rows[n++] = row;
+      }
+    }
+    return table.places(n == rows.length ? rows : Arrays.copyOf(rows, n));
+  }
+
+  /**
+   * Find the places whose name matches a pattern, scanning every row.
+   * @param pattern The pattern to match
+   * @param countryCode The country to search, or {@code null} for all
+   * @return The matching places, in storage order.
+   */
+  private List<Place> byName(Pattern pattern, String countryCode) {
+    List<Place> list = Lists.newArrayList();
+    PlaceTable.TextReader reader = table.textReader();
+    Matcher matcher = pattern.matcher("");
+    for (int row = 0; row < table.size(); row++) {
+      if (!isRemoved(row) && inCountry(row, countryCode)
+              && matches(matcher, reader.placeName(row))) {
+        list.add(table.place(row));
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Suggest the place names starting with a prefix.
+   * @param prefix The start of the names, compared lower cased and without
+   * accents
+   * @param countryCode The country to search, or {@code null} for all
+   * @param limit The maximum number of suggestions
+   * @return The suggestions, those covering the most postal codes first.
+   */
+  List<PostalDb.Suggestion> suggest(String prefix, String countryCode, int limit) {
+    NameSuggester index = suggester.get();
+    List<PostalDb.Suggestion> list = Lists.newArrayList();
+    for (int entry : index.suggest(prefix, countryCode, limit, removed)) {
+      list.add(suggestion(index, entry));
+    }
+    return list;
+  }
+
+  /**
+   * Start taking the suggestions for a prefix, best first, for as long as
+   * the caller needs them.  Each entry the cursor takes is turned into a
+   * suggestion by {@link #suggestion(int)}.
+   * @param prefix The start of the names
+   * @param countryCode The country to search, or {@code null} for all
+   * @return A cursor over the suggestions.
+   */
+  NameSuggester.Cursor suggestionCursor(String prefix, String countryCode) {
+    return suggester.get().cursor(prefix, countryCode, removed);
+  }
+
+  /**
+   * Get the suggestion for an entry taken by a cursor.
+   */
+  PostalDb.Suggestion suggestion(int entry) {
+    return suggestion(suggester.get(), entry);
+  }
+
+  /**
+   * Get the suggestion for a name within a country.
+   * @param name The name, compared lower cased and without accents
+   * @param countryCode The country code, matched exactly
+   * @return The suggestion, or {@code null} if the country has no place of
+   * that name here.
+   */
+  PostalDb.Suggestion suggestion(String name, String countryCode) {
+    NameSuggester index = suggester.get();
+    int entry = index.find(name, countryCode);
+    return entry < 0 || index.count(entry, removed) == 0 ? null : suggestion(index, entry);
+  }
+
+  /**
+   * Check whether any place that could be suggested is in a country.
+   * @param countryCode The country code, matched exactly
+   */
+  boolean hasSuggestions(String countryCode) {
+    return suggester.get().hasCountry(countryCode);
+  }
+
+  /**
+   * Get the codes of the countries with places that could be suggested.
+   */
+  String[] suggestionCountries() {
+    return suggester.get().countries();
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private PostalDb.Suggestion suggestion(NameSuggester index, int entry) {
+    int row = index.firstRow(entry, removed);
+    return new PostalDb.Suggestion(table.placeName(row), table.countryCode(row), index.count(entry, removed));
+  }
+
+  private boolean isRemoved(int row) {
+    return removed != null && removed.get(row);
+  }
+
+  /**
+   * Drop the removed rows from a list of rows, keeping their order.
+   */
+  private int[] live(int[] rows) {
+    if (removed == null) {
+      return rows;
+    }
+    int n = 0;
+    for (int row : rows) {
+      if (!removed.get(row)) {
+        rows[n++] = row;
+      }
+    }
+    return n == rows.length ? rows : Arrays.copyOf(rows, n);
+  }
+
+  private boolean inCountry(int row, String countryCode) {
+    return countryCode == null || table.inCountry(row, countryCode);
+  }
+
+  private static boolean matches(Matcher matcher, CharSequence text) {
+    return text != null && matcher.reset(text).matches();
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  int size() {
+    return removed == null ? table.size() : table.size() - removed.cardinality();
+  }
+
+}
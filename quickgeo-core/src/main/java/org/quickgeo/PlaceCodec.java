@@ -0,0 +1,419 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Reads and writes the precompiled binary form of a postal data file.
+ *
+ * The QuickGeo-Generate tool converts each GeoNames text file into this form
+ * when it builds the country modules, so a {@link PostalSource} can be loaded
+ * without parsing any text.  The form is a magic number followed by a
+ * deflate compressed stream of variable length ints, which is decoded a
+ * buffer at a time as it is read:
+ *
+ * <pre>
+ *   int     magic number, uncompressed
+ *   varint  row count
+ *   column  the latitude of every row
+ *   column  the longitude of every row
+ *   column  nine columns, one for each text field of every row
+ *   column  the accuracy of every row
+ * </pre>
+ *
+ * Rows are stored in Hilbert curve order, and every column is delta encoded
+ * against the row before, so neighbouring rows, which usually share their
+ * admin fields and have similar coordinates and postal codes, mostly encode
+ * to a zero byte that deflate then squeezes away.  Coordinates are stored
+ * as zig-zag deltas of their {@link FixedPoint} encoding.  A text field is
+ * 0 for null, 1 for a value not seen before, which is followed by its UTF-8
+ * byte length and bytes, and otherwise two more than the zig-zag delta
+ * between its id and that of the row before, where ids number the distinct
+ * values of all text columns in the order they first appear.  An accuracy
+ * is 0 for none, and otherwise one more than its zig-zag encoding.
+ *
+ * The coordinates of GeoNames data never have more than seven decimals, so
+ * the places read back are exactly those the text file loads to, and
+ * {@link #encode(InputStream, OutputStream) encode} refuses any data for
+ * which that isn't true.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+public final class PlaceCodec {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // "QGB2", bumped whenever the layout changes
+  private static final int MAGIC = 0x51474232;
+
+  private static final int TEXT_FIELDS = 9;
+
+  private static final int NULL_TEXT = 0;
+
+  private static final int NEW_TEXT = 1;
+
+  private static final int NO_ACCURACY = 0;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Convert a GeoNames postal text file to its binary form.  Rows that can't
+   * be parsed are skipped, just as they are when the text is loaded.
+   * @param text The text file to read, which is closed once read
+   * @param out The stream to write the binary form to, which is flushed but
+   * not closed
+   * @throws IOException If the binary form can't be written.
+   */
+  public static void encode(InputStream text, OutputStream out) throws IOException {
+    List<Place> places = SourceLoader.readText(text);
+    Place[] ordered = CellIndex.hilbertOrder(places.toArray(new Place[places.size()]));
+
+    DataOutputStream magic = new DataOutputStream(out);
+    magic.writeInt(MAGIC);
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+      Output data = new Output(new BufferedOutputStream(deflated, BUFFER_SIZE));
+
+      data.writeVarint(ordered.length);
+
+      int previous = 0;
+      for (Place p : ordered) {
+        int latitude = coordinate(p.getLatitude());
+        data.writeVarint(zigZag((long) latitude - previous));
+        previous = latitude;
+      }
+      previous = 0;
+      for (Place p : ordered) {
+        int longitude = coordinate(p.getLongitude());
+        data.writeVarint(zigZag((long) longitude - previous));
+        previous = longitude;
+      }
+
+      Map<String, Integer> ids = Maps.newHashMap();
+      for (int field = 0; field < TEXT_FIELDS; field++) {
+        previous = 0;
+        for (Place p : ordered) {
+          previous = writeText(data, text(p, field), previous, ids);
+        }
+      }
+
+      for (Place p : ordered) {
+        data.writeVarint(p.getAccuracy() == null ? NO_ACCURACY : zigZag(p.getAccuracy()) + 1);
+      }
+
+      data.flush();
+      deflated.finish();
+      out.flush();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Checksum a postal data file, as a {@link PostalSource} reports it from
+   * {@link PostalSource#getChecksum()}.
+   * @param in The data to checksum, which is closed once read
+   * @return The length of the data and its CRC-32.
+   * @throws IOException If the stream can't be read.
+   */
+  public static String checksum(InputStream in) throws IOException {
+    CRC32 crc = new CRC32();
+    long length = 0;
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        crc.update(buffer, 0, read);
+        length += read;
+      }
+    } finally {
+      in.close();
+    }
+    return length + "-" + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * Read the places of a binary postal data file.  The data is inflated and
+   * decoded a buffer at a time, so the whole file is never held in memory.
+   * @param in The binary form to read, which is not closed
+   * @return The places, in Hilbert curve order.
+   * @throws IOException If the stream can't be read or isn't in this format.
+   */
+  static List<Place> decode(InputStream in) throws IOException {
+    if (new DataInputStream(in).readInt() != MAGIC) {
+      throw new IOException("Not a binary postal data file");
+    }
+
+    Inflater inflater = new Inflater();
+    try {
+      Input data = new Input(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+
+      int rowCount = (int) data.readVarint();
+
+      int[] latitudes = new int[rowCount];
+      int previous = 0;
+      for (int row = 0; row < rowCount; row++) {
+        previous += (int) unZigZag(data.readVarint());
+        latitudes[row] = previous;
+      }
+      int[] longitudes = new int[rowCount];
+      previous = 0;
+      for (int row = 0; row < rowCount; row++) {
+        previous += (int) unZigZag(data.readVarint());
+        longitudes[row] = previous;
+      }
+
+      // Text ids are 1 based, so values[0] holds null
+      List<String> values = Lists.newArrayList();
+      values.add(null);
+      int[][] text = new int[TEXT_FIELDS][rowCount];
+      for (int field = 0; field < TEXT_FIELDS; field++) {
+        previous = 0;
+        for (int row = 0; row < rowCount; row++) {
+          text[field][row] = readText(data, previous, values);
+          if (text[field][row] != 0) {
+            previous = text[field][row];
+          }
+        }
+      }
+
+      List<Place> places = Lists.newArrayListWithCapacity(rowCount);
+      for (int row = 0; row < rowCount; row++) {
+        long accuracy = data.readVarint();
+        places.add(new Place(values.get(text[0][row]), values.get(text[1][row]),
+                values.get(text[2][row]), values.get(text[3][row]), values.get(text[4][row]),
+                values.get(text[5][row]), values.get(text[6][row]), values.get(text[7][row]),
+                values.get(text[8][row]), FixedPoint.decode(latitudes[row]),
+                FixedPoint.decode(longitudes[row]),
+                accuracy == NO_ACCURACY ? null : Integer.valueOf((int) unZigZag(accuracy - 1))));
+      }
+      return places;
+    } catch (RuntimeException ex) {
+      // An id or length out of range
+      throw new IOException("Corrupt binary postal data file", ex);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Write a text field.
+   * @return The id of the value, which the next row is delta encoded
+   * against, or the previous id again for null.
+   */
+  private static int writeText(Output data, String value, int previous,
+          Map<String, Integer> ids) throws IOException {
+    if (value == null) {
+      data.writeVarint(NULL_TEXT);
+      return previous;
+    }
+
+    Integer id = ids.get(value);
+    if (id != null) {
+      data.writeVarint(zigZag((long) id - previous) + 2);
+      return id;
+    }
+
+    id = ids.size() + 1;
+    ids.put(value, id);
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    data.writeVarint(NEW_TEXT);
+    data.writeVarint(bytes.length);
+    data.write(bytes);
+    return id;
+  }
+
+  /**
+   * Read a text field.
+   * @return The id of the value, which is 0 for null.
+   */
+  private static int readText(Input data, int previous, List<String> values) throws IOException {
+    long code = data.readVarint();
+    if (code == NULL_TEXT) {
+      return 0;
+    }
+    if (code == NEW_TEXT) {
+      values.add(data.readString((int) data.readVarint()));
+      return values.size() - 1;
+    }
+
+    long id = previous + unZigZag(code - 2);
+    if (id <= 0 || id >= values.size()) {
+      throw new IOException("Unknown text id : " + id);
+    }
+    return (int) id;
+  }
+
+  private static String text(Place p, int field) {
+    switch (field) {
+      case 0:
+        return p.getCountryCode();
+      case 1:
+        return p.getPostalCode();
+      case 2:
+        return p.getPlaceName();
+      case 3:
+        return p.getAdminName1();
+      case 4:
+        return p.getAdminCode1();
+      case 5:
+        return p.getAdminName2();
+      case 6:
+        return p.getAdminCode2();
+      case 7:
+        return p.getAdminName3();
+      default:
+        return p.getAdminCode3();
+    }
+  }
+
+  private static int coordinate(double degrees) throws IOException {
+    int fixed = FixedPoint.encode(degrees);
+    if (FixedPoint.decode(fixed) != degrees) {
+      throw new IOException("Coordinate can't be encoded exactly : " + degrees);
+    }
+    return fixed;
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private PlaceCodec() {
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * Writes variable length ints, seven bits to a byte with the high bit
+   * marking that more follow.
+   */
+  private static final class Output {
+
+    private final OutputStream out;
+
+    Output(OutputStream out) {
+      this.out = out;
+    }
+
+    void writeVarint(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+
+    void write(byte[] bytes) throws IOException {
+      out.write(bytes);
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads variable length ints through a reusable buffer, which is much
+   * cheaper than reading an inflater stream a byte at a time.
+   */
+  private static final class Input {
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    Input(InputStream in) {
+      this.in = in;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    String readString(int length) throws IOException {
+      if (limit - position < length) {
+        // Rare, so a value straddling the buffer is read the slow way
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+          bytes[i] = (byte) readByte();
+        }
+        return new String(bytes, Charsets.UTF_8);
+      }
+      String value = new String(buffer, position, length, Charsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    private int readByte() throws IOException {
+      if (position == limit) {
+        limit = in.read(buffer, 0, buffer.length);
+        position = 0;
+        if (limit <= 0) {
+          limit = 0;
+          throw new EOFException("Truncated binary postal data file");
+        }
+      }
+      return buffer[position++] & 0xFF;
+    }
+  }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The rows added, removed and changed between two exports of GeoNames
+ * postal data.
+ *
+ * GeoNames only changes a small fraction of its rows between exports, so
+ * the QuickGeo-Generate tool writes a delta for each country alongside the
+ * regenerated module, and {@link PostalDb#applyDelta(PlaceDelta)} applies it
+ * to a running database at a cost proportional to the size of the change.
+ *
+ * A row is identified by its country, postal code, place name and admin
+ * codes.  A row whose identity is unchanged but whose names, coordinates or
+ * accuracy differ is a change, and every other difference is an addition or
+ * a removal.  The text form is UTF-8, with one GeoNames row per line behind
+ * a marker and a tab:
+ *
+ * <pre>
+ *   +   an added row
+ *   -   a removed row
+ *   &lt;   a changed row as it was, always followed by
+ *   &gt;   the same row as it is now
+ * </pre>
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+public final class PlaceDelta {
+
+  /**
+   * A row whose identity is unchanged but whose other fields differ.
+   * @since 0.1.1
+   */
+  @Immutable
+  public static final class Change {
+
+    private final Place before;
+    private final Place after;
+
+    Change(Place before, Place after) {
+      this.before = before;
+      this.after = after;
+    }
+
+    public Place getBefore() {
+      return before;
+    }
+
+    public Place getAfter() {
+      return after;
+    }
+  }
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final Joiner TAB = Joiner.on('\t');
+
+  private static final char ADDED = '+';
+
+  private static final char REMOVED = '-';
+
+  private static final char BEFORE = '<';
+
+  private static final char AFTER = '>';
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Compare two GeoNames postal text files.  Rows that can't be parsed are
+   * skipped, just as they are when the text is loaded.
+   * @param previous The previous export, which is closed once read
+   * @param current The current export, which is closed once read
+   * @return The delta that turns the previous rows into the current ones.
+   */
+  public static PlaceDelta diff(InputStream previous, InputStream current) {
+    List<Place> before = SourceLoader.readText(previous);
+    List<Place> after = SourceLoader.readText(current);
+
+    // Rows present in both exports cancel out, duplicates one for one
+    ListMultimap<String, Place> unmatched = LinkedListMultimap.create();
+    for (Place p : before) {
+      unmatched.put(line(p), p);
+    }
+    List<Place> added = Lists.newArrayList();
+    for (Place p : after) {
+      List<Place> same = unmatched.get(line(p));
+      if (same.isEmpty()) {
+        added.add(p);
+      } else {
+        same.remove(0);
+      }
+    }
+
+    // What is left of the previous rows was removed or changed
+    ListMultimap<String, Place> removed = LinkedListMultimap.create();
+    for (Place p : unmatched.values()) {
+      removed.put(identity(p), p);
+    }
+    List<Place> stillAdded = Lists.newArrayList();
+    List<Change> changed = Lists.newArrayList();
+    for (Place p : added) {
+      List<Place> candidates = removed.get(identity(p));
+      if (candidates.isEmpty()) {
+        stillAdded.add(p);
+      } else {
+        changed.add(new Change(candidates.remove(0), p));
+      }
+    }
+
+    return new PlaceDelta(stillAdded, Lists.newArrayList(removed.values()), changed);
+  }
+
+  /**
+   * Read the text form of a delta.
+   * @param in The delta to read, which is not closed
+   * @return The delta.
+   * @throws IOException If the delta can't be read or a line is malformed.
+   */
+  public static PlaceDelta read(InputStream in) throws IOException {
+    List<Place> added = Lists.newArrayList();
+    List<Place> removed = Lists.newArrayList();
+    List<Change> changed = Lists.newArrayList();
+
+    // Shares the country and admin fields of this delta's rows
+    Interner<String> dictionary = Interners.newStrongInterner();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+    Place before = null;
+    int number = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      number++;
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (line.length() < 2 || line.charAt(1) != '\t') {
+        throw new IOException("Malformed delta line " + number);
+      }
+
+      char marker = line.charAt(0);
+      Place p;
+      try {
+        p = PlaceFactory.fromLine(line.substring(2), dictionary);
+      } catch (RuntimeException ex) {
+        throw new IOException("Malformed delta line " + number, ex);
+      }
+
+      if (before != null && marker != AFTER) {
+        throw new IOException("Changed row without its new value at line " + number);
+      }
+      switch (marker) {
+        case ADDED:
+          added.add(p);
+          break;
+        case REMOVED:
+          removed.add(p);
+          break;
+        case BEFORE:
+          before = p;
+          break;
+        case AFTER:
+          if (before == null) {
+            throw new IOException("Changed row without its old value at line " + number);
+          }
+          changed.add(new Change(before, p));
+          before = null;
+          break;
+        default:
+          throw new IOException("Unknown delta marker at line " + number);
+      }
+    }
+    if (before != null) {
+      throw new IOException("Changed row without its new value at end of delta");
+    }
+
+    return new PlaceDelta(added, removed, changed);
+  }
+
+  /**
+   * Format a place as a GeoNames row.  The fields are written so that
+   * {@link PlaceFactory#fromLine(String)} reads back exactly the same place.
+   */
+  static String line(Place p) {
+    return TAB.join(text(p.getCountryCode()), text(p.getPostalCode()), text(p.getPlaceName()),
+            text(p.getAdminName1()), text(p.getAdminCode1()), text(p.getAdminName2()),
+            text(p.getAdminCode2()), text(p.getAdminName3()), text(p.getAdminCode3()),
+            Double.toString(p.getLatitude()), Double.toString(p.getLongitude()),
+            p.getAccuracy() == null ? "" : p.getAccuracy().toString());
+  }
+
+  private static String identity(Place p) {
+    return TAB.join(text(p.getCountryCode()), text(p.getPostalCode()), text(p.getPlaceName()),
+            text(p.getAdminCode1()), text(p.getAdminCode2()), text(p.getAdminCode3()));
+  }
+
+  private static String text(String value) {
+    return value == null ? "" : value;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final ImmutableList<Place> added;
+
+  private final ImmutableList<Place> removed;
+
+  private final ImmutableList<Change> changed;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private PlaceDelta(List<Place> added, List<Place> removed, List<Change> changed) {
+    this.added = ImmutableList.copyOf(added);
+    this.removed = ImmutableList.copyOf(removed);
+    this.changed = ImmutableList.copyOf(changed);
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write the text form of this delta.
+   * @param out The stream to write to, which is flushed but not closed
+   * @throws IOException If the delta can't be written.
+   */
+  public void write(OutputStream out) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+    for (Place p : added) {
+      writeLine(writer, ADDED, p);
+    }
+    for (Place p : removed) {
+      writeLine(writer, REMOVED, p);
+    }
+    for (Change change : changed) {
+      writeLine(writer, BEFORE, change.getBefore());
+      writeLine(writer, AFTER, change.getAfter());
+    }
+    writer.flush();
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static void writeLine(Writer writer, char marker, Place p) throws IOException {
+    writer.write(marker);
+    writer.write('\t');
+    writer.write(line(p));
+    writer.write('\n');
+  }
+
+  /**
+   * Get every place this delta removes, the old values of changed rows
+   * included.
+   */
+  List<Place> removals() {
+    List<Place> list = Lists.newArrayList(removed);
+    for (Change change : changed) {
+      list.add(change.getBefore());
+    }
+    return list;
+  }
+
+  /**
+   * Get every place this delta adds, the new values of changed rows
+   * included.
+   */
+  List<Place> additions() {
+    List<Place> list = Lists.newArrayList(added);
+    for (Change change : changed) {
+      list.add(change.getAfter());
+    }
+    return list;
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  public List<Place> getAdded() {
+    return added;
+  }
+
+  public List<Place> getRemoved() {
+    return removed;
+  }
+
+  public List<Change> getChanged() {
+    return changed;
+  }
+
+  /**
+   * Check whether the two exports held exactly the same rows.
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+  }
+
+}
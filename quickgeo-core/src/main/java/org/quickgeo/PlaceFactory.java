@@ -7,6 +7,8 @@
 package org.quickgeo;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Lists;
 import javax.annotation.concurrent.Immutable;
 
@@ -23,10 +25,27 @@ public final class PlaceFactory {
   ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
   private static final Splitter SPLITTER = Splitter.on("\t").trimResults();
+  
+  // Shares the country and admin fields of places parsed one line at a time,
+  // without pinning them once none of those places is left
+  private static final Interner<String> SHARED = Interners.newWeakInterner();
 
   ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
 
   public static Place fromLine(String line) {
+    return fromLine(line, SHARED);
+  }
+
+  /**
+   * Parse a line, sharing its country and admin fields through a dictionary.
+   * Those fields only take a few thousand distinct values across hundreds of
+   * thousands of rows, so a caller parsing many lines passes a dictionary of
+   * its own, which lives only as long as the load.
+   * @param line The line to parse
+   * @param dictionary The canonical copies of the values seen so far
+   * @return The place described by the line.
+   */
+  static Place fromLine(String line, Interner<String> dictionary) {
     Iterable<String> iter = SPLITTER.split(line);
        
     String[] items = Lists.newArrayList(iter).toArray(new String[0]);
@@ -37,9 +56,11 @@ public final class PlaceFactory {
       accuracy = Integer.parseInt(items[11]);
     }
     
-    return new Place(items[0], items[1], items[2], items[3], items[4], items[5],
-            items[6], items[7], items[8], Double.parseDouble(items[9]),
-            Double.parseDouble(items[10]), accuracy);    
+    return new Place(dictionary.intern(items[0]), items[1], items[2],
+            dictionary.intern(items[3]), dictionary.intern(items[4]),
+            dictionary.intern(items[5]), dictionary.intern(items[6]),
+            dictionary.intern(items[7]), dictionary.intern(items[8]),
+            Double.parseDouble(items[9]), Double.parseDouble(items[10]), accuracy);    
   }  
   
   //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
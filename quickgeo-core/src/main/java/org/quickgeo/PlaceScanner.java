@@ -0,0 +1,406 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Interner;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A hand-written reader of GeoNames postal rows, used to load a
+ * {@link PostalSource} without the per-row garbage of
+ * {@link PlaceFactory#fromLine(String)}.
+ *
+ * Lines are read into one reusable character buffer and split on tabs in
+ * place.  Coordinates and accuracy are parsed straight from the buffer, and
+ * the country and admin fields are looked up in a dictionary keyed on the
+ * buffered characters, so a String is only created the first time a value is
+ * seen.  Any row that doesn't fit the simple fast path is handed to
+ * {@link PlaceFactory#fromLine(String)} instead, so the places produced (and
+ * the errors raised for malformed rows) are exactly those of the original
+ * parser.  Those rows share the same dictionary, which is dropped along with
+ * the scanner once the source is read.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@NotThreadSafe
+final class PlaceScanner implements Interner<String> {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final int FIELDS = 12;
+
+  // The largest number of digits whose value is exact in a double
+  private static final int MAX_DIGITS = 15;
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+  };
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final Reader in;
+
+  private char[] buffer = new char[8192];
+
+  // Unread characters are buffer[position] .. buffer[limit - 1]
+  private int position;
+  private int limit;
+
+  // Set when the last line ended in '\r', so a following '\n' is skipped
+  private boolean skipLineFeed;
+
+  private int lineStart;
+  private int lineEnd;
+
+  // Trimmed bounds of each field in the current line
+  private final int[] fieldStart = new int[FIELDS];
+  private final int[] fieldEnd = new int[FIELDS];
+
+  // Open addressing table of canonical field values
+  private String[] values = new String[1024];
+  private int[] hashes = new int[1024];
+  private int valueCount;
+
+  // Scratch results of the number parsers
+  private double number;
+  private int integer;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  PlaceScanner(Reader in) {
+    this.in = in;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Advance to the next line.  Lines end at {@code '\n'}, {@code '\r'} or
+   * {@code "\r\n"}, as with {@link java.io.BufferedReader#readLine()}.
+   * @return {@code false} once the end of the stream is reached.
+   * @throws IOException If the underlying reader fails.
+   */
+  boolean nextLine() throws IOException {
+    int scan = position;
+    while (true) {
+      if (scan == limit) {
+        scan -= position;
+        if (!fill()) {
+          if (position == limit) {
+            return false;
+          }
+          // The last line has no terminator
+          lineStart = position;
+          lineEnd = limit;
+          position = limit;
+          return true;
+        }
+        scan += position;
+      }
+
+      char c = buffer[scan];
+      if (skipLineFeed) {
+        skipLineFeed = false;
+        if (c == '\n') {
+          position++;
+          scan++;
+          continue;
+        }
+      }
+
+      if (c == '\n' || c == '\r') {
+        lineStart = position;
+        lineEnd = scan;
+        position = scan + 1;
+        skipLineFeed = c == '\r';
+        return true;
+      }
+      scan++;
+    }
+  }
+
+  /**
+   * Parse the current line.
+   * @return The place described by the line.
+   * @throws RuntimeException If the line is malformed, as thrown by
+   * {@link PlaceFactory#fromLine(String)}.
+   */
+  Place place() {
+    if (!split()) {
+      return PlaceFactory.fromLine(line(), this);
+    }
+
+    if (!parseDouble(9)) {
+      return PlaceFactory.fromLine(line(), this);
+    }
+    double latitude = number;
+
+    if (!parseDouble(10)) {
+      return PlaceFactory.fromLine(line(), this);
+    }
+    double longitude = number;
+
+    Integer accuracy = null;
+    if (fieldEnd[11] > fieldStart[11]) {
+      if (!parseInt(11)) {
+        return PlaceFactory.fromLine(line(), this);
+      }
+      accuracy = integer;
+    }
+
+    return new Place(lookup(0), text(1), text(2), lookup(3), lookup(4), lookup(5),
+            lookup(6), lookup(7), lookup(8), latitude, longitude, accuracy);
+  }
+
+  /**
+   * Get the current line as a String.
+   * @return The text of the current line, without its terminator.
+   */
+  String line() {
+    return new String(buffer, lineStart, lineEnd - lineStart);
+  }
+
+  //------------------------ Implements:
+
+  /**
+   * Get the canonical copy of a value, adding it to the dictionary if it
+   * hasn't been seen yet.
+   */
+  @Override
+  public String intern(String sample) {
+    if (sample.isEmpty()) {
+      return "";
+    }
+
+    int hash = sample.hashCode();
+    int mask = values.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      String value = values[slot];
+      if (value == null) {
+        values[slot] = sample;
+        hashes[slot] = hash;
+        if (++valueCount * 2 > values.length) {
+          grow();
+        }
+        return sample;
+      }
+      if (hashes[slot] == hash && value.equals(sample)) {
+        return value;
+      }
+    }
+  }
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  /**
+   * Read more characters into the buffer, compacting or growing it first.
+   * @return {@code false} at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read <= 0) {
+      return false;
+    }
+    limit += read;
+    return true;
+  }
+
+  /**
+   * Find the trimmed bounds of the first {@link #FIELDS} fields.
+   * @return {@code false} if the line has too few fields.
+   */
+  private boolean split() {
+    int start = lineStart;
+    for (int field = 0; field < FIELDS; field++) {
+      int end = start;
+      while (end < lineEnd && buffer[end] != '\t') {
+        end++;
+      }
+      if (end == lineEnd && field < FIELDS - 1) {
+        return false;
+      }
+
+      int from = start;
+      int to = end;
+      while (from < to && CharMatcher.WHITESPACE.matches(buffer[from])) {
+        from++;
+      }
+      while (to > from && CharMatcher.WHITESPACE.matches(buffer[to - 1])) {
+        to--;
+      }
+      fieldStart[field] = from;
+      fieldEnd[field] = to;
+
+      start = end + 1;
+    }
+    return true;
+  }
+
+  /**
+   * Parse a plain decimal such as {@code -12.3456}.  With at most
+   * {@link #MAX_DIGITS} digits, both the digits and the power of ten are
+   * exact doubles, so a single division gives the same correctly rounded
+   * result as {@link Double#parseDouble(String)}.
+   * @return {@code false} if the field is not a plain decimal.
+   */
+  private boolean parseDouble(int field) {
+    int i = fieldStart[field];
+    int end = fieldEnd[field];
+
+    boolean negative = i < end && buffer[i] == '-';
+    if (negative) {
+      i++;
+    }
+
+    long digits = 0;
+    int count = 0;
+    int scale = -1;
+    for (; i < end; i++) {
+      char c = buffer[i];
+      if (c >= '0' && c <= '9') {
+        if (++count > MAX_DIGITS) {
+          return false;
+        }
+        digits = digits * 10 + (c - '0');
+        if (scale >= 0) {
+          scale++;
+        }
+      } else if (c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        return false;
+      }
+    }
+    if (count == 0) {
+      return false;
+    }
+
+    double value = scale > 0 ? digits / POWERS_OF_TEN[scale] : digits;
+    number = negative ? -value : value;
+    return true;
+  }
+
+  /**
+   * Parse a small unsigned integer.
+   * @return {@code false} if the field is not one.
+   */
+  private boolean parseInt(int field) {
+    int start = fieldStart[field];
+    int end = fieldEnd[field];
+    if (end - start > 9) {
+      return false;
+    }
+
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      char c = buffer[i];
+      if (c < '0' || c > '9') {
+        return false;
+      }
+      value = value * 10 + (c - '0');
+    }
+    integer = value;
+    return true;
+  }
+
+  private String text(int field) {
+    int length = fieldEnd[field] - fieldStart[field];
+    return length == 0 ? "" : new String(buffer, fieldStart[field], length);
+  }
+
+  /**
+   * Get the canonical String for a field, creating it only the first time
+   * its characters are seen.
+   */
+  private String lookup(int field) {
+    int start = fieldStart[field];
+    int length = fieldEnd[field] - start;
+    if (length == 0) {
+      return "";
+    }
+
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + buffer[i];
+    }
+
+    int mask = values.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      String value = values[slot];
+      if (value == null) {
+        value = new String(buffer, start, length);
+        values[slot] = value;
+        hashes[slot] = hash;
+        if (++valueCount * 2 > values.length) {
+          grow();
+        }
+        return value;
+      }
+      if (hashes[slot] == hash && matches(value, start, length)) {
+        return value;
+      }
+    }
+  }
+
+  private boolean matches(String value, int start, int length) {
+    if (value.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (value.charAt(i) != buffer[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void grow() {
+    String[] oldValues = values;
+    int[] oldHashes = hashes;
+    values = new String[oldValues.length * 2];
+    hashes = new int[oldValues.length * 2];
+
+    int mask = values.length - 1;
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] != null) {
+        int slot = mix(oldHashes[i]) & mask;
+        while (values[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        values[slot] = oldValues[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+  }
+
+  // Spread the bits of a String style hash before masking
+  private static int mix(int hash) {
+    return (hash ^ (hash >>> 16)) * 0x45d9f3b;
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+}
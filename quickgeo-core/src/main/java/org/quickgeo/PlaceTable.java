@@ -0,0 +1,126 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Columnar storage for a fixed set of {@link Place Places}.
+ *
+ * Rows are addressed by their position, which is also the id used by the
+ * spatial indexes, and {@link Place} instances are only created for the rows
+ * a query actually returns.  Coordinates are held in the
+ * {@link FixedPoint} encoding.  The columns either live on the heap, see
+ * {@link HeapPlaceTable}, or in a memory mapped file, see
+ * {@link MappedPlaceTable}.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+abstract class PlaceTable {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Create the {@link Place Places} for a set of rows.
+   * @param rows The rows to read
+   * @return A list of new Place instances, in the same order as the rows.
+   */
+  List<Place> places(int[] rows) {
+    List<Place> list = Lists.newArrayListWithCapacity(rows.length);
+    for (int row : rows) {
+      list.add(place(row));
+    }
+    return list;
+  }
+
+  double latitude(int row) {
+    return FixedPoint.decode(fixedLatitude(row));
+  }
+
+  double longitude(int row) {
+    return FixedPoint.decode(fixedLongitude(row));
+  }
+
+  /**
+   * Check whether a row belongs to a country, ignoring case.
+   * @param row The row to check
+   * @param countryCode The country code to compare
+   * @return {@code true} if the row's country code equals the code.
+   */
+  boolean inCountry(int row, String countryCode) {
+    return countryCode.equalsIgnoreCase(countryCode(row));
+  }
+
+  /**
+   * Create a reader for the text of one row at a time, for scans that look
+   * at every row.  The text it returns is only valid until it reads the next
+   * row, and a reader must not be shared between threads.
+   * @return A new TextReader over this table.
+   */
+  TextReader textReader() {
+    return new TextReader();
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  /**
+   * Create a {@link Place} holding the values of a row.
+   * @param row The row to read
+   * @return A new Place instance.
+   */
+  abstract Place place(int row);
+
+  abstract int size();
+
+  abstract int fixedLatitude(int row);
+
+  abstract int fixedLongitude(int row);
+
+  abstract String countryCode(int row);
+
+  abstract String postalCode(int row);
+
+  abstract String placeName(int row);
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * Reads the text fields scans match against.  This one simply returns the
+   * stored Strings, and a table that would have to decode a String for every
+   * row returns a reused view instead.
+   */
+  class TextReader {
+
+    CharSequence postalCode(int row) {
+      return PlaceTable.this.postalCode(row);
+    }
+
+    CharSequence placeName(int row) {
+      return PlaceTable.this.placeName(row);
+    }
+
+  }
+
+}
@@ -0,0 +1,470 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * An index from postal codes to the rows of a {@link PlaceTable} that hold
+ * them, used for exact lookups and for prefix and range scans.
+ *
+ * Codes are indexed in a normalized form, so a lookup finds a code however
+ * it was typed:
+ *
+ * <ul>
+ *   <li>spaces and hyphens are dropped, so {@code sw1a1aa} finds
+ *   {@code SW1A 1AA} and {@code 1000001} finds {@code 100-0001}</li>
+ *   <li>ASCII letters are upper cased</li>
+ *   <li>in a country whose codes are all digits of one length, such as the
+ *   US or Germany, a shorter numeric code is padded with leading zeros, so
+ *   {@code 2108} finds {@code 02108} after a spreadsheet has dropped the
+ *   zero</li>
+ * </ul>
+ *
+ * The rows are grouped by country and normalized code, each group holding
+ * its rows in ascending order.  An exact lookup finds its group through an
+ * open addressing table with linear probing.  The groups are also kept
+ * sorted by country and then code, so the codes of each country form a
+ * sorted dictionary, and a prefix or range scan binary searches it for the
+ * first and last group and takes every group in between.  Everything is
+ * held in flat arrays.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class PostalCodeIndex {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final int EMPTY = -1;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Normalize a postal code for lookup.
+   * @param code The code to normalize
+   * @param width The length every code of the country has, if they are all
+   * digits, and otherwise 0
+   * @return The normalized code, which is the same instance if it was
+   * already normalized, as most codes in the data are.
+   */
+  static String normalize(String code, int width) {
+    StringBuilder sb = new StringBuilder(Math.max(code.length(), width));
+    boolean digits = true;
+    boolean changed = false;
+    for (int i = 0; i < code.length(); i++) {
+      char c = code.charAt(i);
+      if (c == '-' || Character.isWhitespace(c)) {
+        changed = true;
+        continue;
+      }
+      if (c >= 'a' && c <= 'z') {
+        c = (char) (c - 'a' + 'A');
+        changed = true;
+      }
+      digits &= c >= '0' && c <= '9';
+      sb.append(c);
+    }
+    if (digits && sb.length() > 0 && sb.length() < width) {
+      char[] zeros = new char[width - sb.length()];
+      Arrays.fill(zeros, '0');
+      sb.insert(0, zeros);
+      changed = true;
+    }
+    return changed ? sb.toString() : code;
+  }
+
+  /**
+   * Compare two strings the way a literal pattern compiled with
+   * {@link java.util.regex.Pattern#CASE_INSENSITIVE} matches them, which
+   * folds the case of ASCII letters only.
+   */
+  static boolean equalsIgnoreAsciiCase(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    for (int i = 0; i < a.length(); i++) {
+      char x = a.charAt(i);
+      char y = b.charAt(i);
+      if (x != y && asciiUpper(x) != asciiUpper(y)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether a code matches the pattern {@code prefix.*} compiled with
+   * {@link java.util.regex.Pattern#CASE_INSENSITIVE}: it starts with the
+   * prefix, folding the case of ASCII letters only, and the rest holds no
+   * line terminator, which {@code .} doesn't match.
+   */
+  static boolean matchesPrefix(String prefix, String code) {
+    if (code.length() < prefix.length() || !equalsIgnoreAsciiCase(prefix, code.substring(0, prefix.length()))) {
+      return false;
+    }
+    for (int i = prefix.length(); i < code.length(); i++) {
+      char c = code.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isDigits(String code) {
+    if (code.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < code.length(); i++) {
+      if (code.charAt(i) < '0' || code.charAt(i) > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static char asciiUpper(char c) {
+    return c >= 'a' && c <= 'z' ? (char) (c - 'a' + 'A') : c;
+  }
+
+  private static String text(String value) {
+    return value == null ? "" : value;
+  }
+
+  private static int hash(int country, String code) {
+    int h = code.hashCode() * 31 + country;
+    // Spread the low bits, which pick the slot
+    return h ^ (h >>> 16);
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // The countries of the table, and the numeric width of each one's codes
+  private final String[] countries;
+  private final int[] widths;
+
+  // The country and normalized code of each group
+  private final int[] groupCountry;
+  private final String[] groupCode;
+
+  // The rows of group g are rows[offsets[g]] to rows[offsets[g + 1]]
+  private final int[] offsets;
+  private final int[] rows;
+
+  // Group ids by hash, EMPTY where free; the length is a power of two
+  private final int[] slots;
+
+  // Group ids sorted by country and code, the groups of country c being
+  // sorted[countryStart[c]] to sorted[countryStart[c + 1]]
+  private final int[] sorted;
+  private final int[] countryStart;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  PostalCodeIndex(PlaceTable table) {
+    int n = table.size();
+
+    // Number the countries, and find those whose codes are one width of digits
+    Map<String, Integer> countryIds = Maps.newHashMap();
+    List<String> countryList = Lists.newArrayList();
+    int[] rowCountry = new int[n];
+    for (int row = 0; row < n; row++) {
+      String country = text(table.countryCode(row));
+      Integer id = countryIds.get(country);
+      if (id == null) {
+        id = countryList.size();
+        countryIds.put(country, id);
+        countryList.add(country);
+      }
+      rowCountry[row] = id;
+    }
+    this.countries = countryList.toArray(new String[countryList.size()]);
+    this.widths = new int[countries.length];
+    boolean[] mixed = new boolean[countries.length];
+    for (int row = 0; row < n; row++) {
+      int country = rowCountry[row];
+      if (mixed[country]) {
+        continue;
+      }
+      String code = normalize(text(table.postalCode(row)), 0);
+      if (!isDigits(code) || (widths[country] != 0 && widths[country] != code.length())) {
+        mixed[country] = true;
+        widths[country] = 0;
+      } else {
+        widths[country] = code.length();
+      }
+    }
+
+    // Group the rows by country and normalized code
+    Map<String, Integer> groupIds = Maps.newHashMap();
+    List<String> codes = Lists.newArrayList();
+    List<Integer> codeCountries = Lists.newArrayList();
+    int[] rowGroup = new int[n];
+    int[] counts = new int[n + 1];
+    for (int row = 0; row < n; row++) {
+      int country = rowCountry[row];
+      String code = normalize(text(table.postalCode(row)), widths[country]);
+      String key = country + "\t" + code;
+      Integer group = groupIds.get(key);
+      if (group == null) {
+        group = codes.size();
+        groupIds.put(key, group);
+        codes.add(code);
+        codeCountries.add(country);
+      }
+      rowGroup[row] = group;
+      counts[group + 1]++;
+    }
+
+    int groups = codes.size();
+    this.groupCode = codes.toArray(new String[groups]);
+    this.groupCountry = new int[groups];
+    for (int g = 0; g < groups; g++) {
+      groupCountry[g] = codeCountries.get(g);
+    }
+
+    // Lay the rows out group by group, ascending within each
+    this.offsets = Arrays.copyOf(counts, groups + 1);
+    for (int g = 0; g < groups; g++) {
+      offsets[g + 1] += offsets[g];
+    }
+    this.rows = new int[n];
+    int[] next = Arrays.copyOf(offsets, groups);
+    for (int row = 0; row < n; row++) {
+      rows[next[rowGroup[row]]++] = row;
+    }
+
+    // At most half full, so probe runs stay short
+    int size = Integer.highestOneBit(Math.max(1, groups) * 2 - 1) << 1;
+    this.slots = new int[size];
+    Arrays.fill(slots, EMPTY);
+    for (int g = 0; g < groups; g++) {
+      int slot = hash(groupCountry[g], groupCode[g]) & (size - 1);
+      while (slots[slot] != EMPTY) {
+        slot = (slot + 1) & (size - 1);
+      }
+      slots[slot] = g;
+    }
+
+    // Sort the groups into a dictionary of each country's codes
+    Integer[] order = new Integer[groups];
+    for (int g = 0; g < groups; g++) {
+      order[g] = g;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int byCountry = groupCountry[a] - groupCountry[b];
+        return byCountry != 0 ? byCountry : groupCode[a].compareTo(groupCode[b]);
+      }
+    });
+    this.sorted = new int[groups];
+    this.countryStart = new int[countries.length + 1];
+    for (int i = 0; i < groups; i++) {
+      sorted[i] = order[i];
+      countryStart[groupCountry[order[i]] + 1]++;
+    }
+    for (int country = 0; country < countries.length; country++) {
+      countryStart[country + 1] += countryStart[country];
+    }
+  }
+
+  /**
+   * Restore an index written by {@link #write(Snapshot.Output)}.
+   */
+  PostalCodeIndex(Snapshot.Input in) throws IOException {
+    this.countries = in.readStrings();
+    this.widths = in.readInts();
+    this.groupCountry = in.readInts();
+    this.groupCode = in.readStrings();
+    this.offsets = in.readInts();
+    this.rows = in.readInts();
+    this.slots = in.readInts();
+    this.sorted = in.readInts();
+    this.countryStart = in.readInts();
+    int groups = groupCountry.length;
+    if (widths.length != countries.length || groupCode.length != groups || offsets.length != groups + 1
+            || Integer.bitCount(slots.length) != 1 || slots.length < groups
+            || sorted.length != groups || countryStart.length != countries.length + 1) {
+      throw new IOException("Postal code index columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this index to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeStrings(countries);
+    out.writeInts(widths);
+    out.writeInts(groupCountry);
+    out.writeStrings(groupCode);
+    out.writeInts(offsets);
+    out.writeInts(rows);
+    out.writeInts(slots);
+    out.writeInts(sorted);
+    out.writeInts(countryStart);
+  }
+
+  /**
+   * Find every row holding a postal code, compared in normalized form.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param code The postal code to look up
+   * @return The matching rows, in ascending order.
+   */
+  int[] rows(String countryCode, String code) {
+    int[] found = new int[0];
+    boolean merged = false;
+    for (int country = 0; country < countries.length; country++) {
+      if (countryCode == null || countryCode.equalsIgnoreCase(countries[country])) {
+        int[] more = rows(country, normalize(code, widths[country]));
+        if (found.length == 0) {
+          found = more;
+        } else if (more.length > 0) {
+          int length = found.length;
+          found = Arrays.copyOf(found, length + more.length);
+          System.arraycopy(more, 0, found, length, more.length);
+          merged = true;
+        }
+      }
+    }
+    if (merged) {
+      // Each country's rows are ascending, but they interleave in the table
+      Arrays.sort(found);
+    }
+    return found;
+  }
+
+  /**
+   * Find every row whose postal code starts with a prefix, compared in
+   * normalized form.  Leading zeros aren't restored, since a prefix is
+   * shorter than a code by nature.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param prefix The start of the postal codes to find
+   * @return The matching rows, in ascending order.
+   */
+  int[] rowsWithPrefix(String countryCode, String prefix) {
+    String key = normalize(prefix, 0);
+    // Sorts after every code that starts with the key
+    String after = key + Character.MAX_VALUE;
+    int[] starts = new int[countries.length];
+    int[] ends = new int[countries.length];
+    for (int country = 0; country < countries.length; country++) {
+      if (countryCode == null || countryCode.equalsIgnoreCase(countries[country])) {
+        starts[country] = lowerBound(country, key);
+        ends[country] = lowerBound(country, after);
+      }
+    }
+    return gather(starts, ends);
+  }
+
+  /**
+   * Find every row whose postal code lies in a range, compared in
+   * normalized form.  Codes are ordered as strings, which for countries
+   * whose codes are all digits of one length is their numeric order.
+   * @param countryCode The country to search, or {@code null} for all
+   * @param from The lowest postal code to find
+   * @param to The highest postal code to find
+   * @return The matching rows, in ascending order.
+   */
+  int[] rowsInRange(String countryCode, String from, String to) {
+    int[] starts = new int[countries.length];
+    int[] ends = new int[countries.length];
+    for (int country = 0; country < countries.length; country++) {
+      if (countryCode == null || countryCode.equalsIgnoreCase(countries[country])) {
+        String low = normalize(from, widths[country]);
+        String high = normalize(to, widths[country]);
+        starts[country] = lowerBound(country, low);
+        ends[country] = Math.max(starts[country], lowerBound(country, high + Character.MIN_VALUE));
+      }
+    }
+    return gather(starts, ends);
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private int[] rows(int country, String code) {
+    int mask = slots.length - 1;
+    for (int slot = hash(country, code) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+      int g = slots[slot];
+      if (groupCountry[g] == country && groupCode[g].equals(code)) {
+        return Arrays.copyOfRange(rows, offsets[g], offsets[g + 1]);
+      }
+    }
+    return new int[0];
+  }
+
+  /**
+   * Find the first of a country's groups whose code isn't below a key.
+   * @return An index into the sorted groups.
+   */
+  private int lowerBound(int country, String key) {
+    int low = countryStart[country];
+    int high = countryStart[country + 1];
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (groupCode[sorted[mid]].compareTo(key) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Collect the rows of every group from sorted[starts[c]] to sorted[ends[c]]
+   * for each country c.
+   * @return The rows, in ascending order.
+   */
+  private int[] gather(int[] starts, int[] ends) {
+    int total = 0;
+    int groups = 0;
+    for (int country = 0; country < starts.length; country++) {
+      for (int i = starts[country]; i < ends[country]; i++) {
+        total += offsets[sorted[i] + 1] - offsets[sorted[i]];
+        groups++;
+      }
+    }
+
+    int[] found = new int[total];
+    int n = 0;
+    for (int country = 0; country < starts.length; country++) {
+      for (int i = starts[country]; i < ends[country]; i++) {
+        int g = sorted[i];
+        System.arraycopy(rows, offsets[g], found, n, offsets[g + 1] - offsets[g]);
+        n += offsets[g + 1] - offsets[g];
+      }
+    }
+    if (groups > 1) {
+      // Each group's rows are ascending, but groups interleave in the table
+      Arrays.sort(found);
+    }
+    return found;
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+}
@@ -7,10 +7,23 @@
 package org.quickgeo;
 
 import com.darkcorner.minotaur.util.GeoMath;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -22,9 +35,13 @@ import javax.annotation.concurrent.ThreadSafe;
  * 
  * Instances of this class are expensive to instantiate and store, so only one
  * per VM is advisable. To encourage this. all instances of PostalDb must be
- * obtained through a {@link PostalDbFactory}.  The PostalDbFactory uses
- * a static initializer to ensure that only once instance of PostalDb is 
- * created per VM.
+ * obtained through a {@link PostalDbFactory}.  The PostalDbFactory ensures
+ * that only once instance of PostalDb is created per VM.
+ * 
+ * Places are held in one or more partitions.  An eagerly loaded database
+ * keeps every place in a single partition, while a lazily loaded one keeps a
+ * partition per country that is only parsed the first time a query can
+ * touch it.  See {@link PostalDbFactory#LAZY_PROPERTY}.
  * 
  * @since 0.1.0
  * @author Jason Nichols (jason@kickroot.com)
@@ -33,6 +50,11 @@ import javax.annotation.concurrent.ThreadSafe;
 @ThreadSafe
 public final class PostalDb {
   
+  /**
+   * A latitude/longitude aligned rectangle, such as a bounding box or a map
+   * viewport.  Rectangles do not wrap around the antimeridian, so a viewport
+   * that crosses it should be queried as two rectangles.
+   */
   public static final class GeoRect {
   
     private final double topLeftLat;
@@ -40,7 +62,16 @@ public final class PostalDb {
     private final double bottomRightLat;
     private final double bottomRightLon;    
     
-    private GeoRect(double topLeftLat, double topLeftLon, double bottomRightLat,
+    /**
+     * Create a new rectangle from its top left (north west) and bottom right
+     * (south east) corners.
+     * @param topLeftLat The northern edge of the rectangle
+     * @param topLeftLon The western edge of the rectangle
+     * @param bottomRightLat The southern edge of the rectangle
+     * @param bottomRightLon The eastern edge of the rectangle
+     * @since 0.1.1
+     */
+    public GeoRect(double topLeftLat, double topLeftLon, double bottomRightLat,
             double bottomRightLon) {
       this.topLeftLat = topLeftLat;
       this.topLeftLon = topLeftLon;
@@ -48,11 +79,24 @@ public final class PostalDb {
       this.bottomRightLon = bottomRightLon;
     }
     
-    private boolean contains(Place p) {
+    /**
+     * Test whether a place lies strictly inside this rectangle.
+     * @param p The place to test
+     * @return {@code true} if the place is inside the rectangle.
+     * @since 0.1.1
+     */
+    public boolean contains(Place p) {
       return contains(p.getLatitude(), p.getLongitude());
     }
     
-    private boolean contains(double latitude, double longitude) {
+    /**
+     * Test whether a set of coordinates lies strictly inside this rectangle.
+     * @param latitude The latitude to test
+     * @param longitude The longitude to test
+     * @return {@code true} if the coordinates are inside the rectangle.
+     * @since 0.1.1
+     */
+    public boolean contains(double latitude, double longitude) {
       return (topLeftLat > latitude && latitude > bottomRightLat) 
               && (topLeftLon < longitude && longitude < bottomRightLon );
     }    
@@ -74,23 +118,137 @@ public final class PostalDb {
     }
   }
   
+  /**
+   * A place name suggested for a prefix, along with its country and the
+   * number of postal codes it covers there.
+   * @since 0.1.1
+   */
+  public static final class Suggestion {
+    
+    private final String name;
+    private final String countryCode;
+    private final int postalCodeCount;
+    
+    Suggestion(String name, String countryCode, int postalCodeCount) {
+      this.name = name;
+      this.countryCode = countryCode;
+      this.postalCodeCount = postalCodeCount;
+    }
+    
+    /**
+     * Get the name as it is written in the data.  Names that only differ in
+     * case or accents are suggested once, under the first one stored.
+     */
+    public String getName() {
+      return name;
+    }
+    
+    public String getCountryCode() {
+      return countryCode;
+    }
+    
+    public int getPostalCodeCount() {
+      return postalCodeCount;
+    }
+  }
+  
+  /**
+   * The spatial index used to answer radius queries.
+   * @since 0.1.1
+   */
+  public enum IndexMode {
+    
+    /**
+     * A latitude/longitude grid.  Places are first filtered by the bounding
+     * box of the search, then trimmed to the exact radius.  This is the
+     * default mode.
+     */
+    GRID,
+    
+    /**
+     * Hierarchical cube face cell ids stored in one sorted array.  The
+     * spherical cap of the search is covered directly, so every place within
+     * the radius is returned, including near the poles and across the
+     * antimeridian where a bounding box breaks down.
+     */
+    CELL
+  }
+  
   ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
   private static final double MEAN_RADIUS_IN_MILES = 3963.191d;
   
   private static final double MEAN_RADIUS_IN_KILOMETERS = 6378.137d; 
   
+  // Characters with a meaning in a regex, outside of a character class
+  private static final String REGEX_CONSTRUCTS = "\\^$.|?*+()[]{}";
+  
+  // Suggestions covering the most postal codes first, then by name and
+  // country, as each partition ranks them
+  private static final Comparator<Suggestion> SUGGESTION_ORDER = new Comparator<Suggestion>() {
+    @Override
+    public int compare(Suggestion a, Suggestion b) {
+      if (a.getPostalCodeCount() != b.getPostalCodeCount()) {
+        return a.getPostalCodeCount() > b.getPostalCodeCount() ? -1 : 1;
+      }
+      return compareNames(a, b);
+    }
+  };
+  
   ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  /**
+   * Restore a database written by {@link #writeSnapshot(Path)}.
+   * @param path The snapshot to read
+   * @param sources The sources the database must have been loaded from, as
+   * written by {@link #writeSnapshot(Path, String)}, or {@code null} to
+   * accept any
+   * @return The restored database.
+   * @throws IOException If the snapshot can't be read, is corrupt, was
+   * written by an incompatible version or was loaded from other sources.
+   */
+  static PostalDb readSnapshot(Path path, String sources) throws IOException {
+    Snapshot.Input in = Snapshot.open(path, sources);
+    try {
+      IndexMode indexMode = IndexMode.valueOf(in.readString());
+      int count = in.readInt();
+      List<LazyPartition> partitions = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        String countryCode = in.readString();
+        GeoRect bounds = in.readByte() == 0 ? null
+                : new GeoRect(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+        boolean delta = in.readByte() != 0;
+        partitions.add(new LazyPartition(new Partition(in), countryCode, bounds, delta));
+      }
+      return new PostalDb(partitions, indexMode);
+    } catch (RuntimeException ex) {
+      // A length or name the checksum happened to pass
+      throw new IOException("Corrupt snapshot : " + path, ex);
+    }
+  }
     
   //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
-  private final LinkedHashSet<Place> places;
+  private final List<LazyPartition> partitions;
+  
+  private final IndexMode indexMode;
   
   /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
   
   protected PostalDb(LinkedHashSet<Place> places) {
-    this.places = places;
-    Logger.getLogger(getClass().getName()).log(Level.INFO, "Initialized DB with {0} zips", places.size());
+    this(new HeapPlaceTable(places.toArray(new Place[places.size()])), IndexMode.GRID);
+  }
+  
+  protected PostalDb(PlaceTable table, IndexMode indexMode) {
+    this.partitions = ImmutableList.of(new LazyPartition(new Partition(table, indexMode)));
+    this.indexMode = indexMode;
+    Logger.getLogger(getClass().getName()).log(Level.INFO, "Initialized DB with {0} zips", table.size());
+  }
+  
+  protected PostalDb(List<LazyPartition> partitions, IndexMode indexMode) {
+    this.partitions = ImmutableList.copyOf(partitions);
+    this.indexMode = indexMode;
+    Logger.getLogger(getClass().getName()).log(Level.INFO, "Initialized DB with {0} partitions", partitions.size());
   }
   
   ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\   
@@ -106,32 +264,8 @@ public final class PostalDb {
    * @return A list of all places within the specified range.
    */
   public List<Place> withinMilesOf(double latitude, double longitude, int rangeInMiles) {
-    
-    List<Place> list = Lists.newArrayList();
-    
-    GeoRect rect = boundingBoxInMiles(latitude, longitude, rangeInMiles);
-    
-    // Iterate through all Places and find those that fit within the box. This 
-    // will eliminate most places out of the specified range very quickly.  A 
-    // closer check is done on the next pass below that gives a definitive answer.
-    for (Place p : places) {
-      if (rect.contains(p)) {
-        list.add(p);
-      }
-    }
-    
-    
-    // Trim to exact cutoff
-    Iterator<Place> iter = list.iterator();
-    while(iter.hasNext()) {
-      Place p = iter.next();
-      if (distanceInMiles(latitude, longitude, p.getLatitude(), p.getLongitude()) > rangeInMiles) {
-        iter.remove();
-      }
-    }
-    
-    return list;
-    
+    GeoRect rect = indexMode == IndexMode.GRID ? boundingBoxInMiles(latitude, longitude, rangeInMiles) : null;
+    return within(latitude, longitude, rangeInMiles, MEAN_RADIUS_IN_MILES, rect);
   }
   
   /**
@@ -158,30 +292,8 @@ public final class PostalDb {
    * @return A list of all places within the specified range.
    */  
   public List<Place> withinKilometersOf(double latitude, double longitude, int rangeInKilometers) {
-    
-    List<Place> list = Lists.newArrayList();
-    
-    GeoRect rect = boundingBoxInKilometers(latitude, longitude, rangeInKilometers);
-    
-    // Iterate through all Places and find those that fit within the box. This 
-    // will eliminate most places out of the specified range very quickly.  A 
-    // closer check is done on the next pass below that gives a definitive answer.
-    for (Place p : places) {
-      if (rect.contains(p)) {
-        list.add(p);
-      }
-    }
-        
-    // Trim to exact cutoff
-    Iterator<Place> iter = list.iterator();
-    while(iter.hasNext()) {
-      Place p = iter.next();
-      if (distanceInKilometers(latitude, longitude, p.getLatitude(), p.getLongitude()) > rangeInKilometers) {
-        iter.remove();
-      }
-    }
-    
-    return list;    
+    GeoRect rect = indexMode == IndexMode.GRID ? boundingBoxInKilometers(latitude, longitude, rangeInKilometers) : null;
+    return within(latitude, longitude, rangeInKilometers, MEAN_RADIUS_IN_KILOMETERS, rect);
   }
   
   /**
@@ -198,6 +310,102 @@ public final class PostalDb {
   }
   
   
+  /**
+   * Search the in-memory database for all places inside the supplied
+   * rectangle, such as the viewport of a map.
+   * 
+   * @param rect The rectangle to search
+   * @since 0.1.1
+   * @return A list of all places strictly inside the rectangle.
+   */
+  public List<Place> withinRect(GeoRect rect) {
+    List<Place> list = Lists.newArrayList();
+    for (LazyPartition partition : partitions) {
+      if (partition.overlaps(rect)) {
+        list.addAll(partition.get().within(rect));
+      }
+    }
+    return list;
+  }
+  
+  /**
+   * Search the in-memory database for the places closest to the supplied
+   * origin.
+   * 
+   * @param latitude The latitude of the origin
+   * @param longitude The longitude of the origin
+   * @param k The maximum number of places to return.
+   * @since 0.1.1
+   * @return Up to {@code k} places, sorted by great circle distance from the
+   * origin with the closest first.
+   */
+  public List<Place> nearest(double latitude, double longitude, int k) {
+    if (partitions.size() == 1) {
+      return partitions.get(0).get().nearest(latitude, longitude, k);
+    }
+    if (k <= 0) {
+      return Lists.newArrayList();
+    }
+    
+    // Visit the partitions closest first, and stop as soon as the next one
+    // is known to be further away than the k-th best place found so far
+    final double[] distances = new double[partitions.size()];
+    List<Integer> order = Lists.newArrayList();
+    for (int i = 0; i < distances.length; i++) {
+      distances[i] = partitions.get(i).distanceTo(latitude, longitude);
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(distances[a], distances[b]);
+      }
+    });
+    
+    double[] target = unitVector(latitude, longitude);
+    List<Place> best = Lists.newArrayList();
+    for (int i : order) {
+      // Partition distances are great circle angles, so convert the chord
+      if (best.size() >= k && distances[i] > 2 * Math.asin(Math.sqrt(chord(target, best.get(k - 1))) / 2)) {
+        break;
+      }
+      best.addAll(partitions.get(i).get().nearest(latitude, longitude, k));
+      sortByDistance(target, best);
+      if (best.size() > k) {
+        best = Lists.newArrayList(best.subList(0, k));
+      }
+    }
+    return best;
+  }
+  
+  /**
+   * Search the in-memory database for the places closest to the supplied
+   * origin.
+   * 
+   * @param p The place to use as the origin for the search
+   * @param k The maximum number of places to return.
+   * @since 0.1.1
+   * @return Up to {@code k} places, sorted by great circle distance from the
+   * origin with the closest first.  The origin itself is included if it is
+   * stored by this database.
+   */
+  public List<Place> nearest(Place p, int k) {
+    return nearest(p.getLatitude(), p.getLongitude(), k);
+  }
+  
+  /**
+   * Find the place closest to the supplied coordinates, such as a GPS fix.
+   * 
+   * @param latitude The latitude to look up
+   * @param longitude The longitude to look up
+   * @since 0.1.1
+   * @return The closest {@link Place}, or {@code null} if the database is empty.
+   */
+  public Place reverseGeocode(double latitude, double longitude) {
+    List<Place> closest = nearest(latitude, longitude, 1);
+    return closest.isEmpty() ? null : closest.get(0);
+  }
+  
   /**
    * Search the in-memory database for all places matching the given postal code.
    * @param regex A regex pattern of the postal codes to search.  
@@ -205,19 +413,128 @@ public final class PostalDb {
    * @since 0.1.0
    */
   public List<Place> byPostalCode(String regex) {
+    return byPostalCode(null, regex);
+  }
+  
+  /**
+   * Search the in-memory database for all places in a country matching the
+   * given postal code.  A lazily loaded database only loads that country.
+   * @param countryCode The ISO country code to search, such as {@code US}
+   * @param regex A regex pattern of the postal codes to search.  
+   * @return A list of {@link Place Places} matching the supplied postal code pattern.
+   * @since 0.1.1
+   */
+  public List<Place> byPostalCode(String countryCode, String regex) {
     List<Place> list = Lists.newArrayList();
     
+    // Most lookups are for a plain code or a prefix of one, which the postal
+    // code index answers without compiling a pattern or scanning every place
+    String literal = literal(regex);
+    if (literal != null) {
+      for (LazyPartition partition : partitions) {
+        if (countryCode == null || partition.covers(countryCode)) {
+          list.addAll(partition.get().byLiteralPostalCode(literal, countryCode));
+        }
+      }
+      return list;
+    }
+    String prefix = regex.endsWith(".*") ? literal(regex.substring(0, regex.length() - 2)) : null;
+    if (prefix != null) {
+      for (LazyPartition partition : partitions) {
+        if (countryCode == null || partition.covers(countryCode)) {
+          list.addAll(partition.get().byLiteralPostalCodePrefix(prefix, countryCode));
+        }
+      }
+      return list;
+    }
+    
     Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
     
-    for (Place place : places) {
-      if (p.matcher(place.getPostalCode()).matches()) {
-        list.add(place);
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        list.addAll(partition.get().byPostalCode(p, countryCode));
       }
     }
         
     return list;    
   }
   
+  /**
+   * Look up a postal code exactly, through a hash index rather than a scan.
+   * The code is compared in a normalized form that ignores case, spaces and
+   * hyphens, and in countries whose codes are all digits of one length,
+   * such as the US, missing leading zeros, so {@code "sw1a1aa"} finds
+   * {@code SW1A 1AA} and {@code "2108"} finds {@code 02108}.
+   * @param countryCode The ISO country code to search, such as {@code US},
+   * or {@code null} for all countries
+   * @param postalCode The postal code to look up, which is not a regex
+   * @return A list of {@link Place Places} with the postal code.
+   * @since 0.1.1
+   */
+  public List<Place> byExactPostalCode(String countryCode, String postalCode) {
+    List<Place> list = Lists.newArrayList();
+    
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        list.addAll(partition.get().byPostalCode(countryCode, postalCode));
+      }
+    }
+    
+    return list;
+  }
+  
+  /**
+   * Find every place whose postal code starts with a prefix, such as a US
+   * sectional center like {@code "981"} or a UK outward code like
+   * {@code "SW1A"}, by binary searching a sorted dictionary of the codes
+   * rather than scanning.  Case, spaces and hyphens are ignored, as they are
+   * by {@link #byExactPostalCode(String, String)}.
+   * @param countryCode The ISO country code to search, such as {@code US},
+   * or {@code null} for all countries
+   * @param prefix The start of the postal codes to find, which is not a
+   * regex
+   * @return A list of {@link Place Places} whose postal code has the prefix.
+   * @since 0.1.1
+   */
+  public List<Place> byPostalCodePrefix(String countryCode, String prefix) {
+    List<Place> list = Lists.newArrayList();
+    
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        list.addAll(partition.get().byPostalCodePrefix(countryCode, prefix));
+      }
+    }
+    
+    return list;
+  }
+  
+  /**
+   * Find every place whose postal code lies in a range, such as the ZIP
+   * codes {@code "98100"} to {@code "98199"}, by binary searching a sorted
+   * dictionary of the codes rather than scanning.  Codes are compared as
+   * strings once case, spaces and hyphens are ignored, which for countries
+   * whose codes are all digits of one length, such as the US, is their
+   * numeric order, and there missing leading zeros are restored as well.
+   * @param countryCode The ISO country code to search, such as {@code US},
+   * or {@code null} for all countries
+   * @param from The lowest postal code to find
+   * @param to The highest postal code to find
+   * @return A list of {@link Place Places} whose postal code is between
+   * {@code from} and {@code to}, both included.
+   * @since 0.1.1
+   */
+  public List<Place> byPostalCodeRange(String countryCode, String from, String to) {
+    List<Place> list = Lists.newArrayList();
+    
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        list.addAll(partition.get().byPostalCodeRange(countryCode, from, to));
+      }
+    }
+    
+    return list;
+  }
+  
   /**
    * Search the in-memory database for all places matching the given name.
    * @param regex A regex pattern of places to search.  
@@ -225,20 +542,272 @@ public final class PostalDb {
    * @since 0.1.0
    */  
   public List<Place> byName(String regex) {
+    return byName(null, regex);
+  }
+  
+  /**
+   * Search the in-memory database for all places in a country matching the
+   * given name.  A lazily loaded database only loads that country.
+   * 
+   * The regex is first turned into the trigrams a matching name must hold,
+   * and only the names holding them are matched against it, so a regex with
+   * a few literal characters in it is answered without a scan.  A regex
+   * that can't be analysed that way is matched against every name.
+   * @param countryCode The ISO country code to search, such as {@code US}
+   * @param regex A regex pattern of places to search.  
+   * @return A list of {@link Place Places} matching the supplied place name pattern.
+   * @since 0.1.1
+   */  
+  public List<Place> byName(String countryCode, String regex) {
     List<Place> list = Lists.newArrayList();
     
     Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    TrigramQuery query = TrigramQuery.of(regex);
     
-    for (Place place : places) {
-      if (p.matcher(place.getPlaceName()).matches()) {
-        list.add(place);
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        list.addAll(partition.get().byName(p, query, countryCode));
       }
     }
     
-    
     return list;
   }
   
+  /**
+   * Suggest the place names starting with a prefix, such as for completing a
+   * search box as it is typed into.  The prefix is compared lower cased and
+   * without accents, so {@code "zur"} suggests Zürich, and the names come
+   * from a sorted dictionary rather than a scan.
+   * @param prefix The start of the names to suggest
+   * @param limit The maximum number of suggestions
+   * @return Up to {@code limit} suggestions, those covering the most postal
+   * codes first.  A name is suggested once for each country it is in.
+   * @since 0.1.1
+   */
+  public List<Suggestion> suggest(String prefix, int limit) {
+    return suggest(null, prefix, limit);
+  }
+  
+  /**
+   * Suggest the place names in a country starting with a prefix.  A lazily
+   * loaded database only loads that country.
+   * @param countryCode The ISO country code to search, such as {@code US}
+   * @param prefix The start of the names to suggest
+   * @param limit The maximum number of suggestions
+   * @return Up to {@code limit} suggestions, those covering the most postal
+   * codes first.
+   * @since 0.1.1
+   */
+  public List<Suggestion> suggest(String countryCode, String prefix, int limit) {
+    if (limit <= 0) {
+      return Lists.newArrayList();
+    }
+    
+    List<Partition> covering = Lists.newArrayList();
+    for (LazyPartition partition : partitions) {
+      if (countryCode == null || partition.covers(countryCode)) {
+        covering.add(partition.get());
+      }
+    }
+    if (covering.size() == 1) {
+      return covering.get(0).suggest(prefix, countryCode, limit);
+    }
+    
+    // A name may have rows in several partitions, such as after a delta, so
+    // its count is summed over every partition holding its country.  The
+    // partitions' suggestions are taken best first together, always from
+    // the one whose next could rank highest, until no name still to come
+    // could rank among the best found.
+    int n = covering.size();
+    NameSuggester.Cursor[] cursors = new NameSuggester.Cursor[n];
+    Suggestion[] last = new Suggestion[n];
+    boolean[] done = new boolean[n];
+    Map<String, List<Integer>> holders = Maps.newHashMap();
+    for (int i = 0; i < n; i++) {
+      cursors[i] = covering.get(i).suggestionCursor(prefix, countryCode);
+      for (String code : covering.get(i).suggestionCountries()) {
+        if (countryCode == null || countryCode.equalsIgnoreCase(code)) {
+          List<Integer> holding = holders.get(code);
+          if (holding == null) {
+            holding = Lists.newArrayList();
+            holders.put(code, holding);
+          }
+          holding.add(i);
+        }
+      }
+    }
+    
+    Set<String> seen = Sets.newHashSet();
+    TreeSet<Suggestion> best = new TreeSet<Suggestion>(SUGGESTION_ORDER);
+    while (best.size() < limit || !isSettled(best.last(), holders, cursors, last, done)) {
+      int pick = -1;
+      for (int i = 0; i < n; i++) {
+        if (!done[i] && (pick < 0 || cursors[i].getRank() > cursors[pick].getRank())) {
+          pick = i;
+        }
+      }
+      if (pick < 0) {
+        break;
+      }
+      int entry = cursors[pick].next();
+      if (entry < 0) {
+        done[pick] = true;
+        continue;
+      }
+      
+      Suggestion taken = covering.get(pick).suggestion(entry);
+      last[pick] = taken;
+      String code = Strings.nullToEmpty(taken.getCountryCode());
+      if (!seen.add(code + "\t" + NameSuggester.normalize(taken.getName()))) {
+        continue;
+      }
+      String name = null;
+      int count = 0;
+      for (int i : holders.get(code)) {
+        Suggestion part = covering.get(i).suggestion(taken.getName(), code);
+        if (part != null) {
+          name = name == null ? part.getName() : name;
+          count += part.getPostalCodeCount();
+        }
+      }
+      best.add(new Suggestion(name, taken.getCountryCode(), count));
+      if (best.size() > limit) {
+        best.pollLast();
+      }
+    }
+    return Lists.newArrayList(best);
+  }
+  
+  /**
+   * Apply the changes between two exports of the postal data, producing a new
+   * database.  This database is left as it is, and the new one shares every
+   * table and index with it: removed and changed rows are masked out of the
+   * existing partitions, and the added rows and the new values of changed
+   * rows are indexed into a small partition per country, so the cost is
+   * proportional to the size of the deltas rather than of the data.  Deltas
+   * are usually published with {@link PostalDbHolder#apply(PlaceDelta)},
+   * which applies them to the holder's current database and swaps the
+   * result in.
+   * 
+   * The rows a delta adds to a country are merged with those earlier deltas
+   * added to it, rebuilding that country's delta partition, so the number
+   * of partitions stays bounded by the number of countries however many
+   * deltas are applied.  Partitions of a lazily loaded database are only
+   * loaded if the delta removes rows of their country.
+   * 
+   * @param delta The changes to apply
+   * @return A new database holding the current rows.
+   * @since 0.1.1
+   */
+  public PostalDb applyDelta(PlaceDelta delta) {
+    List<Place> removals = delta.removals();
+    boolean[] found = new boolean[removals.size()];
+    
+    List<LazyPartition> next = Lists.newArrayList();
+    for (LazyPartition partition : partitions) {
+      BitSet rows = new BitSet();
+      Partition loaded = null;
+      for (int i = 0; i < found.length; i++) {
+        Place p = removals.get(i);
+        if (found[i] || !partition.covers(p.getCountryCode()) || !partition.overlaps(around(p))) {
+          continue;
+        }
+        if (loaded == null) {
+          loaded = partition.get();
+        }
+        int row = loaded.find(p, rows);
+        if (row >= 0) {
+          rows.set(row);
+          found[i] = true;
+        }
+      }
+      
+      // Untouched partitions are shared as they are, loaded or not
+      next.add(rows.isEmpty() ? partition
+              : new LazyPartition(loaded.without(rows), partition.getCountryCode(), partition.getBounds(),
+                      partition.isDelta()));
+    }
+    
+    int missing = 0;
+    for (boolean f : found) {
+      missing += f ? 0 : 1;
+    }
+    if (missing > 0) {
+      Logger.getLogger(getClass().getName()).log(Level.WARNING, "{0} removed rows weren''t in the database", missing);
+    }
+    
+    Map<String, List<Place>> additions = Maps.newLinkedHashMap();
+    for (Place p : delta.additions()) {
+      List<Place> list = additions.get(p.getCountryCode());
+      if (list == null) {
+        list = Lists.newArrayList();
+        additions.put(p.getCountryCode(), list);
+      }
+      list.add(p);
+    }
+    
+    for (Map.Entry<String, List<Place>> entry : additions.entrySet()) {
+      List<Place> places = Lists.newArrayList();
+      for (Iterator<LazyPartition> it = next.iterator(); it.hasNext();) {
+        LazyPartition partition = it.next();
+        if (partition.isDelta() && Objects.equal(partition.getCountryCode(), entry.getKey())) {
+          places.addAll(partition.get().places());
+          it.remove();
+        }
+      }
+      places.addAll(entry.getValue());
+      next.add(new LazyPartition(Partition.of(places, indexMode), entry.getKey(), bounds(places), true));
+    }
+    
+    return new PostalDb(next, indexMode);
+  }
+  
+  /**
+   * Write this database, including its spatial indexes, to a snapshot file
+   * that {@link PostalDbFactory#fromSnapshot(Path)} restores without parsing
+   * any source or building any index.  The snapshot is versioned and
+   * checksummed, and is written next to its final location before being
+   * moved into place, so a reader never sees a partial file.  Any partition
+   * of a lazily loaded database that isn't loaded yet is loaded first.
+   * 
+   * @param path The snapshot file to write
+   * @throws IOException If the snapshot can't be written.
+   * @since 0.1.1
+   */
+  public void writeSnapshot(Path path) throws IOException {
+    writeSnapshot(path, null);
+  }
+  
+  /**
+   * Write a snapshot, recording the sources this database was loaded from.
+   * @param path The snapshot file to write
+   * @param sources An identity of the sources, or {@code null} if unknown
+   * @throws IOException If the snapshot can't be written.
+   */
+  void writeSnapshot(Path path, String sources) throws IOException {
+    Snapshot.Output out = Snapshot.create(path, sources);
+    try {
+      out.writeString(indexMode.name());
+      out.writeInt(partitions.size());
+      for (LazyPartition partition : partitions) {
+        out.writeString(partition.getCountryCode());
+        GeoRect bounds = partition.getBounds();
+        out.writeByte(bounds == null ? 0 : 1);
+        if (bounds != null) {
+          out.writeDouble(bounds.getTopLeftLat());
+          out.writeDouble(bounds.getTopLeftLon());
+          out.writeDouble(bounds.getBottomRightLat());
+          out.writeDouble(bounds.getBottomRightLon());
+        }
+        out.writeByte(partition.isDelta() ? 1 : 0);
+        partition.get().write(out);
+      }
+      out.commit();
+    } finally {
+      out.close();
+    }
+  }
+  
   //------------------------ Implements:
   
   //------------------------ Overrides:
@@ -247,6 +816,128 @@ public final class PostalDb {
   
   //---------------------------- Utility Methods ------------------------------
   
+  private List<Place> within(double latitude, double longitude, int range, double radius, GeoRect rect) {
+    List<Place> list = Lists.newArrayList();
+    for (LazyPartition partition : partitions) {
+      // Partitions known to be out of range are never loaded
+      if (partition.near(latitude, longitude, range / radius)) {
+        list.addAll(partition.get().within(latitude, longitude, range, radius, rect));
+      }
+    }
+    return list;
+  }
+  
+  /**
+   * Get the text a regex matches if it holds no regex constructs at all, or
+   * is a single {@code \Q...\E} quote as written by {@link Pattern#quote}.
+   * @return The literal text, or {@code null} if the regex needs a matcher.
+   */
+  private static String literal(String regex) {
+    if (regex.startsWith("\\Q") && regex.endsWith("\\E") && regex.length() >= 4
+            && regex.indexOf("\\E") == regex.length() - 2) {
+      return regex.substring(2, regex.length() - 2);
+    }
+    for (int i = 0; i < regex.length(); i++) {
+      if (REGEX_CONSTRUCTS.indexOf(regex.charAt(i)) >= 0) {
+        return null;
+      }
+    }
+    return regex;
+  }
+  
+  /**
+   * Order suggestions by name, lower cased and without accents, and then by
+   * country code.
+   */
+  private static int compareNames(Suggestion a, Suggestion b) {
+    int byName = NameSuggester.normalize(a.getName()).compareTo(NameSuggester.normalize(b.getName()));
+    return byName != 0 ? byName
+            : Strings.nullToEmpty(a.getCountryCode()).compareTo(Strings.nullToEmpty(b.getCountryCode()));
+  }
+  
+  /**
+   * Check whether a suggestion is certain to rank ahead of every name the
+   * cursors have yet to take.  A name of a country still to come has at
+   * most, in each partition holding the country, the rank its cursor last
+   * took, and if it has exactly that in each, it comes after every name
+   * they took.
+   */
+  private static boolean isSettled(Suggestion worst, Map<String, List<Integer>> holders,
+          NameSuggester.Cursor[] cursors, Suggestion[] last, boolean[] done) {
+    for (List<Integer> holding : holders.values()) {
+      long bound = 0;
+      Suggestion latest = null;
+      for (int i : holding) {
+        if (!done[i]) {
+          bound += cursors[i].getRank();
+          if (last[i] != null && (latest == null || compareNames(last[i], latest) > 0)) {
+            latest = last[i];
+          }
+        }
+      }
+      if (worst.getPostalCodeCount() < bound
+              || (worst.getPostalCodeCount() == bound && (latest == null || compareNames(worst, latest) > 0))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * A rectangle strictly containing a place, for testing partition bounds.
+   */
+  private static GeoRect around(Place p) {
+    double slack = 1e-6;
+    return new GeoRect(p.getLatitude() + slack, p.getLongitude() - slack,
+            p.getLatitude() - slack, p.getLongitude() + slack);
+  }
+  
+  /**
+   * The rectangle enclosing a non empty list of places.
+   */
+  private static GeoRect bounds(List<Place> places) {
+    double north = Double.NEGATIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double south = Double.POSITIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+    for (Place p : places) {
+      north = Math.max(north, p.getLatitude());
+      west = Math.min(west, p.getLongitude());
+      south = Math.min(south, p.getLatitude());
+      east = Math.max(east, p.getLongitude());
+    }
+    return new GeoRect(north, west, south, east);
+  }
+  
+  /**
+   * Stable sort places by distance from the unit vector of an origin.  The
+   * squared chord distance between unit vectors is compared, exactly as the
+   * KD-tree does, so places merged from several partitions keep the order
+   * each one found.
+   */
+  private static void sortByDistance(final double[] target, List<Place> places) {
+    Collections.sort(places, new Comparator<Place>() {
+      @Override
+      public int compare(Place a, Place b) {
+        return Double.compare(chord(target, a), chord(target, b));
+      }
+    });
+  }
+  
+  private static double chord(double[] target, Place p) {
+    double[] v = unitVector(p.getLatitude(), p.getLongitude());
+    double dx = v[0] - target[0];
+    double dy = v[1] - target[1];
+    double dz = v[2] - target[2];
+    return dx * dx + dy * dy + dz * dz;
+  }
+  
+  private static double[] unitVector(double latitude, double longitude) {
+    double lat = Math.toRadians(latitude);
+    double lon = Math.toRadians(longitude);
+    return new double[] {Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+  }
+  
   /**
    * Compute the distance in miles between two Places.
    * @param p1 The first place
@@ -348,11 +1039,24 @@ public final class PostalDb {
   //---------------------------- Property Methods -----------------------------     
   
   /**
-   * Get the number of {@link Place places} stored by this database.
+   * Get the spatial index used by this database to answer radius queries.
+   * @since 0.1.1
+   */
+  public IndexMode getIndexMode() {
+    return indexMode;
+  }
+  
+  /**
+   * Get the number of {@link Place places} stored by this database.  A
+   * lazily loaded database only counts the partitions loaded so far.
    * @since 0.1.0
    */
   public int getSize() {
-    return places.size();
+    int size = 0;
+    for (LazyPartition partition : partitions) {
+      size += partition.size();
+    }
+    return size;
   }
   
 }
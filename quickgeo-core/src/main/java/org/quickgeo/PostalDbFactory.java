@@ -6,11 +6,20 @@
 
 package org.quickgeo;
 
-import com.google.common.collect.Sets;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.LinkedHashSet;
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
 import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,25 +35,180 @@ public class PostalDbFactory {
 
   ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
+  /**
+   * System property naming the {@link PostalDb.IndexMode} used for radius
+   * queries, for example {@code -Dorg.quickgeo.indexMode=cell}.  Defaults to
+   * {@link PostalDb.IndexMode#GRID GRID}.
+   * @since 0.1.1
+   */
+  public static final String INDEX_MODE_PROPERTY = "org.quickgeo.indexMode";
+  
+  /**
+   * System property capping the number of threads used to parse postal
+   * sources, for example {@code -Dorg.quickgeo.loadThreads=2}.  Defaults to
+   * the number of available processors, and {@code 1} loads the sources one
+   * after another on a single worker thread.
+   * @since 0.1.1
+   */
+  public static final String LOAD_THREADS_PROPERTY = "org.quickgeo.loadThreads";
+  
+  /**
+   * System property that defers parsing each {@link PostalSource} until the
+   * first query that can touch it, for example {@code -Dorg.quickgeo.lazy=true}.
+   * Country scoped queries only load their country, and spatial queries only
+   * load the countries whose bounds are in range, so a deployment bundling
+   * every country but querying a few starts quickly and holds only those.
+   * Defaults to {@code false}, which loads every source up front.
+   * @since 0.1.1
+   */
+  public static final String LAZY_PROPERTY = "org.quickgeo.lazy";
+  
+  /**
+   * System property naming a store file that holds the places outside the
+   * heap, for example {@code -Dorg.quickgeo.storeFile=/var/cache/quickgeo.db}.
+   * The first JVM to start loads the sources as usual and writes the file,
+   * and every JVM then memory maps it, so the processes on a host share one
+   * copy of the data in the page cache.  A store built from a different set
+   * of sources or older data is rebuilt.  When set, {@link #LAZY_PROPERTY} is
+   * ignored.  It is not used by {@link #fromSources(List)}.
+   * @since 0.1.1
+   */
+  public static final String STORE_FILE_PROPERTY = "org.quickgeo.storeFile";
+  
+  /**
+   * System property naming a snapshot file, for example
+   * {@code -Dorg.quickgeo.snapshot=/var/cache/quickgeo.snapshot}.  If the
+   * file holds a valid snapshot the VM wide database is restored from it,
+   * indexes and all, without reading any {@link PostalSource}.  Otherwise
+   * the database is built as usual and then written to the file for the
+   * next start.  A snapshot always holds every place, and records the
+   * sources on the classpath and the checksum of their data, so one left
+   * over from other or older country modules is rebuilt.  When set, the
+   * other load properties only apply to the build that writes the snapshot.
+   * @since 0.1.1
+   */
+  public static final String SNAPSHOT_PROPERTY = "org.quickgeo.snapshot";
+  
   private static ServiceLoader<PostalSource> SERVICE_LOADER = ServiceLoader.load(PostalSource.class);
 
-  private static final PostalDb db = build();
+  private static final AtomicBoolean STARTED = new AtomicBoolean();
+  
+  private static final CompletableFuture<PostalDb> DB = new CompletableFuture<PostalDb>();
+  
+  private static final PostalDbHolder HOLDER = new PostalDbHolder(new Callable<PostalDb>() {
+    @Override
+    public PostalDb call() {
+      return build();
+    }
+  });
   
   ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
   /**
    * Returns a VM wide {@link PostalDb} instance.  Given that instantiating a PostalDb
-   * instance is resource intensive, a single instance is generated at class
-   * loading time with a static initializer and used throughout the VM.
+   * instance is resource intensive, a single instance is generated the first
+   * time one is asked for and used throughout the VM.  This method blocks
+   * until that instance has finished loading.
    * 
    * Since PostalDb instances are immutable, sharing a single instance amongst
-   * threads is perfectly safe, and in this case preferable.
+   * threads is perfectly safe, and in this case preferable.  Once the
+   * instance has been reloaded through {@link #getPostalDbHolder()}, the
+   * most recently loaded one is returned.
    * 
    * @return The previously generated PostalDb instance.
+   * @throws java.util.concurrent.CompletionException If the database could
+   * not be loaded, with the original failure as its cause.
    * @since 0.1.0
    */
   public static PostalDb getPostalDb() {
-    return db;
+    return getPostalDbAsync().join();
+  }
+  
+  /**
+   * Returns the VM wide {@link PostalDb} instance without blocking.  The
+   * first call starts loading the database on a background thread, so an
+   * application can call this at startup, carry on initializing, and gate
+   * its readiness checks on the returned future or on {@link #isReady()}.
+   * 
+   * @return A future completed with the shared PostalDb instance once it has
+   * loaded, or completed exceptionally if loading failed.
+   * @since 0.1.1
+   */
+  public static CompletableFuture<PostalDb> getPostalDbAsync() {
+    if (STARTED.compareAndSet(false, true)) {
+      Thread loader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            DB.complete(HOLDER.reload());
+          } catch (Throwable t) {
+            Logger.getLogger(PostalDbFactory.class.getName()).log(Level.SEVERE, "Couldn't load PostalDb", t);
+            DB.completeExceptionally(t);
+          }
+        }
+      }, "quickgeo-loader");
+      loader.setDaemon(true);
+      loader.start();
+    }
+    
+    // Hand out a dependent future so callers can't complete the shared one,
+    // completed with whichever instance is current once the first has loaded
+    return DB.thenApply(new Function<PostalDb, PostalDb>() {
+      @Override
+      public PostalDb apply(PostalDb db) {
+        return HOLDER.get();
+      }
+    });
+  }
+  
+  /**
+   * Returns the holder of the VM wide {@link PostalDb} instance, starting
+   * the first load if it hasn't started yet.  A delta published with
+   * {@link PostalDbHolder#apply(PlaceDelta)} is swapped in, and from then on
+   * {@link #getPostalDb()} returns the new instance, while queries already
+   * running finish against the old one.
+   * 
+   * Calling {@link PostalDbHolder#reloadAsync()} on it repeats the load of
+   * the {@link PostalSource PostalSources} on the classpath, or of the file
+   * named by {@link #SNAPSHOT_PROPERTY}.  The classpath doesn't change while
+   * the VM runs, so this only picks up a snapshot replaced by another
+   * process.  To load postal data from elsewhere, create a holder of your
+   * own whose loader calls {@link #fromSources(List)}.
+   * 
+   * @return The VM wide holder.
+   * @since 0.1.1
+   */
+  public static PostalDbHolder getPostalDbHolder() {
+    getPostalDbAsync();
+    return HOLDER;
+  }
+  
+  /**
+   * Check whether the VM wide {@link PostalDb} instance has finished loading,
+   * without blocking or starting a load.
+   * 
+   * @return {@code true} once {@link #getPostalDb()} will return without
+   * blocking.
+   * @since 0.1.1
+   */
+  public static boolean isReady() {
+    return DB.isDone() && !DB.isCompletedExceptionally();
+  }
+  
+  /**
+   * Restores a new PostalDb instance from a snapshot written by
+   * {@link PostalDb#writeSnapshot(Path)}.  Nothing is parsed
+   * and no index is rebuilt; every table and index is copied out of the file
+   * with bulk reads.  The instance is independent of the VM wide one.
+   * 
+   * @param path The snapshot file to read
+   * @return A new PostalDb instance.
+   * @throws IOException If the snapshot can't be read, fails its checksum or
+   * was written by an incompatible version.
+   * @since 0.1.1
+   */
+  public static PostalDb fromSnapshot(Path path) throws IOException {
+    return PostalDb.readSnapshot(path, null);
   }
   
   /**
@@ -57,29 +221,186 @@ public class PostalDbFactory {
    * @since 0.1.0
    */
   private static PostalDb build() {
-
-    LinkedHashSet<Place> set = Sets.newLinkedHashSet();
     
-    for (PostalSource source : SERVICE_LOADER) {
+    String snapshot = System.getProperty(SNAPSHOT_PROPERTY);
+    if (snapshot != null) {
+      return snapshotDb(Paths.get(snapshot));
+    }
+    
+    return load(classpathSources(), true);
+  }
+  
+  /**
+   * Builds a new PostalDb instance from a given list of sources instead of
+   * those on the classpath, honouring the same system properties as the VM
+   * wide instance apart from {@link #SNAPSHOT_PROPERTY} and
+   * {@link #STORE_FILE_PROPERTY}.  The places are always read from the
+   * sources themselves, so a reload never maps a store or snapshot left over
+   * from older data.  This is how an application loads updated postal data
+   * into a {@link PostalDbHolder}.
+   * 
+   * @param sources The sources to load, in the order their places are merged
+   * @return A new PostalDb instance, independent of the VM wide one.
+   * @since 0.1.1
+   */
+  public static PostalDb fromSources(List<PostalSource> sources) {
+    return load(Lists.newArrayList(sources), false);
+  }
+  
+  /**
+   * Restore the snapshot, or if there isn't one loaded from the sources on
+   * the classpath, load them and write it.  Failing to write it only costs
+   * the next start its speed.
+   */
+  private static PostalDb snapshotDb(Path path) {
+    List<PostalSource> sources = classpathSources();
+    String fingerprint;
+    try {
+      fingerprint = fingerprint(sources);
+    } catch (IOException ex) {
+      Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Couldn't fingerprint sources, not using the snapshot", ex);
+      return load(sources, true);
+    }
+    
+    if (Files.exists(path)) {
       try {
-        BufferedReader in = new BufferedReader(new InputStreamReader(source.getStream()));
-        String line = null;
-
-        while ((line = in.readLine()) != null) {
-          try {
-            Place p = PlaceFactory.fromLine(line);
-            set.add(p);          
-          } catch (Exception ex) {
-            Logger.getLogger(PostalDbFactory.class.getName()).log(Level.INFO, "Couldn''t read line : {0}", ex.getMessage());
-          }
-        }
-        in.close();
-      } catch (Exception ex) {
-        Logger.getLogger(PostalDbFactory.class.getName()).log(Level.INFO, "Couldn''t read source : {0}", ex.getMessage());
+        return PostalDb.readSnapshot(path, fingerprint);
+      } catch (IOException ex) {
+        Logger.getLogger(PostalDbFactory.class.getName()).log(Level.INFO, "Rebuilding snapshot : {0}", ex.getMessage());
+      }
+    }
+    
+    PostalDb db = load(sources, true);
+    try {
+      db.writeSnapshot(path, fingerprint);
+    } catch (IOException ex) {
+      Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Couldn't write snapshot", ex);
+    }
+    return db;
+  }
+  
+  /**
+   * Instantiate the sources on this thread, in classpath order, which is also
+   * the order their places are merged in.  The loader's cache is cleared
+   * first, so a reload sees fresh instances.
+   */
+  private static List<PostalSource> classpathSources() {
+    SERVICE_LOADER.reload();
+    return Lists.newArrayList(SERVICE_LOADER);
+  }
+  
+  private static PostalDb load(List<PostalSource> sources, boolean useStore) {
+    String store = useStore ? System.getProperty(STORE_FILE_PROPERTY) : null;
+    if (store != null) {
+      return new PostalDb(storeTable(new File(store), sources), indexMode());
+    }
+    
+    if (Boolean.getBoolean(LAZY_PROPERTY)) {
+      List<LazyPartition> partitions = Lists.newArrayList();
+      for (PostalSource source : sources) {
+        partitions.add(new LazyPartition(source, indexMode()));
       }
+      return new PostalDb(partitions, indexMode());
     }
+    
+    return new PostalDb(new HeapPlaceTable(loadOrdered(sources)), indexMode());
+  }
+  
+  private static Place[] loadOrdered(List<PostalSource> sources) {
+    List<Place> places = SourceLoader.load(sources, loadThreads());
 
-    return new PostalDb(set);
+    // Lay the places out along a Hilbert curve.  Every index scans rows in
+    // storage order, so keeping neighbours together means a spatial query
+    // reads the columns mostly sequentially instead of jumping around.
+    return CellIndex.hilbertOrder(places.toArray(new Place[places.size()]));
+  }
+  
+  /**
+   * Map the store file, writing it first if it is missing or was built from
+   * other sources or other data.  If it can't be written the places are kept
+   * on the heap.
+   */
+  private static PlaceTable storeTable(File file, List<PostalSource> sources) {
+    String fingerprint;
+    try {
+      fingerprint = fingerprint(sources);
+    } catch (IOException ex) {
+      Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Couldn't fingerprint sources, keeping places on the heap", ex);
+      return new HeapPlaceTable(loadOrdered(sources));
+    }
+    
+    if (file.exists()) {
+      try {
+        return MappedPlaceTable.open(file, fingerprint);
+      } catch (IOException ex) {
+        Logger.getLogger(PostalDbFactory.class.getName()).log(Level.INFO, "Rebuilding store file : {0}", ex.getMessage());
+      }
+    }
+    
+    Place[] ordered = loadOrdered(sources);
+    try {
+      MappedPlaceTable.write(ordered, fingerprint, file);
+      return MappedPlaceTable.open(file, fingerprint);
+    } catch (IOException ex) {
+      Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Couldn't use store file, keeping places on the heap", ex);
+      return new HeapPlaceTable(ordered);
+    }
+  }
+  
+  /**
+   * Identify a list of sources and the data each supplies, one line per
+   * source in order.
+   * @throws IOException If the data of a source has to be read and can't be.
+   */
+  private static String fingerprint(List<PostalSource> sources) throws IOException {
+    StringBuilder names = new StringBuilder();
+    for (PostalSource source : sources) {
+      names.append(source.getClass().getName()).append(' ').append(contentId(source)).append('\n');
+    }
+    return names.toString();
+  }
+  
+  /**
+   * Identify the data a source supplies, so a store or snapshot written
+   * before the data was upgraded no longer matches.  Generated sources declare a checksum,
+   * and any other source has the stream it would be loaded from read and
+   * checksummed.
+   * @throws IOException If the stream can't be read.
+   */
+  private static String contentId(PostalSource source) throws IOException {
+    String checksum = source.getChecksum();
+    if (checksum != null) {
+      return "sum " + checksum;
+    }
+    InputStream stream = source.getBinaryStream();
+    if (stream != null) {
+      return "bin " + PlaceCodec.checksum(stream);
+    }
+    stream = source.getStream();
+    return stream == null ? "none" : "txt " + PlaceCodec.checksum(stream);
+  }
+  
+  private static int loadThreads() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String value = System.getProperty(LOAD_THREADS_PROPERTY);
+    if (value != null) {
+      try {
+        threads = Integer.parseInt(value.trim());
+      } catch (NumberFormatException ex) {
+        Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Invalid load thread count : {0}", value);
+      }
+    }
+    return threads;
+  }
+  
+  private static PostalDb.IndexMode indexMode() {
+    String mode = System.getProperty(INDEX_MODE_PROPERTY, PostalDb.IndexMode.GRID.name());
+    try {
+      return PostalDb.IndexMode.valueOf(mode.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException ex) {
+      Logger.getLogger(PostalDbFactory.class.getName()).log(Level.WARNING, "Unknown index mode : {0}", mode);
+      return PostalDb.IndexMode.GRID;
+    }
   }
   
   //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
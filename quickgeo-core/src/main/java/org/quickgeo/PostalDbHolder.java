@@ -0,0 +1,290 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Holds the current {@link PostalDb} of an application that picks up new
+ * postal data without restarting.
+ *
+ * A reload builds a complete new PostalDb while the current one keeps
+ * serving queries, then publishes it with a single atomic reference swap.
+ * Reading the current instance is one volatile read with no locking, and a
+ * query that already holds the previous instance simply finishes against
+ * it; the previous instance is collected once the last such query is done.
+ * Code that should see reloads must call {@link #get()} for every query or
+ * unit of work, rather than keeping the PostalDb it returns.
+ *
+ * A {@link PlaceDelta} is published the same way by {@link #apply}, which
+ * applies it to the current instance and swaps the result in.
+ *
+ * Reloads and deltas are serialized, and each one records its timings and
+ * an estimate of how much the heap grew while the new instance was built,
+ * see {@link #getLastReload()}.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@ThreadSafe
+public final class PostalDbHolder {
+
+  /**
+   * The timings and heap growth of a completed reload.  Heap figures are
+   * taken from {@link Runtime} without forcing a collection, so they are
+   * estimates that include any garbage the build left behind.
+   * @since 0.1.1
+   */
+  @Immutable
+  public static final class Reload {
+
+    private final long startedAt;
+    private final long buildMillis;
+    private final long swapNanos;
+    private final long heapBeforeBytes;
+    private final long heapGrowthBytes;
+    private final int previousSize;
+    private final int size;
+    private final WeakReference<PostalDb> previous;
+
+    Reload(long startedAt, long buildMillis, long swapNanos, long heapBeforeBytes,
+            long heapGrowthBytes, PostalDb previous, PostalDb current) {
+      this.startedAt = startedAt;
+      this.buildMillis = buildMillis;
+      this.swapNanos = swapNanos;
+      this.heapBeforeBytes = heapBeforeBytes;
+      this.heapGrowthBytes = heapGrowthBytes;
+      this.previousSize = previous == null ? 0 : previous.getSize();
+      this.size = current.getSize();
+      this.previous = new WeakReference<PostalDb>(previous);
+    }
+
+    /**
+     * Get the time the reload started, in milliseconds since the epoch.
+     */
+    public long getStartedAt() {
+      return startedAt;
+    }
+
+    /**
+     * Get how long the new instance took to build, while the previous one
+     * kept serving queries.
+     */
+    public long getBuildMillis() {
+      return buildMillis;
+    }
+
+    /**
+     * Get how long publishing the new instance took.
+     */
+    public long getSwapNanos() {
+      return swapNanos;
+    }
+
+    /**
+     * Get the heap in use just before the build started.
+     */
+    public long getHeapBeforeBytes() {
+      return heapBeforeBytes;
+    }
+
+    /**
+     * Get how much the heap grew while the new instance was built.  This is
+     * only an estimate of the memory the new instance adds alongside the
+     * previous one, as it also counts any garbage the build left behind and
+     * is reduced by any collection that ran during it.
+     */
+    public long getHeapGrowthBytes() {
+      return heapGrowthBytes;
+    }
+
+    /**
+     * Get the number of places held by the previous instance, which is 0 for
+     * the first load.
+     */
+    public int getPreviousSize() {
+      return previousSize;
+    }
+
+    /**
+     * Get the number of places held by the new instance.
+     */
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * Check whether the previous instance has been garbage collected, which
+     * is when the two instances stop sharing the heap.
+     */
+    public boolean isPreviousReleased() {
+      return previous.get() == null;
+    }
+  }
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final Callable<PostalDb> loader;
+
+  private final AtomicReference<PostalDb> current = new AtomicReference<PostalDb>();
+
+  // Only taken by reloads, never by readers
+  private final Object reloadLock = new Object();
+
+  private volatile Reload lastReload;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Create an empty holder.  Nothing is loaded until the first
+   * {@link #reload()}.
+   * @param loader Builds a new PostalDb from the latest data each time it is
+   * called, for example by calling {@link PostalDbFactory#fromSources} or
+   * {@link PostalDbFactory#fromSnapshot}
+   */
+  public PostalDbHolder(Callable<PostalDb> loader) {
+    this.loader = loader;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Get the current PostalDb, without blocking.
+   * @return The most recently published instance, or {@code null} before
+   * the first load has completed.
+   */
+  public PostalDb get() {
+    return current.get();
+  }
+
+  /**
+   * Build a new PostalDb on the calling thread and publish it.  Queries keep
+   * running against the current instance until the swap.
+   * @return The newly published instance.
+   * @throws Exception If the loader fails, in which case the current
+   * instance stays published.
+   */
+  public PostalDb reload() throws Exception {
+    return publish(loader);
+  }
+
+  /**
+   * Apply a delta to the current PostalDb and publish the result, see
+   * {@link PostalDb#applyDelta(PlaceDelta)}.  This is how a delta reaches
+   * every caller of {@link #get()}, including the VM wide instance held by
+   * {@link PostalDbFactory#getPostalDbHolder()}.  Deltas and reloads are
+   * serialized, so each delta applies to exactly the instance published
+   * before it, and a later {@link #reload()} replaces the result with
+   * whatever the loader builds.
+   * @param delta The changes to apply
+   * @return The newly published instance.
+   * @throws IllegalStateException If nothing has been loaded yet.
+   */
+  public PostalDb apply(final PlaceDelta delta) {
+    try {
+      return publish(new Callable<PostalDb>() {
+        @Override
+        public PostalDb call() {
+          PostalDb base = current.get();
+          if (base == null) {
+            throw new IllegalStateException("No PostalDb loaded to apply a delta to");
+          }
+          return base.applyDelta(delta);
+        }
+      });
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      // The callable above throws nothing checked
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Build a new PostalDb on a background thread and publish it.
+   * @return A future completed with the newly published instance, or
+   * completed exceptionally if the loader failed.
+   */
+  public CompletableFuture<PostalDb> reloadAsync() {
+    final CompletableFuture<PostalDb> future = new CompletableFuture<PostalDb>();
+    Thread reloader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          future.complete(reload());
+        } catch (Throwable t) {
+          Logger.getLogger(PostalDbHolder.class.getName()).log(Level.SEVERE, "Couldn't reload PostalDb", t);
+          future.completeExceptionally(t);
+        }
+      }
+    }, "quickgeo-reloader");
+    reloader.setDaemon(true);
+    reloader.start();
+    return future;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  /**
+   * Build a new PostalDb and swap it in, recording the metrics of the swap.
+   */
+  private PostalDb publish(Callable<PostalDb> builder) throws Exception {
+    synchronized (reloadLock) {
+      Runtime runtime = Runtime.getRuntime();
+      long startedAt = System.currentTimeMillis();
+      long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+      long start = System.nanoTime();
+
+      PostalDb next = builder.call();
+      if (next == null) {
+        throw new IllegalStateException("Loader returned no PostalDb");
+      }
+
+      long built = System.nanoTime();
+      long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+      PostalDb previous = current.getAndSet(next);
+      long swapped = System.nanoTime();
+
+      Reload reload = new Reload(startedAt, (built - start) / 1000000, swapped - built,
+              heapBefore, heapGrowth, previous, next);
+      lastReload = reload;
+      Logger.getLogger(getClass().getName()).log(Level.INFO,
+              "Published PostalDb with {0} zips built in {1} ms, swapped in {2} ns, growing the heap by about {3} bytes",
+              new Object[] {reload.getSize(), reload.getBuildMillis(), reload.getSwapNanos(),
+                reload.getHeapGrowthBytes()});
+      return next;
+    }
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * Get the metrics of the most recent successful load, reload or delta.
+   * @return The metrics, or {@code null} before the first load.
+   */
+  public Reload getLastReload() {
+    return lastReload;
+  }
+
+}
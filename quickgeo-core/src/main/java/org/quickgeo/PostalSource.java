@@ -20,5 +20,65 @@ public interface PostalSource {
   
   ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
+  /**
+   * Get the postal data as GeoNames text.  The generated country modules
+   * only package their {@link #getBinaryStream() binary form}, keeping the
+   * text as input to QuickGeo-Generate, so theirs returns {@code null}.
+   * 
+   * @return The text, or {@code null} if there is none.
+   */
   public InputStream getStream();
+  
+  /**
+   * Get the precompiled binary form of the postal data, as written by
+   * {@link PlaceCodec#encode(InputStream, java.io.OutputStream)}.  It is
+   * loaded in preference to {@link #getStream()}, which remains the fallback.
+   * 
+   * @return The binary data, or {@code null} if there is none.
+   * @since 0.1.1
+   */
+  public default InputStream getBinaryStream() {
+    return null;
+  }
+  
+  /**
+   * Get the ISO 3166 country code of the places supplied by this source.
+   * Generated sources are named after their country, so by default the
+   * simple class name is used when it looks like a country code.
+   * 
+   * @return The upper case country code, or {@code null} if unknown.
+   * @since 0.1.1
+   */
+  public default String getCountryCode() {
+    String name = getClass().getSimpleName();
+    return name.matches("[A-Z]{2}") ? name : null;
+  }
+  
+  /**
+   * Get a rectangle enclosing every place supplied by this source.  Together
+   * with {@link #getCountryCode()} this lets a lazily loaded
+   * {@link PostalDb} skip parsing the source until a query can touch it.
+   * 
+   * @return The inclusive bounds of the source, or {@code null} if unknown,
+   * in which case the source is parsed for every spatial query.
+   * @since 0.1.1
+   */
+  public default PostalDb.GeoRect getBounds() {
+    return null;
+  }
+  
+  /**
+   * Get a checksum of the postal data, as computed by
+   * {@link PlaceCodec#checksum(InputStream)}, which tells a store file or
+   * snapshot built from this data apart from one built from any other.
+   * Generated sources embed the checksum of their binary form, so it is
+   * known without reading the data.
+   * 
+   * @return The checksum, or {@code null} if unknown, in which case the data
+   * is read and checksummed whenever one is needed.
+   * @since 0.1.1
+   */
+  public default String getChecksum() {
+    return null;
+  }
 }
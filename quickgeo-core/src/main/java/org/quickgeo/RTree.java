@@ -0,0 +1,334 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A static R-tree over the rows of a {@link PlaceTable}, bulk loaded with
+ * the Sort-Tile-Recursive (STR) algorithm and used for rectangle queries.
+ *
+ * Every level of the tree is packed: entries are sorted into vertical slices
+ * by longitude, each slice is sorted by latitude, and runs of
+ * {@link #NODE_CAPACITY} are grouped under one node.  The same tiling is
+ * then applied to the centers of those nodes to build the level above,
+ * until a single root remains.  Nodes are stored in flat arrays with the
+ * leaf level first, and each node records the contiguous range of children
+ * (entries for a leaf, nodes for everything else) that it covers.
+ *
+ * Coordinates and node bounds are held in the {@link FixedPoint} encoding,
+ * so a query converts its rectangle once and then only compares ints.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class RTree {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final int NODE_CAPACITY = 16;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Row ids, and their fixed point coordinates, in packed leaf order
+  private final int[] ids;
+  private final int[] lats;
+  private final int[] lons;
+
+  // Node bounding boxes and child ranges, leaf level first and root last
+  private final int[] minLat;
+  private final int[] maxLat;
+  private final int[] minLon;
+  private final int[] maxLon;
+  private final int[] childStart;
+  private final int[] childEnd;
+
+  private final int leafCount;
+
+  private final int nodeCount;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  RTree(PlaceTable table) {
+    int n = table.size();
+
+    // Pack the entries into leaves
+    this.ids = new int[n];
+    int[] centerLat = new int[n];
+    int[] centerLon = new int[n];
+    for (int i = 0; i < n; i++) {
+      ids[i] = i;
+      centerLat[i] = table.fixedLatitude(i);
+      centerLon[i] = table.fixedLongitude(i);
+    }
+    tile(ids, centerLat, centerLon, 0, n);
+    this.lats = centerLat;
+    this.lons = centerLon;
+
+    // Count the nodes on every level, from the leaves up to the root
+    int capacity = 1;
+    for (int level = n; level > 1; level = (level + NODE_CAPACITY - 1) / NODE_CAPACITY) {
+      capacity += (level + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    }
+    this.minLat = new int[capacity];
+    this.maxLat = new int[capacity];
+    this.minLon = new int[capacity];
+    this.maxLon = new int[capacity];
+    this.childStart = new int[capacity];
+    this.childEnd = new int[capacity];
+
+    int count = 0;
+    for (int start = 0; start < n; start += NODE_CAPACITY) {
+      int end = Math.min(n, start + NODE_CAPACITY);
+      childStart[count] = start;
+      childEnd[count] = end;
+      minLat[count] = Integer.MAX_VALUE;
+      maxLat[count] = Integer.MIN_VALUE;
+      minLon[count] = Integer.MAX_VALUE;
+      maxLon[count] = Integer.MIN_VALUE;
+      for (int i = start; i < end; i++) {
+        minLat[count] = Math.min(minLat[count], lats[i]);
+        maxLat[count] = Math.max(maxLat[count], lats[i]);
+        minLon[count] = Math.min(minLon[count], lons[i]);
+        maxLon[count] = Math.max(maxLon[count], lons[i]);
+      }
+      count++;
+    }
+    this.leafCount = count;
+
+    // Then keep packing each level into the one above until a root remains
+    int levelStart = 0;
+    while (count - levelStart > 1) {
+      int levelEnd = count;
+      tileNodes(levelStart, levelEnd);
+      for (int start = levelStart; start < levelEnd; start += NODE_CAPACITY) {
+        int end = Math.min(levelEnd, start + NODE_CAPACITY);
+        childStart[count] = start;
+        childEnd[count] = end;
+        minLat[count] = Integer.MAX_VALUE;
+        maxLat[count] = Integer.MIN_VALUE;
+        minLon[count] = Integer.MAX_VALUE;
+        maxLon[count] = Integer.MIN_VALUE;
+        for (int i = start; i < end; i++) {
+          minLat[count] = Math.min(minLat[count], minLat[i]);
+          maxLat[count] = Math.max(maxLat[count], maxLat[i]);
+          minLon[count] = Math.min(minLon[count], minLon[i]);
+          maxLon[count] = Math.max(maxLon[count], maxLon[i]);
+        }
+        count++;
+      }
+      levelStart = levelEnd;
+    }
+    this.nodeCount = count;
+  }
+
+  /**
+   * Restore a tree written by {@link #write(Snapshot.Output)}.
+   */
+  RTree(Snapshot.Input in) throws IOException {
+    this.leafCount = in.readInt();
+    this.nodeCount = in.readInt();
+    this.ids = in.readInts();
+    this.lats = in.readInts();
+    this.lons = in.readInts();
+    this.minLat = in.readInts();
+    this.maxLat = in.readInts();
+    this.minLon = in.readInts();
+    this.maxLon = in.readInts();
+    this.childStart = in.readInts();
+    this.childEnd = in.readInts();
+    int nodes = minLat.length;
+    if (lats.length != ids.length || lons.length != ids.length || nodeCount > nodes
+            || maxLat.length != nodes || minLon.length != nodes || maxLon.length != nodes
+            || childStart.length != nodes || childEnd.length != nodes) {
+      throw new IOException("R-tree columns differ in length");
+    }
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Write this tree to a snapshot.
+   * @param out The snapshot to write to
+   * @throws IOException If the snapshot can't be written.
+   */
+  void write(Snapshot.Output out) throws IOException {
+    out.writeInt(leafCount);
+    out.writeInt(nodeCount);
+    out.writeInts(ids);
+    out.writeInts(lats);
+    out.writeInts(lons);
+    out.writeInts(minLat);
+    out.writeInts(maxLat);
+    out.writeInts(minLon);
+    out.writeInts(maxLon);
+    out.writeInts(childStart);
+    out.writeInts(childEnd);
+  }
+
+  /**
+   * Find every row contained by the supplied rectangle.
+   * @param rect The rectangle to search
+   * @return The matching rows, in ascending order.
+   */
+  int[] within(PostalDb.GeoRect rect) {
+    if (ids.length == 0) {
+      return new int[0];
+    }
+
+    // The rectangle is strict, so convert it to the inclusive range of fixed
+    // point coordinates inside it, and compare ints from then on
+    int top = FixedPoint.below(rect.getTopLeftLat());
+    int bottom = FixedPoint.above(rect.getBottomRightLat());
+    int left = FixedPoint.above(rect.getTopLeftLon());
+    int right = FixedPoint.below(rect.getBottomRightLon());
+
+    int[] result = new int[16];
+    int n = 0;
+
+    // Depth first walk from the root, which is always the last node
+    int[] stack = new int[64];
+    int depth = 0;
+    stack[depth++] = nodeCount - 1;
+
+    while (depth > 0) {
+      int node = stack[--depth];
+      if (minLat[node] > top || maxLat[node] < bottom
+              || minLon[node] > right || maxLon[node] < left) {
+        continue;
+      }
+
+      if (node < leafCount) {
+        for (int i = childStart[node]; i < childEnd[node]; i++) {
+          if (lats[i] >= bottom && lats[i] <= top && lons[i] >= left && lons[i] <= right) {
+            if (n == result.length) {
+              result = Arrays.copyOf(result, n * 2);
+            }
+            result[n++] = ids[i];
+          }
+        }
+      } else {
+        for (int child = childStart[node]; child < childEnd[node]; child++) {
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = child;
+        }
+      }
+    }
+
+    result = Arrays.copyOf(result, n);
+    Arrays.sort(result);
+    return result;
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  /**
+   * Reorder the nodes in {@code [from, to)} into STR order by the center of
+   * their bounding boxes.
+   */
+  private void tileNodes(int from, int to) {
+    int n = to - from;
+    int[] order = new int[n];
+    int[] centerLat = new int[n];
+    int[] centerLon = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = from + i;
+      centerLat[i] = (int) (((long) minLat[from + i] + maxLat[from + i]) / 2);
+      centerLon[i] = (int) (((long) minLon[from + i] + maxLon[from + i]) / 2);
+    }
+    tile(order, centerLat, centerLon, 0, n);
+
+    permute(minLat, order, from);
+    permute(maxLat, order, from);
+    permute(minLon, order, from);
+    permute(maxLon, order, from);
+    permute(childStart, order, from);
+    permute(childEnd, order, from);
+  }
+
+  /**
+   * Sort the entries in {@code [from, to)} into STR order: vertical slices by
+   * longitude, then latitude within each slice.
+   */
+  private static void tile(int[] ids, int[] lats, int[] lons, int from, int to) {
+    int n = to - from;
+    int leaves = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    int slices = (int) Math.ceil(Math.sqrt(leaves));
+    int sliceSize = slices * NODE_CAPACITY;
+
+    sort(lons, lats, ids, from, to - 1);
+    for (int start = from; start < to; start += sliceSize) {
+      sort(lats, lons, ids, start, Math.min(to, start + sliceSize) - 1);
+    }
+  }
+
+  /**
+   * Sort the inclusive range {@code [lo, hi]} on {@code keys}, carrying the
+   * other two arrays along.
+   */
+  private static void sort(int[] keys, int[] other, int[] ids, int lo, int hi) {
+    while (hi > lo) {
+      int pivot = keys[(lo + hi) >>> 1];
+      int i = lo;
+      int j = hi;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, other, ids, i++, j--);
+        }
+      }
+      // Recurse into the smaller half to bound the stack depth
+      if (j - lo < hi - i) {
+        sort(keys, other, ids, lo, j);
+        lo = i;
+      } else {
+        sort(keys, other, ids, i, hi);
+        hi = j;
+      }
+    }
+  }
+
+  private static void swap(int[] keys, int[] other, int[] ids, int i, int j) {
+    int key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    int value = other[i];
+    other[i] = other[j];
+    other[j] = value;
+    int id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+  }
+
+  private static void permute(int[] values, int[] order, int from) {
+    int[] copy = Arrays.copyOfRange(values, from, from + order.length);
+    for (int i = 0; i < order.length; i++) {
+      values[from + i] = copy[order[i] - from];
+    }
+  }
+
+  //---------------------------- Property Methods -----------------------------
+
+}
@@ -0,0 +1,393 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Writes and restores a snapshot of a fully built {@link PostalDb},
+ * including its spatial indexes, so a restart doesn't have to parse any
+ * sources or build any index.
+ *
+ * Every structure is written as a handful of length prefixed primitive
+ * arrays, and a snapshot is restored by memory mapping the file and copying
+ * each array out in a single bulk read.  The layout, all big endian, is:
+ *
+ * <pre>
+ *   int     magic number
+ *   int     snapshot version
+ *   string  the sources the database was loaded from, or null if unknown
+ *   ...     the payload written by {@link PostalDb#writeSnapshot(Path)}
+ *   long    CRC-32 of everything before it
+ * </pre>
+ *
+ * A snapshot of another version, one whose checksum doesn't match, or one
+ * loaded from other sources than expected, is rejected with an IOException
+ * rather than partly restored.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class Snapshot {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // "QGS1"
+  private static final int MAGIC = 0x51475331;
+
+  /**
+   * The snapshot version, bumped whenever any structure changes how it is
+   * written.
+   */
+  static final int VERSION = 9;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Open a snapshot for restoring, checking its version and checksum.
+   * @param path The snapshot to read
+   * @param sources The sources the database must have been loaded from, as
+   * passed to {@link #create(Path, String)}, or {@code null} to accept any
+   * @return An input positioned at the start of the payload.
+   * @throws IOException If the file can't be read, isn't a valid snapshot,
+   * or was loaded from other sources.
+   */
+  static Input open(Path path, String sources) throws IOException {
+    ByteBuffer buffer;
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid once the file is closed
+      channel.close();
+    }
+
+    if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a PostalDb snapshot : " + path);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + " : " + path);
+    }
+
+    int end = buffer.capacity() - 8;
+    CRC32 crc = new CRC32();
+    ByteBuffer content = buffer.duplicate();
+    content.limit(end);
+    crc.update(content);
+    if (crc.getValue() != buffer.getLong(end)) {
+      throw new IOException("Snapshot checksum mismatch : " + path);
+    }
+
+    buffer.position(8);
+    buffer.limit(end);
+    Input in = new Input(buffer.slice());
+    String written = in.readString();
+    if (sources != null && !sources.equals(written)) {
+      throw new IOException("Snapshot was built from other sources : " + path);
+    }
+    return in;
+  }
+
+  /**
+   * Create a snapshot.  The file is written next to its final location and
+   * only moved into place once complete.
+   * @param path The snapshot to write
+   * @param sources An identity of the sources the database was loaded from,
+   * or {@code null} if unknown
+   * @return An output positioned at the start of the payload, to be
+   * finished with {@link Output#commit()} and then closed.
+   * @throws IOException If the file can't be created.
+   */
+  static Output create(Path path, String sources) throws IOException {
+    Path parent = path.toAbsolutePath().getParent();
+    Files.createDirectories(parent);
+    Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+    Output out = new Output(path, temp);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeString(sources);
+    return out;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private Snapshot() {
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * Writes the payload of a snapshot through a buffer, checksumming every
+   * byte on the way out.
+   */
+  static final class Output {
+
+    private final Path path;
+
+    private final Path temp;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private final CRC32 crc = new CRC32();
+
+    Output(Path path, Path temp) throws IOException {
+      this.path = path;
+      this.temp = temp;
+      this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void writeByte(int value) throws IOException {
+      room(1);
+      buffer.put((byte) value);
+    }
+
+    void writeInt(int value) throws IOException {
+      room(4);
+      buffer.putInt(value);
+    }
+
+    void writeDouble(double value) throws IOException {
+      room(8);
+      buffer.putDouble(value);
+    }
+
+    void writeString(String value) throws IOException {
+      if (value == null) {
+        writeInt(-1);
+        return;
+      }
+      writeBytes(value.getBytes(Charsets.UTF_8));
+    }
+
+    void writeStrings(String[] values) throws IOException {
+      writeInt(values.length);
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+
+    void writeBytes(byte[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(1);
+        int n = Math.min(values.length - i, buffer.remaining());
+        buffer.put(values, i, n);
+        i += n;
+      }
+    }
+
+    void writeChars(char[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(2);
+        int n = Math.min(values.length - i, buffer.remaining() / 2);
+        buffer.asCharBuffer().put(values, i, n);
+        buffer.position(buffer.position() + 2 * n);
+        i += n;
+      }
+    }
+
+    void writeInts(int[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(4);
+        int n = Math.min(values.length - i, buffer.remaining() / 4);
+        buffer.asIntBuffer().put(values, i, n);
+        buffer.position(buffer.position() + 4 * n);
+        i += n;
+      }
+    }
+
+    void writeLongs(long[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(8);
+        int n = Math.min(values.length - i, buffer.remaining() / 8);
+        buffer.asLongBuffer().put(values, i, n);
+        buffer.position(buffer.position() + 8 * n);
+        i += n;
+      }
+    }
+
+    void writeFloats(float[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(4);
+        int n = Math.min(values.length - i, buffer.remaining() / 4);
+        buffer.asFloatBuffer().put(values, i, n);
+        buffer.position(buffer.position() + 4 * n);
+        i += n;
+      }
+    }
+
+    void writeDoubles(double[] values) throws IOException {
+      writeInt(values.length);
+      for (int i = 0; i < values.length; ) {
+        room(8);
+        int n = Math.min(values.length - i, buffer.remaining() / 8);
+        buffer.asDoubleBuffer().put(values, i, n);
+        buffer.position(buffer.position() + 8 * n);
+        i += n;
+      }
+    }
+
+    /**
+     * Write the checksum, close the file and move it into place.
+     * @throws IOException If the snapshot can't be completed.
+     */
+    void commit() throws IOException {
+      drain();
+      buffer.putLong(crc.getValue());
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+      channel.close();
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Close the file, deleting it unless it has been committed.
+     */
+    void close() {
+      try {
+        channel.close();
+        Files.deleteIfExists(temp);
+      } catch (IOException ex) {
+        // Nothing more can be done about it
+      }
+    }
+
+    private void room(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        drain();
+      }
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      ByteBuffer checked = buffer.duplicate();
+      crc.update(checked);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Reads the payload of a snapshot from its mapped bytes, copying arrays
+   * out in bulk.
+   */
+  static final class Input {
+
+    private final ByteBuffer buffer;
+
+    Input(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    int readByte() {
+      return buffer.get();
+    }
+
+    int readInt() {
+      return buffer.getInt();
+    }
+
+    double readDouble() {
+      return buffer.getDouble();
+    }
+
+    String readString() {
+      int length = buffer.getInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, Charsets.UTF_8);
+    }
+
+    String[] readStrings() {
+      String[] values = new String[buffer.getInt()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readString();
+      }
+      return values;
+    }
+
+    byte[] readBytes() {
+      byte[] values = new byte[buffer.getInt()];
+      buffer.get(values);
+      return values;
+    }
+
+    char[] readChars() {
+      char[] values = new char[buffer.getInt()];
+      buffer.asCharBuffer().get(values);
+      buffer.position(buffer.position() + 2 * values.length);
+      return values;
+    }
+
+    int[] readInts() {
+      int[] values = new int[buffer.getInt()];
+      buffer.asIntBuffer().get(values);
+      buffer.position(buffer.position() + 4 * values.length);
+      return values;
+    }
+
+    long[] readLongs() {
+      long[] values = new long[buffer.getInt()];
+      buffer.asLongBuffer().get(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return values;
+    }
+
+    float[] readFloats() {
+      float[] values = new float[buffer.getInt()];
+      buffer.asFloatBuffer().get(values);
+      buffer.position(buffer.position() + 4 * values.length);
+      return values;
+    }
+
+    double[] readDoubles() {
+      double[] values = new double[buffer.getInt()];
+      buffer.asDoubleBuffer().get(values);
+      buffer.position(buffer.position() + 8 * values.length);
+      return values;
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Parses the places supplied by a set of {@link PostalSource PostalSources}.
+ *
+ * Sources are parsed in parallel on a bounded fork-join pool, but the
+ * results are always merged in the order the sources were supplied, so the
+ * loaded places are exactly those of a sequential load.
+ *
+ * Each load gets a pool of its own, and the sources must not call back into
+ * {@link PostalDbFactory} while it runs.  The factory loads while holding
+ * the reload lock of its {@link PostalDbHolder}, and callers of
+ * {@link PostalDbFactory#getPostalDb()} wait for that load to finish, so a
+ * pool thread asking the factory for the shared database would wait on the
+ * very load it is part of, and the load would never complete.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class SourceLoader {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Parse every place supplied by a list of sources.
+   * @param sources The sources to read
+   * @param threads The maximum number of sources to parse at once
+   * @return The places of every source, in source order and then in the
+   * order each source lists them.
+   */
+  static List<Place> load(List<PostalSource> sources, int threads) {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(threads, sources.size())));
+    try {
+      List<ForkJoinTask<List<Place>>> tasks = Lists.newArrayList();
+      for (final PostalSource source : sources) {
+        tasks.add(pool.submit(new Callable<List<Place>>() {
+          @Override
+          public List<Place> call() {
+            return read(source);
+          }
+        }));
+      }
+
+      List<Place> places = Lists.newArrayList();
+      for (ForkJoinTask<List<Place>> task : tasks) {
+        places.addAll(task.join());
+      }
+      return places;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Parse every place supplied by a single source.  The precompiled binary
+   * form is used when the source has one, and the text form otherwise, or
+   * if the binary form can't be read.  A text source that fails part way
+   * through keeps the places read up to that point, and a source with
+   * neither form supplies no places.
+   * @param source The source to read
+   * @return The places of the source, in the order its text lists them, or
+   * in Hilbert curve order when read from the binary form.
+   */
+  static List<Place> read(PostalSource source) {
+    InputStream binary = source.getBinaryStream();
+    if (binary != null) {
+      try {
+        try {
+          return PlaceCodec.decode(binary);
+        } finally {
+          binary.close();
+        }
+      } catch (Exception ex) {
+        Logger.getLogger(SourceLoader.class.getName()).log(Level.INFO, "Couldn''t read binary source, using text : {0}", ex.getMessage());
+      }
+    }
+    InputStream text = source.getStream();
+    if (text == null) {
+      Logger.getLogger(SourceLoader.class.getName()).log(Level.INFO, "No postal data in source : {0}", source.getClass().getName());
+      return Lists.newArrayList();
+    }
+    return readText(text);
+  }
+
+  /**
+   * Parse every place of a GeoNames postal text file.
+   * @param stream The text to read, which is closed once read
+   * @return The places that could be parsed, in the order they are listed.
+   */
+  static List<Place> readText(InputStream stream) {
+    List<Place> places = Lists.newArrayList();
+    try {
+      // GeoNames publishes its exports in UTF-8
+      Reader in = new InputStreamReader(stream, Charsets.UTF_8);
+      PlaceScanner scanner = new PlaceScanner(in);
+
+      while (scanner.nextLine()) {
+        try {
+          Place p = scanner.place();
+          places.add(p);
+        } catch (Exception ex) {
+          Logger.getLogger(SourceLoader.class.getName()).log(Level.INFO, "Couldn''t read line : {0}", ex.getMessage());
+        }
+      }
+      in.close();
+    } catch (Exception ex) {
+      Logger.getLogger(SourceLoader.class.getName()).log(Level.INFO, "Couldn''t read source : {0}", ex.getMessage());
+    }
+    return places;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private SourceLoader() {
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+}
@@ -0,0 +1,579 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The trigrams a string must contain to match a regex, as a boolean query
+ * that a {@link NameIndex} answers with the few names worth matching.
+ *
+ * The regex is analysed the way Google Code Search does it: every part of
+ * the regex is summarised by the set of strings it matches exactly, when
+ * that set is small, and otherwise by the sets of prefixes and suffixes its
+ * matches start and end with, along with the trigrams any match must
+ * contain.  Concatenation crosses the sets, alternation unions them and
+ * ORs the trigrams, and repetition forgets what it can't bound.  Sets that
+ * grow too large are turned into trigrams and dropped.
+ *
+ * Literals are folded to lower case for ASCII letters only, just as a
+ * pattern compiled with {@link java.util.regex.Pattern#CASE_INSENSITIVE}
+ * compares them, so the query never rejects a name the pattern matches.
+ * Only the common regex constructs are understood; anything else, such as
+ * a back reference, a lookaround or an embedded flag, leaves the regex
+ * unanalysed and the caller scans every name instead.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+@Immutable
+final class TrigramQuery {
+
+  enum Op {
+    ALL, NONE, AND, OR, GRAM
+  }
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  static final TrigramQuery ALL = new TrigramQuery(Op.ALL, 0, ImmutableList.<TrigramQuery>of());
+
+  static final TrigramQuery NONE = new TrigramQuery(Op.NONE, 0, ImmutableList.<TrigramQuery>of());
+
+  // The largest set of strings kept before it is turned into trigrams
+  private static final int MAX_SET = 16;
+
+  // A character class with more members than this matches "any character"
+  private static final int MAX_CLASS = 4;
+
+  private static final ImmutableSet<String> EMPTY_STRING = ImmutableSet.of("");
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Analyse a regex, to be matched against whole names case insensitively.
+   * @param regex The regex
+   * @return The query every matching name satisfies, or {@code null} if the
+   * regex can't be analysed or any name might match, in which case every
+   * name has to be checked.
+   */
+  static TrigramQuery of(String regex) {
+    TrigramQuery query;
+    try {
+      Parser parser = new Parser(regex);
+      Info info = parser.alternation();
+      if (!parser.atEnd()) {
+        return null;
+      }
+      query = and(info.match, info.exact != null ? strings(info.exact) : and(strings(info.prefix), strings(info.suffix)));
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+    return query.op == Op.ALL ? null : query;
+  }
+
+  /**
+   * Fold the ASCII letters of a string to lower case.
+   */
+  static String fold(String s) {
+    StringBuilder sb = null;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        if (sb == null) {
+          sb = new StringBuilder(s);
+        }
+        sb.setCharAt(i, (char) (c - 'A' + 'a'));
+      }
+    }
+    return sb == null ? s : sb.toString();
+  }
+
+  /**
+   * Pack three characters into one trigram key.
+   */
+  static long gram(char a, char b, char c) {
+    return ((long) a << 32) | ((long) b << 16) | c;
+  }
+
+  private static TrigramQuery gram(long gram) {
+    return new TrigramQuery(Op.GRAM, gram, ImmutableList.<TrigramQuery>of());
+  }
+
+  static TrigramQuery and(TrigramQuery a, TrigramQuery b) {
+    if (a.op == Op.NONE || b.op == Op.NONE) {
+      return NONE;
+    }
+    if (a.op == Op.ALL) {
+      return b;
+    }
+    if (b.op == Op.ALL) {
+      return a;
+    }
+    Set<TrigramQuery> subs = Sets.newLinkedHashSet();
+    addFlattened(subs, a, Op.AND);
+    addFlattened(subs, b, Op.AND);
+    if (subs.size() == 1) {
+      return subs.iterator().next();
+    }
+    return new TrigramQuery(Op.AND, 0, ImmutableList.copyOf(subs));
+  }
+
+  static TrigramQuery or(TrigramQuery a, TrigramQuery b) {
+    if (a.op == Op.ALL || b.op == Op.ALL) {
+      return ALL;
+    }
+    if (a.op == Op.NONE) {
+      return b;
+    }
+    if (b.op == Op.NONE) {
+      return a;
+    }
+    Set<TrigramQuery> subs = Sets.newLinkedHashSet();
+    addFlattened(subs, a, Op.OR);
+    addFlattened(subs, b, Op.OR);
+    if (subs.size() == 1) {
+      return subs.iterator().next();
+    }
+    return new TrigramQuery(Op.OR, 0, ImmutableList.copyOf(subs));
+  }
+
+  private static void addFlattened(Set<TrigramQuery> subs, TrigramQuery q, Op op) {
+    if (q.op == op) {
+      subs.addAll(q.subs);
+    } else {
+      subs.add(q);
+    }
+  }
+
+  /**
+   * Get the query satisfied by every string containing one of a set.
+   */
+  private static TrigramQuery strings(Set<String> strings) {
+    TrigramQuery query = NONE;
+    for (String s : strings) {
+      TrigramQuery all = ALL;
+      for (int i = 0; i + 3 <= s.length(); i++) {
+        all = and(all, gram(gram(s.charAt(i), s.charAt(i + 1), s.charAt(i + 2))));
+      }
+      query = or(query, all);
+    }
+    return query;
+  }
+
+  private static Set<String> cross(Set<String> a, Set<String> b) {
+    Set<String> crossed = Sets.newLinkedHashSet();
+    for (String x : a) {
+      for (String y : b) {
+        crossed.add(x + y);
+      }
+    }
+    return crossed;
+  }
+
+  private static Set<String> union(Set<String> a, Set<String> b) {
+    Set<String> union = Sets.newLinkedHashSet(a);
+    union.addAll(b);
+    return union;
+  }
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final Op op;
+
+  private final long gram;
+
+  private final ImmutableList<TrigramQuery> subs;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private TrigramQuery(Op op, long gram, ImmutableList<TrigramQuery> subs) {
+    this.op = op;
+    this.gram = gram;
+    this.subs = subs;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof TrigramQuery)) {
+      return false;
+    }
+    TrigramQuery other = (TrigramQuery) obj;
+    return op == other.op && gram == other.gram && subs.equals(other.subs);
+  }
+
+  @Override
+  public int hashCode() {
+    return (op.ordinal() * 31 + (int) (gram ^ (gram >>> 32))) * 31 + subs.hashCode();
+  }
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  Op getOp() {
+    return op;
+  }
+
+  long getGram() {
+    return gram;
+  }
+
+  List<TrigramQuery> getSubs() {
+    return subs;
+  }
+
+  /**
+   * What is known about the strings a part of a regex matches.  The prefix
+   * and suffix sets always hold, and the exact set, when known, holds every
+   * string matched.
+   */
+  private static final class Info {
+
+    private Set<String> exact;
+    private Set<String> prefix;
+    private Set<String> suffix;
+    private TrigramQuery match;
+
+    Info(Set<String> exact, Set<String> prefix, Set<String> suffix, TrigramQuery match) {
+      this.exact = exact;
+      this.prefix = prefix;
+      this.suffix = suffix;
+      this.match = match;
+    }
+
+    static Info empty() {
+      return new Info(EMPTY_STRING, EMPTY_STRING, EMPTY_STRING, ALL);
+    }
+
+    static Info anyChar() {
+      return new Info(null, EMPTY_STRING, EMPTY_STRING, ALL);
+    }
+
+    static Info chars(Set<String> chars) {
+      return new Info(chars, chars, chars, ALL);
+    }
+
+    static Info concat(Info x, Info y) {
+      TrigramQuery match = and(x.match, y.match);
+      Set<String> exact = x.exact != null && y.exact != null ? cross(x.exact, y.exact) : null;
+      Set<String> prefix = x.exact != null ? cross(x.exact, y.prefix) : x.prefix;
+      Set<String> suffix = y.exact != null ? cross(x.suffix, y.exact) : y.suffix;
+      if (exact == null && x.suffix.size() * y.prefix.size() <= MAX_SET * MAX_SET) {
+        // The trigrams spanning the join
+        match = and(match, strings(cross(x.suffix, y.prefix)));
+      }
+      return new Info(exact, prefix, suffix, match).simplify();
+    }
+
+    static Info alternate(Info x, Info y) {
+      Set<String> exact = x.exact != null && y.exact != null ? union(x.exact, y.exact) : null;
+      TrigramQuery xMatch = x.exact != null && exact == null ? and(x.match, strings(x.exact)) : x.match;
+      TrigramQuery yMatch = y.exact != null && exact == null ? and(y.match, strings(y.exact)) : y.match;
+      return new Info(exact, union(x.prefix, y.prefix), union(x.suffix, y.suffix), or(xMatch, yMatch)).simplify();
+    }
+
+    static Info optional(Info x) {
+      Set<String> exact = x.exact != null ? union(x.exact, EMPTY_STRING) : null;
+      return new Info(exact, EMPTY_STRING, EMPTY_STRING, ALL).simplify();
+    }
+
+    static Info star() {
+      return new Info(null, EMPTY_STRING, EMPTY_STRING, ALL);
+    }
+
+    static Info plus(Info x) {
+      TrigramQuery match = x.exact != null ? and(x.match, strings(x.exact)) : x.match;
+      return new Info(null, x.prefix, x.suffix, match);
+    }
+
+    /**
+     * Turn sets grown too large into trigrams, which loses a little
+     * precision but keeps the analysis linear.
+     */
+    Info simplify() {
+      if (exact != null && exact.size() > MAX_SET) {
+        match = and(match, strings(exact));
+        exact = null;
+      }
+      if (prefix.size() > MAX_SET) {
+        match = and(match, strings(prefix));
+        prefix = EMPTY_STRING;
+      }
+      if (suffix.size() > MAX_SET) {
+        match = and(match, strings(suffix));
+        suffix = EMPTY_STRING;
+      }
+      return this;
+    }
+  }
+
+  /**
+   * A recursive descent parser for the supported subset of
+   * {@link java.util.regex.Pattern} syntax.  Anything else throws an
+   * IllegalArgumentException.
+   */
+  private static final class Parser {
+
+    private final String regex;
+
+    private int pos;
+
+    Parser(String regex) {
+      this.regex = regex;
+    }
+
+    boolean atEnd() {
+      return pos == regex.length();
+    }
+
+    Info alternation() {
+      Info info = concatenation();
+      while (!atEnd() && regex.charAt(pos) == '|') {
+        pos++;
+        info = Info.alternate(info, concatenation());
+      }
+      return info;
+    }
+
+    private Info concatenation() {
+      Info info = Info.empty();
+      while (!atEnd() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+        info = Info.concat(info, repetition());
+      }
+      return info;
+    }
+
+    private Info repetition() {
+      Info info = atom();
+      while (!atEnd()) {
+        char c = regex.charAt(pos);
+        int min;
+        int max;
+        if (c == '*') {
+          min = 0;
+          max = -1;
+          pos++;
+        } else if (c == '+') {
+          min = 1;
+          max = -1;
+          pos++;
+        } else if (c == '?') {
+          min = 0;
+          max = 1;
+          pos++;
+        } else if (c == '{') {
+          int close = regex.indexOf('}', pos);
+          if (close < 0) {
+            throw new IllegalArgumentException("Unclosed repetition");
+          }
+          String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+          try {
+            min = Integer.parseInt(bounds[0].trim());
+            max = bounds.length == 1 ? min : bounds[1].trim().isEmpty() ? -1 : Integer.parseInt(bounds[1].trim());
+          } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Malformed repetition", ex);
+          }
+          pos = close + 1;
+        } else {
+          break;
+        }
+
+        // Reluctant and possessive forms match the same strings
+        if (!atEnd() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+          pos++;
+        }
+
+        if (min == 0) {
+          info = max == 1 ? Info.optional(info) : Info.star();
+        } else if (min == 1 && max == 1) {
+          continue;
+        } else {
+          info = Info.plus(info);
+        }
+      }
+      return info;
+    }
+
+    private Info atom() {
+      char c = regex.charAt(pos++);
+      switch (c) {
+        case '(':
+          if (regex.startsWith("?:", pos)) {
+            pos += 2;
+          } else if (!atEnd() && regex.charAt(pos) == '?') {
+            throw new IllegalArgumentException("Unsupported group");
+          }
+          Info info = alternation();
+          if (atEnd() || regex.charAt(pos) != ')') {
+            throw new IllegalArgumentException("Unclosed group");
+          }
+          pos++;
+          return info;
+        case '[':
+          return characterClass();
+        case '.':
+          return Info.anyChar();
+        case '^':
+        case '$':
+          // Names are matched whole, so the anchors only match the ends
+          return Info.empty();
+        case '\\':
+          return escape();
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+        case ')':
+          throw new IllegalArgumentException("Dangling " + c);
+        default:
+          return Info.chars(ImmutableSet.of(fold(String.valueOf(c))));
+      }
+    }
+
+    private Info escape() {
+      if (atEnd()) {
+        throw new IllegalArgumentException("Trailing backslash");
+      }
+      char c = regex.charAt(pos++);
+      switch (c) {
+        case 'Q':
+          int end = regex.indexOf("\\E", pos);
+          String quoted = end < 0 ? regex.substring(pos) : regex.substring(pos, end);
+          pos = end < 0 ? regex.length() : end + 2;
+          Set<String> exact = ImmutableSet.of(fold(quoted));
+          return new Info(exact, exact, exact, ALL).simplify();
+        case 't':
+          return Info.chars(ImmutableSet.of("\t"));
+        case 'n':
+          return Info.chars(ImmutableSet.of("\n"));
+        case 'r':
+          return Info.chars(ImmutableSet.of("\r"));
+        case 'f':
+          return Info.chars(ImmutableSet.of("\f"));
+        case 'd':
+        case 'D':
+        case 'w':
+        case 'W':
+        case 's':
+        case 'S':
+        case 'h':
+        case 'H':
+        case 'v':
+        case 'V':
+          return Info.anyChar();
+        case 'p':
+        case 'P':
+          skipProperty();
+          return Info.anyChar();
+        case 'b':
+        case 'B':
+        case 'A':
+        case 'z':
+        case 'Z':
+        case 'G':
+          return Info.empty();
+        default:
+          if (Character.isLetterOrDigit(c)) {
+            // Back references, numeric escapes and the rest
+            throw new IllegalArgumentException("Unsupported escape \\" + c);
+          }
+          return Info.chars(ImmutableSet.of(String.valueOf(c)));
+      }
+    }
+
+    private void skipProperty() {
+      if (!atEnd() && regex.charAt(pos) == '{') {
+        int close = regex.indexOf('}', pos);
+        if (close < 0) {
+          throw new IllegalArgumentException("Unclosed property");
+        }
+        pos = close + 1;
+      } else {
+        pos++;
+      }
+    }
+
+    private Info characterClass() {
+      boolean negated = !atEnd() && regex.charAt(pos) == '^';
+      if (negated) {
+        pos++;
+      }
+
+      Set<String> members = Sets.newLinkedHashSet();
+      boolean any = negated;
+      boolean first = true;
+      while (true) {
+        if (atEnd()) {
+          throw new IllegalArgumentException("Unclosed class");
+        }
+        char c = regex.charAt(pos++);
+        if (c == ']' && !first) {
+          break;
+        }
+        first = false;
+        if (c == '[' || (c == '&' && !atEnd() && regex.charAt(pos) == '&')) {
+          throw new IllegalArgumentException("Unsupported class");
+        }
+        if (c == '\\') {
+          if (atEnd()) {
+            throw new IllegalArgumentException("Trailing backslash");
+          }
+          char e = regex.charAt(pos++);
+          if (e == 'Q') {
+            throw new IllegalArgumentException("Unsupported quote in class");
+          }
+          if (e == 'p' || e == 'P') {
+            skipProperty();
+            any = true;
+            continue;
+          }
+          if (Character.isLetterOrDigit(e)) {
+            // Class escapes, and numeric escapes that aren't worth decoding
+            any = true;
+            continue;
+          }
+          c = e;
+        }
+        if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+          char to = regex.charAt(pos + 1);
+          if (to == '\\' || to == '[') {
+            throw new IllegalArgumentException("Unsupported range");
+          }
+          pos += 2;
+          if (to - c >= MAX_CLASS) {
+            any = true;
+          } else {
+            for (char r = c; r <= to; r++) {
+              members.add(fold(String.valueOf(r)));
+            }
+          }
+          continue;
+        }
+        members.add(fold(String.valueOf(c)));
+      }
+
+      if (any || members.isEmpty() || members.size() > MAX_CLASS) {
+        return Info.anyChar();
+      }
+      return Info.chars(members);
+    }
+  }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Tests that name queries answered through the {@link NameIndex} and a
+ * {@link TrigramQuery} find exactly the places a scan of every name finds.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+public class NameIndexTest {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final List<String> US_NAMES = ImmutableList.of("San Diego", "San Jose", "Santa", "Santa Ana",
+          "SANTA CRUZ", "santa fe", "Sandia", "Banta", "St. Louis", "Saint-Louis", "O'Fallon", "Springfield",
+          "Springfield", "North Bend", "South Bend", "Northport", "North port", "Lakeville", "Oak Lake",
+          "Mountain View", "Mount View", "Abcdef", "ababef", "cdcdef", "def", "Xbcd", "abcxyz", "-xyz",
+          "Paris", "Zürich", "ZÜRICH", "a-b", "Ab", "X", "Edinburg", "Clarksville");
+
+  private static final List<String> DE_NAMES = ImmutableList.of("München", "Munchen", "Springfield",
+          "Paris", "Bad Lakeburg", "Sankt Augustin", "Zürich", "Nordhorn");
+
+  // Each is analysed into a trigram query, and so answered through the index
+  private static final List<String> INDEXED = ImmutableList.of(
+          // Alternation
+          "(north|south) .*", "san (diego|jose)", ".*(ville|burg)", "(ab|cd)+ef", "(san|santa)",
+          // Character classes
+          "[sb]an[td]a.*", "[^a]bcd.*", "\\p{L}+ville", "[abc-]xyz.*", "M[aü]nchen",
+          // Optional parts
+          "(abc)?def", "saint-?.*", "north ?port", "mount(ain)? view",
+          // Quoting
+          "\\QSt. Louis\\E", "\\QO'Fallon\\E.*", "st\\. .*",
+          // Case folding, which only applies to ASCII letters
+          "SAN .*", "springfield", "SPRINGFIELD", "ZÜRICH", "zürich", "münchen",
+          "\\bsan\\b.*", ".*lake.*");
+
+  // Each leaves nothing to look up, and so every name is scanned
+  private static final List<String> SCANNED = ImmutableList.of(".*", "x?", "a*", ".", "[a-z]+", "[a-z]{3}",
+          "abc|", "a{2,}", ".*\\Q-\\E.*", "paris|.*", "o'.*", ".*e", "ab", "x", "(?i)paris", "(a)\\1.*",
+          "(?=s).*", "[[:alpha:]]");
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  @Test
+  public void indexedRegexesAreAnalysed() {
+    for (String regex : INDEXED) {
+      assertNotNull(regex, TrigramQuery.of(regex));
+    }
+    for (String regex : SCANNED) {
+      assertNull(regex, TrigramQuery.of(regex));
+    }
+  }
+
+  @Test
+  public void indexMatchesScan() {
+    Partition partition = Partition.of(places(), PostalDb.IndexMode.GRID);
+    for (String regex : regexes()) {
+      Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+      TrigramQuery query = TrigramQuery.of(regex);
+      for (String countryCode : new String[] {null, "US", "de"}) {
+        assertEquals(regex + " in " + countryCode,
+                TestSources.lines(partition.byName(pattern, null, countryCode)),
+                TestSources.lines(partition.byName(pattern, query, countryCode)));
+      }
+    }
+  }
+
+  @Test
+  public void indexedQueriesFindPlaces() {
+    Partition partition = Partition.of(places(), PostalDb.IndexMode.GRID);
+    for (String regex : INDEXED) {
+      Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+      assertFalse(regex, partition.byName(pattern, TrigramQuery.of(regex), null).isEmpty());
+    }
+  }
+
+  @Test
+  public void databasesMatchScan() {
+    Partition partition = Partition.of(places(), PostalDb.IndexMode.GRID);
+    for (boolean lazy : new boolean[] {false, true}) {
+      List<PostalSource> sources = Lists.newArrayList();
+      sources.add(TestSources.source("US", rows("US", US_NAMES)));
+      sources.add(TestSources.source("DE", rows("DE", DE_NAMES)));
+      PostalDb db = TestSources.load(lazy, sources);
+
+      for (String regex : regexes()) {
+        Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        for (String countryCode : new String[] {null, "US", "DE"}) {
+          assertEquals(regex + " in " + countryCode,
+                  TestSources.lines(sorted(partition.byName(pattern, null, countryCode))),
+                  TestSources.lines(sorted(db.byName(countryCode, regex))));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void caseFoldingIsAsciiOnly() {
+    Partition partition = Partition.of(places(), PostalDb.IndexMode.GRID);
+    Pattern pattern = Pattern.compile("zürich", Pattern.CASE_INSENSITIVE);
+
+    List<Place> found = partition.byName(pattern, TrigramQuery.of("zürich"), null);
+
+    // Just as the pattern compares them, Zürich matches and ZÜRICH doesn't
+    assertEquals(2, found.size());
+    for (Place p : found) {
+      assertEquals("Zürich", p.getPlaceName());
+    }
+  }
+
+  //---------------------------- Utility Methods ------------------------------
+
+  /**
+   * The fixed regexes, and random ones built from the names.
+   */
+  private static List<String> regexes() {
+    List<String> regexes = Lists.newArrayList(INDEXED);
+    regexes.addAll(SCANNED);
+
+    List<String> names = Lists.newArrayList(US_NAMES);
+    names.addAll(DE_NAMES);
+    Random random = new Random(7);
+    for (int i = 0; i < 300; i++) {
+      String name = names.get(random.nextInt(names.size()));
+      int start = random.nextInt(name.length() + 1);
+      int end = start + random.nextInt(name.length() - start + 1);
+      String part = Pattern.quote(name.substring(start, end));
+      switch (random.nextInt(5)) {
+        case 0:
+          regexes.add(name.replaceAll("[\\\\^$.|?*+()\\[\\]{}']", "."));
+          break;
+        case 1:
+          regexes.add(part + ".*");
+          break;
+        case 2:
+          regexes.add(".*" + part + ".*");
+          break;
+        case 3:
+          regexes.add(".*" + part);
+          break;
+        default:
+          regexes.add("(" + part + "|" + Pattern.quote(name.substring(0, start)) + ").*");
+          break;
+      }
+    }
+    return regexes;
+  }
+
+  private static List<Place> places() {
+    List<Place> places = Lists.newArrayList();
+    places.addAll(SourceLoader.readText(TestSources.stream(rows("US", US_NAMES))));
+    places.addAll(SourceLoader.readText(TestSources.stream(rows("DE", DE_NAMES))));
+    return places;
+  }
+
+  private static List<String> rows(String countryCode, List<String> names) {
+    List<String> rows = Lists.newArrayList();
+    for (int i = 0; i < names.size(); i++) {
+      rows.add(TestSources.row(countryCode, String.format("%05d", 10000 + i), names.get(i),
+              40 + i / 100d, -70 - i / 100d));
+    }
+    return rows;
+  }
+
+  private static List<Place> sorted(List<Place> places) {
+    List<String> lines = TestSources.lines(places);
+    Collections.sort(lines);
+    return SourceLoader.readText(TestSources.stream(lines));
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests computing, reading, writing and applying {@link PlaceDelta
+ * PlaceDeltas}.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+public class PlaceDeltaTest {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final String BOSTON = TestSources.row("US", "02108", "Boston", 42.3576, -71.0684);
+
+  private static final String CAMBRIDGE = TestSources.row("US", "02139", "Cambridge", 42.3647, -71.1042);
+
+  private static final String SALEM = TestSources.row("US", "01970", "Salem", 42.5125, -70.9047);
+
+  // Cambridge with new coordinates, the same row by identity
+  private static final String CAMBRIDGE_MOVED = TestSources.row("US", "02139", "Cambridge", 42.3650, -71.1040);
+
+  private static final String LYNN = TestSources.row("US", "01901", "Lynn", 42.4633, -70.9459);
+
+  private static final String BERLIN = TestSources.row("DE", "10115", "Berlin", 52.5323, 13.3846);
+
+  private static final String MUNICH = TestSources.row("DE", "80331", "München", 48.1372, 11.5755);
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  @Test
+  public void diffFindsAddedRemovedAndChangedRows() {
+    PlaceDelta delta = PlaceDelta.diff(TestSources.stream(BOSTON, CAMBRIDGE, SALEM),
+            TestSources.stream(CAMBRIDGE_MOVED, BOSTON, LYNN));
+
+    assertEquals(ImmutableList.of(LYNN), TestSources.lines(delta.getAdded()));
+    assertEquals(ImmutableList.of(SALEM), TestSources.lines(delta.getRemoved()));
+    assertEquals(1, delta.getChanged().size());
+    assertEquals(CAMBRIDGE, PlaceDelta.line(delta.getChanged().get(0).getBefore()));
+    assertEquals(CAMBRIDGE_MOVED, PlaceDelta.line(delta.getChanged().get(0).getAfter()));
+  }
+
+  @Test
+  public void diffMatchesDuplicateRowsOneForOne() {
+    PlaceDelta delta = PlaceDelta.diff(TestSources.stream(BOSTON, BOSTON, SALEM),
+            TestSources.stream(BOSTON, SALEM, SALEM));
+
+    assertEquals(ImmutableList.of(SALEM), TestSources.lines(delta.getAdded()));
+    assertEquals(ImmutableList.of(BOSTON), TestSources.lines(delta.getRemoved()));
+    assertTrue(delta.getChanged().isEmpty());
+  }
+
+  @Test
+  public void diffOfTheSameRowsIsEmpty() {
+    assertTrue(PlaceDelta.diff(TestSources.stream(BOSTON, SALEM), TestSources.stream(SALEM, BOSTON)).isEmpty());
+  }
+
+  @Test
+  public void writeThenReadKeepsEveryRow() throws IOException {
+    PlaceDelta delta = PlaceDelta.diff(TestSources.stream(BOSTON, CAMBRIDGE, SALEM, BERLIN),
+            TestSources.stream(CAMBRIDGE_MOVED, BOSTON, LYNN, MUNICH));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    delta.write(out);
+    PlaceDelta read = PlaceDelta.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(TestSources.lines(delta.getAdded()), TestSources.lines(read.getAdded()));
+    assertEquals(TestSources.lines(delta.getRemoved()), TestSources.lines(read.getRemoved()));
+    assertEquals(TestSources.lines(delta.removals()), TestSources.lines(read.removals()));
+    assertEquals(TestSources.lines(delta.additions()), TestSources.lines(read.additions()));
+    assertEquals(ImmutableList.of(LYNN, MUNICH), TestSources.lines(read.getAdded()));
+  }
+
+  @Test
+  public void readSkipsBlankLines() throws IOException {
+    PlaceDelta delta = read("", "+\t" + LYNN, "", "-\t" + SALEM, "");
+
+    assertEquals(ImmutableList.of(LYNN), TestSources.lines(delta.getAdded()));
+    assertEquals(ImmutableList.of(SALEM), TestSources.lines(delta.getRemoved()));
+  }
+
+  @Test
+  public void readRejectsOldValueWithoutNewValue() {
+    assertMalformed("<\t" + CAMBRIDGE);
+    assertMalformed("<\t" + CAMBRIDGE, "+\t" + LYNN);
+    assertMalformed("<\t" + CAMBRIDGE, "<\t" + SALEM, ">\t" + CAMBRIDGE_MOVED);
+  }
+
+  @Test
+  public void readRejectsNewValueWithoutOldValue() {
+    assertMalformed(">\t" + CAMBRIDGE_MOVED);
+  }
+
+  @Test
+  public void readRejectsUnknownMarker() {
+    assertMalformed("*\t" + LYNN);
+  }
+
+  @Test
+  public void readRejectsLineWithoutMarker() {
+    assertMalformed(LYNN);
+    assertMalformed("+");
+  }
+
+  @Test
+  public void readRejectsUnparseableRow() {
+    assertMalformed("+\tUS\t01901\tLynn");
+  }
+
+  @Test
+  public void applyMatchesLoadingTheNewRows() {
+    for (boolean lazy : new boolean[] {false, true}) {
+      List<String> before = ImmutableList.of(BOSTON, CAMBRIDGE, SALEM);
+      List<String> after = ImmutableList.of(BOSTON, CAMBRIDGE_MOVED, LYNN);
+      PostalDb db = TestSources.load(lazy, sources(before, ImmutableList.of(BERLIN)));
+
+      PostalDb applied = db.applyDelta(PlaceDelta.diff(TestSources.stream(before), TestSources.stream(after)));
+
+      assertEquals(TestSources.contents(TestSources.load(lazy, sources(after, ImmutableList.of(BERLIN)))),
+              TestSources.contents(applied));
+      // The database the delta was applied to is left as it was
+      assertEquals(4, db.getSize());
+    }
+  }
+
+  @Test
+  public void applyRemovesAndAddsDuplicateRowsOneForOne() {
+    for (boolean lazy : new boolean[] {false, true}) {
+      List<String> before = ImmutableList.of(BOSTON, BOSTON, BOSTON, SALEM);
+      List<String> after = ImmutableList.of(BOSTON, SALEM, LYNN, LYNN);
+      PostalDb db = TestSources.load(lazy, sources(before, ImmutableList.<String>of()));
+
+      PostalDb applied = db.applyDelta(PlaceDelta.diff(TestSources.stream(before), TestSources.stream(after)));
+
+      assertEquals(sorted(after), TestSources.contents(applied));
+    }
+  }
+
+  @Test
+  public void applyMatchesLoadingAfterManyDeltas() {
+    for (boolean lazy : new boolean[] {false, true}) {
+      List<String> us = Lists.newArrayList(BOSTON, CAMBRIDGE, SALEM);
+      List<String> de = Lists.newArrayList(BERLIN);
+      PostalDb db = TestSources.load(lazy, sources(us, de));
+
+      for (int i = 0; i < 20; i++) {
+        List<String> rows = i % 3 == 0 ? de : us;
+        List<String> previous = ImmutableList.copyOf(rows);
+        String country = i % 3 == 0 ? "DE" : "US";
+        rows.add(TestSources.row(country, String.format("9%04d", i), "Added " + i, 40 + i / 10d, 10 + i / 10d));
+        if (i > 3) {
+          // Drop a row an earlier delta added
+          rows.remove(previous.size() - 2);
+        }
+        db = db.applyDelta(PlaceDelta.diff(TestSources.stream(previous), TestSources.stream(rows)));
+      }
+
+      assertEquals(TestSources.contents(TestSources.load(lazy, sources(us, de))), TestSources.contents(db));
+      assertEquals(ImmutableList.of(BERLIN), TestSources.lines(db.byName("DE", "Berlin")));
+      assertEquals(ImmutableList.of(BOSTON), TestSources.lines(db.byPostalCode("US", "02108")));
+    }
+  }
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static PlaceDelta read(String... lines) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (String line : lines) {
+      text.append(line).append('\n');
+    }
+    return PlaceDelta.read(new ByteArrayInputStream(text.toString().getBytes(Charsets.UTF_8)));
+  }
+
+  private static void assertMalformed(String... lines) {
+    try {
+      read(lines);
+      fail("Read a malformed delta");
+    } catch (IOException expected) {
+      // Rejected as it should be
+    }
+  }
+
+  private static List<PostalSource> sources(List<String> us, List<String> de) {
+    List<PostalSource> sources = Lists.newArrayList();
+    sources.add(TestSources.source("US", ImmutableList.copyOf(us)));
+    sources.add(TestSources.source("DE", ImmutableList.copyOf(de)));
+    return sources;
+  }
+
+  private static List<String> sorted(List<String> rows) {
+    List<String> list = Lists.newArrayList(rows);
+    Collections.sort(list);
+    return list;
+  }
+
+}
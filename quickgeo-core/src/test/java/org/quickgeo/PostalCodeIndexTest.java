@@ -0,0 +1,174 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * Tests the postal code lookups answered through the
+ * {@link PostalCodeIndex}: exact lookups in normalized form, and regexes
+ * that are a literal code or a literal prefix, which must find exactly what
+ * a scan with the same regex finds.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+public class PostalCodeIndexTest {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private static final List<String> US = ImmutableList.of(
+          TestSources.row("US", "02108", "Boston", 42.3576, -71.0684),
+          TestSources.row("US", "02139", "Cambridge", 42.3647, -71.1042),
+          TestSources.row("US", "00501", "Holtsville", 40.8154, -73.0451),
+          TestSources.row("US", "98101", "Seattle", 47.6114, -122.3305),
+          TestSources.row("US", "98101", "Seattle Downtown", 47.6101, -122.3421),
+          TestSources.row("US", "10001", "New York", 40.7484, -73.9967));
+
+  private static final List<String> GB = ImmutableList.of(
+          TestSources.row("GB", "SW1A 1AA", "London", 51.501, -0.1416),
+          TestSources.row("GB", "SW1A 2AA", "London", 51.5034, -0.1276),
+          TestSources.row("GB", "EC1A 1BB", "London", 51.5202, -0.0978),
+          TestSources.row("GB", "M1 1AE", "Manchester", 53.4808, -2.2426));
+
+  private static final List<String> JP = ImmutableList.of(
+          TestSources.row("JP", "100-0001", "Chiyoda", 35.6852, 139.7528),
+          TestSources.row("JP", "100-0002", "Kokyogaien", 35.6806, 139.7576),
+          TestSources.row("JP", "060-0000", "Sapporo", 43.0642, 141.3469));
+
+  // Numeric codes of several lengths, which are never padded
+  private static final List<String> XX = ImmutableList.of(
+          TestSources.row("XX", "123", "Short", 10.1, 10.1),
+          TestSources.row("XX", "0123", "Padded", 10.2, 10.2),
+          TestSources.row("XX", "12345", "Long", 10.3, 10.3));
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  @Test
+  public void exactLookupPadsNumericCodes() {
+    for (PostalDb db : databases()) {
+      assertEquals(ImmutableList.of("Boston"), names(db.byExactPostalCode("US", "2108")));
+      assertEquals(ImmutableList.of("Boston"), names(db.byExactPostalCode("us", "02108")));
+      assertEquals(ImmutableList.of("Holtsville"), names(db.byExactPostalCode("US", "501")));
+      assertEquals(ImmutableList.of("Holtsville"), names(db.byExactPostalCode("US", "0501")));
+      assertEquals(ImmutableList.of("Seattle", "Seattle Downtown"), names(db.byExactPostalCode("US", "98101")));
+      assertTrue(db.byExactPostalCode("US", "021080").isEmpty());
+    }
+  }
+
+  @Test
+  public void exactLookupDoesNotPadCodesOfSeveralLengths() {
+    for (PostalDb db : databases()) {
+      assertEquals(ImmutableList.of("Short"), names(db.byExactPostalCode("XX", "123")));
+      assertEquals(ImmutableList.of("Padded"), names(db.byExactPostalCode("XX", "0123")));
+      assertTrue(db.byExactPostalCode("XX", "00123").isEmpty());
+    }
+  }
+
+  @Test
+  public void exactLookupDropsHyphensAndSpaces() {
+    for (PostalDb db : databases()) {
+      for (String code : new String[] {"SW1A 1AA", "sw1a1aa", "SW1A-1AA", " sw1a 1aa "}) {
+        assertEquals(code, ImmutableList.of("SW1A 1AA"), codes(db.byExactPostalCode("GB", code)));
+      }
+      for (String code : new String[] {"100-0001", "1000001", "100 0001"}) {
+        assertEquals(code, ImmutableList.of("100-0001"), codes(db.byExactPostalCode("JP", code)));
+      }
+      assertEquals(ImmutableList.of("M1 1AE"), codes(db.byExactPostalCode("GB", "m11ae")));
+    }
+  }
+
+  @Test
+  public void exactLookupIsScopedToTheCountry() {
+    for (PostalDb db : databases()) {
+      assertTrue(db.byExactPostalCode("GB", "02108").isEmpty());
+      assertTrue(db.byExactPostalCode("ZZ", "02108").isEmpty());
+      assertEquals(ImmutableList.of("100-0001"), codes(db.byExactPostalCode(null, "1000001")));
+    }
+  }
+
+  @Test
+  public void literalRegexMatchesScan() {
+    List<String> codes = Lists.newArrayList();
+    for (List<String> rows : ImmutableList.of(US, GB, JP, XX)) {
+      for (Place p : SourceLoader.readText(TestSources.stream(rows))) {
+        codes.add(p.getPostalCode());
+      }
+    }
+    codes.addAll(ImmutableList.of("2108", "sw1a1aa", "1000001", "00123", "nope", ""));
+
+    for (PostalDb db : databases()) {
+      for (String code : codes) {
+        List<String> regexes = ImmutableList.of(code, code.toLowerCase(), Pattern.quote(code));
+        for (String regex : regexes) {
+          for (String countryCode : new String[] {null, "US", "gb", "JP", "ZZ"}) {
+            // Wrapping the code in a group hides it from the fast path
+            assertEquals(regex + " in " + countryCode,
+                    TestSources.lines(db.byPostalCode(countryCode, "(?:" + Pattern.quote(code) + ")")),
+                    TestSources.lines(db.byPostalCode(countryCode, regex)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void literalPrefixRegexMatchesScan() {
+    List<String> prefixes = ImmutableList.of("", "0", "02", "021", "0210", "02108", "2108", "98", "sw1a",
+            "SW1A ", "SW1A1", "m1", "100-", "100", "1", "12", "x");
+
+    for (PostalDb db : databases()) {
+      for (String prefix : prefixes) {
+        for (String countryCode : new String[] {null, "US", "GB", "jp", "ZZ"}) {
+          assertEquals(prefix + " in " + countryCode,
+                  TestSources.lines(db.byPostalCode(countryCode, "(?:" + Pattern.quote(prefix) + ").*")),
+                  TestSources.lines(db.byPostalCode(countryCode, prefix + ".*")));
+        }
+      }
+    }
+  }
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static List<PostalDb> databases() {
+    List<PostalSource> sources = Lists.newArrayList();
+    sources.add(TestSources.source("US", US));
+    sources.add(TestSources.source("GB", GB));
+    sources.add(TestSources.source("JP", JP));
+    sources.add(TestSources.source("XX", XX));
+    return ImmutableList.of(TestSources.load(false, sources), TestSources.load(true, sources));
+  }
+
+  /**
+   * The place names, sorted as the places are in storage order.
+   */
+  private static List<String> names(List<Place> places) {
+    List<String> names = Lists.newArrayList();
+    for (Place p : places) {
+      names.add(p.getPlaceName());
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static List<String> codes(List<Place> places) {
+    List<String> codes = Lists.newArrayList();
+    for (Place p : places) {
+      codes.add(p.getPostalCode());
+    }
+    return codes;
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests {@link PostalDb#suggest(String, String, int)} against a brute force
+ * ranking of every place, for databases of one partition, several, and
+ * with deltas applied.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+public class SuggestTest {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  // Several names share each count, so ties fall on the limit boundary
+  private static final List<String> US_NAMES = ImmutableList.of("Springfield", "Spring", "Spring Hill",
+          "Spring Lake", "Springdale", "Springville", "Sprague", "Salem", "San Jose", "Santa Fe", "Zürich",
+          "Zurich", "ZÜRICH", "Zion", "Boston", "Bangor", "Åland", "Aland");
+
+  private static final List<String> DE_NAMES = ImmutableList.of("Springe", "Spring", "Springfield", "Salzburg",
+          "Zürich", "Zwickau", "Berlin", "Bremen", "Äpfelbach");
+
+  private static final List<String> PREFIXES = ImmutableList.of("", "s", "S", "sp", "spring", "Spring ",
+          "springf", "sa", "z", "zu", "ZÜR", "zür", "b", "a", "ä", "x");
+
+  private static final String[] COUNTRIES = {null, "US", "de", "FR"};
+
+  private static final Comparator<String[]> BRUTE_FORCE_ORDER = new Comparator<String[]>() {
+    @Override
+    public int compare(String[] a, String[] b) {
+      int byCount = Integer.parseInt(b[2]) - Integer.parseInt(a[2]);
+      if (byCount != 0) {
+        return byCount;
+      }
+      int byKey = a[0].compareTo(b[0]);
+      return byKey != 0 ? byKey : a[1].compareTo(b[1]);
+    }
+  };
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  @Test
+  public void eagerMatchesBruteForce() {
+    assertMatchesBruteForce(TestSources.load(false, sources(false)));
+  }
+
+  @Test
+  public void lazyMatchesBruteForce() {
+    assertMatchesBruteForce(TestSources.load(true, sources(false)));
+  }
+
+  @Test
+  public void namesSplitAcrossPartitionsAreSummed() {
+    // Two sources of the same country put each name's rows in two partitions
+    PostalDb db = TestSources.load(true, sources(true));
+    assertMatchesBruteForce(db);
+
+    List<PostalDb.Suggestion> suggestions = db.suggest("US", "springfield", 1);
+    assertEquals(1, suggestions.size());
+    assertEquals(count(db, "springfield", "US"), suggestions.get(0).getPostalCodeCount());
+  }
+
+  @Test
+  public void deltaAppliedMatchesBruteForce() {
+    for (boolean lazy : new boolean[] {false, true}) {
+      List<String> before = rows("US", US_NAMES, 11);
+      List<String> after = Lists.newArrayList(before);
+      Random random = new Random(5);
+      for (int i = 0; i < 12; i++) {
+        // Removes rows of names the base partitions hold
+        after.remove(random.nextInt(after.size()));
+      }
+      for (int i = 0; i < 12; i++) {
+        // Adds rows of names the base partitions hold, and a new one
+        String name = i == 0 ? "Springtown" : US_NAMES.get(random.nextInt(US_NAMES.size()));
+        after.add(TestSources.row("US", String.format("9%04d", i), name, 30 + i / 10d, -90 - i / 10d));
+      }
+
+      List<PostalSource> sources = Lists.newArrayList();
+      sources.add(TestSources.source("US", before));
+      sources.add(TestSources.source("DE", rows("DE", DE_NAMES, 13)));
+      PostalDb db = TestSources.load(lazy, sources);
+      db = db.applyDelta(PlaceDelta.diff(TestSources.stream(before), TestSources.stream(after)));
+      assertMatchesBruteForce(db);
+
+      // A second delta merges into the first one's partition
+      List<String> again = Lists.newArrayList(after);
+      again.remove(after.size() - 1);
+      again.add(TestSources.row("US", "98888", "Springfield", 31, -91));
+      db = db.applyDelta(PlaceDelta.diff(TestSources.stream(after), TestSources.stream(again)));
+      assertMatchesBruteForce(db);
+    }
+  }
+
+  @Test
+  public void limitOfZeroSuggestsNothing() {
+    assertTrue(TestSources.load(false, sources(false)).suggest("s", 0).isEmpty());
+  }
+
+  //---------------------------- Utility Methods ------------------------------
+
+  private static void assertMatchesBruteForce(PostalDb db) {
+    for (String prefix : PREFIXES) {
+      for (String countryCode : COUNTRIES) {
+        List<String[]> expected = bruteForce(db, prefix, countryCode);
+        for (int limit = 1; limit <= expected.size() + 1; limit++) {
+          List<PostalDb.Suggestion> actual = countryCode == null ? db.suggest(prefix, limit)
+                  : db.suggest(countryCode, prefix, limit);
+          String context = "'" + prefix + "' in " + countryCode + " limit " + limit;
+
+          assertEquals(context, Math.min(limit, expected.size()), actual.size());
+          for (int i = 0; i < actual.size(); i++) {
+            PostalDb.Suggestion s = actual.get(i);
+            assertEquals(context, expected.get(i)[0], NameSuggester.normalize(s.getName()));
+            assertEquals(context, expected.get(i)[1], s.getCountryCode());
+            assertEquals(context, Integer.parseInt(expected.get(i)[2]), s.getPostalCodeCount());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Rank every key starting with a prefix, as key, country and count.
+   */
+  private static List<String[]> bruteForce(PostalDb db, String prefix, String countryCode) {
+    String start = NameSuggester.normalize(prefix);
+    Map<String, Integer> counts = Maps.newHashMap();
+    for (Place p : db.withinRect(TestSources.WORLD)) {
+      String key = NameSuggester.normalize(p.getPlaceName());
+      if (key.startsWith(start) && (countryCode == null || countryCode.equalsIgnoreCase(p.getCountryCode()))) {
+        String id = key + "\t" + p.getCountryCode();
+        counts.put(id, counts.containsKey(id) ? counts.get(id) + 1 : 1);
+      }
+    }
+
+    List<String[]> ranked = Lists.newArrayList();
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      String[] keyAndCountry = entry.getKey().split("\t");
+      ranked.add(new String[] {keyAndCountry[0], keyAndCountry[1], entry.getValue().toString()});
+    }
+    Collections.sort(ranked, BRUTE_FORCE_ORDER);
+    return ranked;
+  }
+
+  private static int count(PostalDb db, String key, String countryCode) {
+    List<String[]> ranked = bruteForce(db, key, countryCode);
+    for (String[] entry : ranked) {
+      if (entry[0].equals(key)) {
+        return Integer.parseInt(entry[2]);
+      }
+    }
+    return 0;
+  }
+
+  private static List<PostalSource> sources(boolean split) {
+    List<String> us = rows("US", US_NAMES, 11);
+    List<PostalSource> sources = Lists.newArrayList();
+    if (split) {
+      sources.add(TestSources.source("US", us.subList(0, us.size() / 2)));
+      sources.add(TestSources.source("US", us.subList(us.size() / 2, us.size())));
+    } else {
+      sources.add(TestSources.source("US", us));
+    }
+    sources.add(TestSources.source("DE", rows("DE", DE_NAMES, 13)));
+    return sources;
+  }
+
+  /**
+   * Give each name between one and four rows, shuffled so a split source
+   * divides a name's rows.
+   */
+  private static List<String> rows(String countryCode, List<String> names, long seed) {
+    Random random = new Random(seed);
+    List<String> rows = Lists.newArrayList();
+    for (String name : names) {
+      int copies = 1 + random.nextInt(4);
+      for (int i = 0; i < copies; i++) {
+        int n = rows.size();
+        rows.add(TestSources.row(countryCode, String.format("%05d", 10000 + n), name,
+                40 + n / 100d, -70 - n / 100d));
+      }
+    }
+    Collections.shuffle(rows, random);
+    return rows;
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds small in memory {@link PostalSource PostalSources} and databases
+ * for the tests, so they don't depend on any generated country module.
+ *
+ * @since 0.1.1
+ * @author Jason Nichols (jason@kickroot.com)
+ */
+final class TestSources {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /** A rectangle holding every place on earth. */
+  static final PostalDb.GeoRect WORLD = new PostalDb.GeoRect(90, -180, -90, 180);
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Format a GeoNames row with placeholder admin fields.
+   */
+  static String row(String countryCode, String postalCode, String placeName, double latitude, double longitude) {
+    return Joiner.on('\t').join(countryCode, postalCode, placeName, "State", "ST", "County", "001", "", "",
+            latitude, longitude, 4);
+  }
+
+  static InputStream stream(List<String> rows) {
+    StringBuilder text = new StringBuilder();
+    for (String row : rows) {
+      text.append(row).append('\n');
+    }
+    return new ByteArrayInputStream(text.toString().getBytes(Charsets.UTF_8));
+  }
+
+  static InputStream stream(String... rows) {
+    return stream(Arrays.asList(rows));
+  }
+
+  /**
+   * Create a source of a single country holding a set of rows.
+   */
+  static PostalSource source(final String countryCode, final List<String> rows) {
+    return new PostalSource() {
+      @Override
+      public InputStream getStream() {
+        return stream(rows);
+      }
+
+      @Override
+      public String getCountryCode() {
+        return countryCode;
+      }
+    };
+  }
+
+  /**
+   * Load a set of sources, either eagerly or lazily.
+   */
+  static PostalDb load(boolean lazy, List<PostalSource> sources) {
+    String previous = System.getProperty(PostalDbFactory.LAZY_PROPERTY);
+    System.setProperty(PostalDbFactory.LAZY_PROPERTY, Boolean.toString(lazy));
+    try {
+      return PostalDbFactory.fromSources(sources);
+    } finally {
+      if (previous == null) {
+        System.clearProperty(PostalDbFactory.LAZY_PROPERTY);
+      } else {
+        System.setProperty(PostalDbFactory.LAZY_PROPERTY, previous);
+      }
+    }
+  }
+
+  /**
+   * Format places as GeoNames rows, keeping their order.
+   */
+  static List<String> lines(List<Place> places) {
+    List<String> lines = Lists.newArrayList();
+    for (Place p : places) {
+      lines.add(PlaceDelta.line(p));
+    }
+    return lines;
+  }
+
+  /**
+   * Format every place of a database as GeoNames rows, sorted so that
+   * databases holding the same rows in another order compare equal.
+   */
+  static List<String> contents(PostalDb db) {
+    List<String> lines = lines(db.withinRect(WORLD));
+    Collections.sort(lines);
+    return lines;
+  }
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private TestSources() {
+  }
+
+}
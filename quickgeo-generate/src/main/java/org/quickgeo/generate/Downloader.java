@@ -6,46 +6,145 @@
 
 package org.quickgeo.generate;
 
-import com.google.common.collect.ImmutableMap;
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.logging.Level;
-import org.apache.commons.io.FileUtils;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.IOUtils;
 
 /**
- *
+ * Fetches the GeoNames postal export of a country and unzips its data file
+ * straight from the response stream, without a temporary file.
  */
 public final class Downloader {
   
-  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  /**
+   * The outcome of fetching an export.
+   */
+  public static final class Download {
+    
+    private final byte[] data;
+    private final String etag;
+    private final long lastModified;
+    private final boolean modified;
+    
+    Download(byte[] data, String etag, long lastModified, boolean modified) {
+      this.data = data;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.modified = modified;
+    }
+    
+    /**
+     * @return the contents of the data file, or null if the export wasn't
+     * modified or has no data file
+     */
+    public byte[] getData() {
+      return data;
+    }
+    
+    /**
+     * @return the entity tag of the export, or null if the server sent none
+     */
+    public String getEtag() {
+      return etag;
+    }
+    
+    /**
+     * @return the modification time of the export, or 0 if unknown
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+    
+    /**
+     * @return false if the export is known to be unchanged since the last
+     * fetch, in which case nothing was downloaded
+     */
+    public boolean isModified() {
+      return modified;
+    }
+  }
   
-  private static final String URL_STRING = "http://download.geonames.org/export/zip/;cc;.zip";
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
   private static final String REPLACE_ARTIFACT = "quickgeo-";
   
   ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
-  public static final ImmutableMap<String, File> download(Dataset dataset) {
+  /**
+   * Get the country code a data module is generated for.
+   * @param artifact The artifact id of the module, such as quickgeo-us
+   * @return The upper case country code, such as US.
+   */
+  public static String countryCode(String artifact) {
+    return artifact.replaceAll(REPLACE_ARTIFACT, "").toUpperCase();
+  }
+  
+  /**
+   * Fetch the postal data of a country.  The zip is read as it arrives, and
+   * only the country's data file is kept.  When the previous fetch is known
+   * the request is made conditional on the export having changed since, and
+   * for a URL without HTTP semantics, such as a file: URL, the modification
+   * time is compared instead.
+   * @param urlPattern The URL of the export, with ;cc; standing for the
+   * country code.  Any URL Java can open will do, so a file: URL or a
+   * loopback HTTP server can stand in for download.geonames.org.
+   * @param cc The upper case country code
+   * @param etag The entity tag of the previous fetch, or null
+   * @param lastModified The modification time of the previous fetch, or 0
+   * @return The download.
+   * @throws IOException If the export can't be fetched or unzipped.
+   */
+  public static Download fetch(String urlPattern, String cc, String etag, long lastModified) throws IOException {
+    String url = urlPattern.replaceAll(";cc;", cc);
     
-    ImmutableMap.Builder<String, File> builder = new ImmutableMap.Builder<String, File>();
+    URLConnection connection = new URL(url).openConnection();
+    if (etag != null) {
+      connection.setRequestProperty("If-None-Match", etag);
+    }
+    if (lastModified > 0) {
+      connection.setIfModifiedSince(lastModified);
+    }
     
-    for (String artifact : dataset.getArtifacts()) {
-      try {
-        String cc = artifact.replaceAll(REPLACE_ARTIFACT, "").toUpperCase();
-        String url = URL_STRING.replaceAll(";cc;", cc);        
-        
-        File tempFile = File.createTempFile("geo-" + cc + System.currentTimeMillis(), null);        
-        FileUtils.copyURLToFile(new URL(url), tempFile);
-        builder.put(cc, tempFile);
-        
-        Settings.getSettings().getLogger().log(Level.INFO, "Downloaded file from {0} to {1}", new Object[]{url, tempFile.getPath()}) ;
-        
-      } catch (Exception ex) {
-        Settings.getSettings().getLogger().log(Level.WARNING, "Couldn't fetch artifact", ex);
+    InputStream in = null;
+    try {
+      if (connection instanceof HttpURLConnection
+              && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+        Settings.getSettings().getLogger().log(Level.INFO, "Export of {0} not modified", cc);
+        return new Download(null, etag, lastModified, false);
+      }
+      
+      in = connection.getInputStream();
+      String newEtag = connection.getHeaderField("ETag");
+      long newLastModified = connection.getLastModified();
+      if (!(connection instanceof HttpURLConnection) && lastModified > 0 && newLastModified == lastModified) {
+        Settings.getSettings().getLogger().log(Level.INFO, "Export of {0} not modified", cc);
+        return new Download(null, etag, lastModified, false);
+      }
+      
+      ZipInputStream zip = new ZipInputStream(in);
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (entry.getName().equals(cc + ".txt")) {
+          byte[] data = IOUtils.toByteArray(zip);
+          Settings.getSettings().getLogger().log(Level.INFO, "Fetched {0} bytes of {1} from {2}",
+                  new Object[]{data.length, entry.getName(), url});
+          return new Download(data, newEtag, newLastModified, true);
+        }
+      }
+      return new Download(null, newEtag, newLastModified, true);
+    } finally {
+      if (in != null) {
+        in.close();
+      } else if (connection instanceof HttpURLConnection) {
+        ((HttpURLConnection) connection).disconnect();
       }
     }
-    
-    return builder.build();    
   }
   
   //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
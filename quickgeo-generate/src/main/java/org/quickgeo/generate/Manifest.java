@@ -0,0 +1,211 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. 
+ */
+
+package org.quickgeo.generate;
+
+import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Records what each data module was last generated from, so a run only
+ * fetches and regenerates the countries whose exports have changed.
+ *
+ * For each country the manifest keeps the entity tag and modification time
+ * the export was served with, which make the next fetch conditional, and a
+ * SHA-256 of its data file, which catches an export that was served again
+ * with identical content.  It also keeps a SHA-256 of the templates, and a
+ * change to any template makes every module stale.  The manifest is a
+ * properties file:
+ *
+ * <pre>
+ *   templates=&lt;sha256 of the templates&gt;
+ *   US.sha256=&lt;sha256 of US.txt&gt;
+ *   US.etag=&lt;entity tag of US.zip&gt;
+ *   US.lastModified=&lt;modification time of US.zip, in milliseconds&gt;
+ * </pre>
+ *
+ * A country is only recorded once its module has been written, so a run
+ * that fails part way regenerates the rest next time.
+ */
+public final class Manifest {
+  
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  private static final String TEMPLATES = "templates";
+  
+  private static final String SHA256 = ".sha256";
+  
+  private static final String ETAG = ".etag";
+  
+  private static final String LAST_MODIFIED = ".lastModified";
+  
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  /**
+   * Read the manifest of the previous run.
+   * @param file The manifest, which need not exist
+   * @param force Whether to ignore what was recorded and regenerate every
+   * module
+   * @return The manifest, which is empty if the file doesn't exist, if it
+   * was written for other templates or if forced.
+   * @throws IOException If the manifest or the templates can't be read.
+   */
+  public static Manifest load(File file, boolean force) throws IOException {
+    String templates = templatesHash();
+    Properties properties = new Properties();
+    if (!force && file.isFile()) {
+      FileInputStream fis = new FileInputStream(file);
+      try {
+        properties.load(fis);
+      } finally {
+        fis.close();
+      }
+      if (!templates.equals(properties.getProperty(TEMPLATES))) {
+        Settings.getSettings().getLogger().log(Level.INFO, "Templates changed, regenerating every module");
+        properties.clear();
+      }
+    }
+    properties.setProperty(TEMPLATES, templates);
+    return new Manifest(file, properties);
+  }
+  
+  /**
+   * @return the SHA-256 of a data file, as lower case hex
+   */
+  static String hash(byte[] data) {
+    return Hashing.sha256().hashBytes(data).toString();
+  }
+  
+  private static String templatesHash() throws IOException {
+    File[] templates = new File(Settings.getSettings().getGenerationFolder(), "template").listFiles();
+    if (templates == null) {
+      throw new IOException("No template folder in " + Settings.getSettings().getGenerationFolder());
+    }
+    Arrays.sort(templates);
+    
+    StringBuilder hashes = new StringBuilder();
+    for (File template : templates) {
+      if (template.isFile()) {
+        hashes.append(template.getName()).append('=').append(hash(FileUtils.readFileToByteArray(template))).append('\n');
+      }
+    }
+    return hash(hashes.toString().getBytes("UTF-8"));
+  }
+  
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  private final File file;
+  
+  private final Properties properties;
+  
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
+  
+  private Manifest(File file, Properties properties) {
+    this.file = file;
+    this.properties = properties;
+  }
+  
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+  
+  /**
+   * Check whether a module was generated from exactly this data file, and
+   * is still on disk.
+   * @param cc The upper case country code
+   * @param sha256 The hash of the data file
+   */
+  public synchronized boolean isCurrent(String cc, String sha256) {
+    return sha256.equals(properties.getProperty(cc + SHA256)) && moduleExists(cc);
+  }
+  
+  /**
+   * Record the export a module has just been generated from.
+   * @param cc The upper case country code
+   * @param sha256 The hash of the data file
+   * @param etag The entity tag of the export, or null
+   * @param lastModified The modification time of the export, or 0
+   */
+  public synchronized void put(String cc, String sha256, String etag, long lastModified) {
+    properties.setProperty(cc + SHA256, sha256);
+    if (etag != null) {
+      properties.setProperty(cc + ETAG, etag);
+    } else {
+      properties.remove(cc + ETAG);
+    }
+    if (lastModified > 0) {
+      properties.setProperty(cc + LAST_MODIFIED, Long.toString(lastModified));
+    } else {
+      properties.remove(cc + LAST_MODIFIED);
+    }
+  }
+  
+  /**
+   * Write the manifest next to its final location, then move it into place.
+   * @throws IOException If the manifest can't be written.
+   */
+  public synchronized void save() throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(temp);
+    try {
+      properties.store(fos, "QuickGeo generated modules");
+    } finally {
+      fos.close();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  //------------------------ Implements:
+  
+  //------------------------ Overrides:
+  
+  //---------------------------- Abstract Methods -----------------------------
+  
+  //---------------------------- Utility Methods ------------------------------
+  
+  private boolean isRecorded(String cc) {
+    return properties.getProperty(cc + SHA256) != null && moduleExists(cc);
+  }
+  
+  private static boolean moduleExists(String cc) {
+    return new File(Settings.getSettings().getProjectFolder(),
+            "quickgeo-" + cc.toLowerCase() + "/src/main/resources/" + cc + ".bin").isFile();
+  }
+  
+  //---------------------------- Property Methods -----------------------------     
+  
+  /**
+   * @return the entity tag of the export the module was generated from, or
+   * null if unknown or the module must be regenerated regardless
+   */
+  public synchronized String getEtag(String cc) {
+    return isRecorded(cc) ? properties.getProperty(cc + ETAG) : null;
+  }
+  
+  /**
+   * @return the modification time of the export the module was generated
+   * from, or 0 if unknown or the module must be regenerated regardless
+   */
+  public synchronized long getLastModified(String cc) {
+    String value = isRecorded(cc) ? properties.getProperty(cc + LAST_MODIFIED) : null;
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+}
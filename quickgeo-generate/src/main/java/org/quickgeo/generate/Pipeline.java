@@ -0,0 +1,240 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.quickgeo.generate;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Generates data modules in a bounded parallel pipeline of three stages:
+ *
+ * <ol>
+ *   <li>fetch each country's export and unzip its data file as the bytes
+ *   arrive, on a few threads since this is mostly waiting on the network</li>
+ *   <li>transform the data into the module's sources and precompiled
+ *   resources, on one thread per processor</li>
+ *   <li>write the module, on a single thread so modules replace each other's
+ *   folders one at a time</li>
+ * </ol>
+ *
+ * Each stage has a pool of its own, so a country is fetched while another
+ * is transformed and a third is written.  A country only starts fetching
+ * once fewer than the maximum number are in flight, which holds the fetch
+ * stage back whenever the later stages fall behind and bounds how many
+ * data files are held in memory.  A country that fails at any stage is
+ * logged and skipped, and the rest carry on.
+ *
+ * With a {@link Manifest} only countries whose data changed are
+ * regenerated.  The fetch is conditional on the export having changed
+ * since the module was generated, and a data file whose hash matches the
+ * one recorded skips the transform and write stages, so the module's files,
+ * and the build of its jar, are left alone.  The manifest is saved, through
+ * an atomic move, as soon as each module is written, so a run that is
+ * killed part way through keeps a record of every module it finished.
+ */
+public final class Pipeline {
+
+  ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  private final String downloadUrl;
+
+  private final int fetchThreads;
+
+  private final int transformThreads;
+
+  private final int maxInFlight;
+
+  private final Manifest manifest;
+
+  /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * @param downloadUrl The URL of each export, with ;cc; standing for the
+   * country code, see {@link Downloader#fetch(String, String, String, long)}
+   * @param fetchThreads The number of exports fetched at once
+   * @param transformThreads The number of modules rendered at once
+   * @param maxInFlight The number of countries between fetching and writing
+   * at once
+   * @param manifest What each module was last generated from, which is
+   * updated and saved as modules are written
+   */
+  public Pipeline(String downloadUrl, int fetchThreads, int transformThreads, int maxInFlight,
+          Manifest manifest) {
+    this.downloadUrl = downloadUrl;
+    this.fetchThreads = Math.max(1, fetchThreads);
+    this.transformThreads = Math.max(1, transformThreads);
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.manifest = manifest;
+  }
+
+  ////////////////////////////////// Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
+
+  /**
+   * Generate a data module for each artifact, and wait for them all.
+   * @param artifacts The artifact ids of the modules, such as quickgeo-us
+   * @return The number of modules written, which leaves out those that were
+   * already current.
+   * @throws InterruptedException If interrupted while waiting, in which case
+   * the countries in flight are abandoned.
+   * @throws IOException If the manifest can't be saved.
+   */
+  public int run(List<String> artifacts) throws InterruptedException, IOException {
+    final ExecutorService fetchPool = Executors.newFixedThreadPool(fetchThreads);
+    final ExecutorService transformPool = Executors.newFixedThreadPool(transformThreads);
+    final ExecutorService writePool = Executors.newSingleThreadExecutor();
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicInteger current = new AtomicInteger();
+    long start = System.nanoTime();
+
+    try {
+      List<CompletableFuture<Void>> modules = Lists.newArrayList();
+      for (String artifact : artifacts) {
+        final String cc = Downloader.countryCode(artifact);
+
+        // Blocks while the later stages are behind
+        inFlight.acquire();
+
+        CompletableFuture<Void> module = CompletableFuture.supplyAsync(new Supplier<Downloader.Download>() {
+          @Override
+          public Downloader.Download get() {
+            try {
+              return Downloader.fetch(downloadUrl, cc, manifest.getEtag(cc), manifest.getLastModified(cc));
+            } catch (Exception ex) {
+              throw new CompletionException(ex);
+            }
+          }
+        }, fetchPool).thenApplyAsync(new Function<Downloader.Download, Rendered>() {
+          @Override
+          public Rendered apply(Downloader.Download download) {
+            if (!download.isModified()) {
+              // A delta left by an earlier run no longer applies
+              TemplateWriter.deleteDeltaFile(cc);
+              current.incrementAndGet();
+              return null;
+            }
+            if (download.getData() == null) {
+              Settings.getSettings().getLogger().log(Level.WARNING, "No data file in the export of {0}", cc);
+              return null;
+            }
+            String sha256 = Manifest.hash(download.getData());
+            if (manifest.isCurrent(cc, sha256)) {
+              // Served again with the same content, so only the validators are new
+              Settings.getSettings().getLogger().log(Level.INFO, "Data of {0} unchanged", cc);
+              manifest.put(cc, sha256, download.getEtag(), download.getLastModified());
+              TemplateWriter.deleteDeltaFile(cc);
+              current.incrementAndGet();
+              try {
+                manifest.save();
+              } catch (IOException ex) {
+                throw new CompletionException(ex);
+              }
+              return null;
+            }
+            try {
+              return new Rendered(TemplateWriter.transform(cc, download.getData()), download, sha256);
+            } catch (Exception ex) {
+              throw new CompletionException(ex);
+            }
+          }
+        }, transformPool).thenAcceptAsync(new Consumer<Rendered>() {
+          @Override
+          public void accept(Rendered rendered) {
+            if (rendered == null) {
+              return;
+            }
+            try {
+              TemplateWriter.write(rendered.module);
+              manifest.put(cc, rendered.sha256, rendered.download.getEtag(), rendered.download.getLastModified());
+              // Saved as each module lands, so a run killed part way through
+              // doesn't regenerate the modules it already wrote
+              manifest.save();
+              written.incrementAndGet();
+            } catch (Exception ex) {
+              throw new CompletionException(ex);
+            }
+          }
+        }, writePool).whenComplete(new BiConsumer<Void, Throwable>() {
+          @Override
+          public void accept(Void result, Throwable t) {
+            inFlight.release();
+            if (t != null) {
+              Settings.getSettings().getLogger().log(Level.WARNING, "Couldn't generate module for " + cc,
+                      t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            }
+          }
+        });
+        modules.add(module);
+      }
+
+      // Failures were logged as they happened
+      for (CompletableFuture<Void> module : modules) {
+        try {
+          module.join();
+        } catch (CompletionException ex) {
+          continue;
+        }
+      }
+    } finally {
+      fetchPool.shutdownNow();
+      transformPool.shutdownNow();
+      writePool.shutdownNow();
+    }
+
+    // Every module written was recorded as it landed, so this only records
+    // the templates when nothing was
+    manifest.save();
+
+    Settings.getSettings().getLogger().log(Level.INFO, "Generated {0} of {1} modules, {2} already current, in {3} ms",
+            new Object[]{written.get(), artifacts.size(), current.get(), (System.nanoTime() - start) / 1000000});
+    return written.get();
+  }
+
+  //------------------------ Implements:
+
+  //------------------------ Overrides:
+
+  //---------------------------- Abstract Methods -----------------------------
+
+  //---------------------------- Utility Methods ------------------------------
+
+  //---------------------------- Property Methods -----------------------------
+
+  /**
+   * A rendered module along with the export it was rendered from, which is
+   * recorded in the manifest once the module is written.
+   */
+  private static final class Rendered {
+
+    private final TemplateWriter.Module module;
+    private final Downloader.Download download;
+    private final String sha256;
+
+    Rendered(TemplateWriter.Module module, Downloader.Download download, String sha256) {
+      this.module = module;
+      this.download = download;
+      this.sha256 = sha256;
+    }
+  }
+
+}
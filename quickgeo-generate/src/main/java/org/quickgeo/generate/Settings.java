@@ -34,12 +34,30 @@ public final class Settings {
   
   private final File parentPomFile = new File(projectFolder, "pom.xml");
   
-  private final ImmutableList<String> blacklist = ImmutableList.of("quickgeo-core", "quickgeo-generate");  
+  private final ImmutableList<String> blacklist = ImmutableList.of("quickgeo-core", "quickgeo-generate", "quickgeo-benchmarks");  
   
   private final Logger logger = Logger.getLogger("QuickGeo Generator");  
 
   private final File generationFolder = new File(projectFolder, "quickgeo-generate");
   
+  private final File deltaFolder = new File(generationFolder, "delta");
+  
+  private final File manifestFile = new File(generationFolder, "manifest.properties");
+  
+  // Regenerate every module, whatever the manifest records
+  private final boolean force = Boolean.getBoolean("org.quickgeo.generate.force");
+  
+  // ;cc; stands for the country code
+  private final String downloadUrl = System.getProperty("org.quickgeo.generate.url",
+          "http://download.geonames.org/export/zip/;cc;.zip");
+  
+  private final int fetchThreads = Integer.getInteger("org.quickgeo.generate.fetchThreads", 4);
+  
+  private final int transformThreads = Integer.getInteger("org.quickgeo.generate.transformThreads",
+          Runtime.getRuntime().availableProcessors());
+  
+  private final int maxInFlight = Integer.getInteger("org.quickgeo.generate.maxInFlight", 8);
+  
   /////////////////////////////// Constructors \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\  
   
   private Settings(){}
@@ -92,4 +110,56 @@ public final class Settings {
   public File getGenerationFolder() {
     return generationFolder;
   }
+  
+  /**
+   * @return the folder each country's delta against the previous data is
+   * written to
+   */
+  public File getDeltaFolder() {
+    return deltaFolder;
+  }
+  
+  /**
+   * @return the manifest recording what each module was generated from
+   */
+  public File getManifestFile() {
+    return manifestFile;
+  }
+  
+  /**
+   * @return whether every module is regenerated, whatever the manifest
+   * records
+   */
+  public boolean isForce() {
+    return force;
+  }
+  
+  /**
+   * @return the URL each country's export is fetched from, with ;cc;
+   * standing for the country code
+   */
+  public String getDownloadUrl() {
+    return downloadUrl;
+  }
+  
+  /**
+   * @return the number of exports fetched at once
+   */
+  public int getFetchThreads() {
+    return fetchThreads;
+  }
+  
+  /**
+   * @return the number of modules rendered at once
+   */
+  public int getTransformThreads() {
+    return transformThreads;
+  }
+  
+  /**
+   * @return the number of countries between fetching and writing at once
+   */
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
 }
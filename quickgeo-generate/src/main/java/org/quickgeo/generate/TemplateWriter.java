@@ -6,68 +6,133 @@
 
 package org.quickgeo.generate;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.URI;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.logging.Level;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.quickgeo.PlaceCodec;
+import org.quickgeo.PlaceDelta;
 
 /**
  *
  */
 public final class TemplateWriter {
   
+  /**
+   * The rendered contents of a data module, handed from the transform stage
+   * of the {@link Pipeline} to its write stage.
+   */
+  static final class Module {
+    
+    private final String key;
+    private final String pom;
+    private final String classData;
+    private final byte[] text;
+    private final byte[] binary;
+    private final PlaceDelta delta;
+    
+    Module(String key, String pom, String classData, byte[] text, byte[] binary, PlaceDelta delta) {
+      this.key = key;
+      this.pom = pom;
+      this.classData = classData;
+      this.text = text;
+      this.binary = binary;
+      this.delta = delta;
+    }
+  }
+  
   ///////////////////////////// Class Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
+  private static final Splitter SPLITTER = Splitter.on("\t").trimResults();
+  
   ////////////////////////////// Class Methods \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
   
-  public static void writeTemplates(ImmutableMap<String, InputStream> input) {
-    for (Entry<String, InputStream> entry : input.entrySet()) {
-      writeTemplate(entry.getKey(), entry.getValue());
+  /**
+   * Render everything a data module is generated from.  This is the CPU
+   * heavy part of generating a module, and touches nothing on disk apart
+   * from reading the module's previous data file.
+   * @param key The upper case country code
+   * @param data The GeoNames postal text file of the country
+   * @return The rendered module, ready to {@link #write(Module) write}.
+   */
+  static Module transform(String key, byte[] data) throws Exception {
+    File moduleFolder = moduleFolder(key);
+    
+    String pom = readTemplate("pom.xml", key);
+    
+    // The precompiled form is loaded in preference to the text at runtime
+    ByteArrayOutputStream binary = new ByteArrayOutputStream(data.length / 4);
+    PlaceCodec.encode(new ByteArrayInputStream(data), binary);
+    
+    // The class file embeds the bounds of the data, and the checksum of its
+    // binary form so a store or snapshot can be validated without reading it
+    String classData = readTemplate("cc.java", key).replaceAll(";BOUNDS;", bounds(data))
+            .replaceAll(";CHECKSUM;", PlaceCodec.checksum(new ByteArrayInputStream(binary.toByteArray())));
+    
+    // Compare against the data being replaced, before the writer deletes it
+    PlaceDelta delta = null;
+    File previousFile = new File(moduleFolder, "src/main/resources/" + key.toUpperCase() + ".txt");
+    if (previousFile.isFile()) {
+      byte[] previous = FileUtils.readFileToByteArray(previousFile);
+      delta = PlaceDelta.diff(new ByteArrayInputStream(previous), new ByteArrayInputStream(data));
     }
+    
+    return new Module(key, pom, classData, data, binary.toByteArray(), delta);
   }
   
-  
-  private static void writeTemplate(String key, InputStream data) {
-  
-    try {
-      
-      // Make required folders
-      File moduleFolder = new File(Settings.getSettings().getProjectFolder(), "quickgeo-" + key.toLowerCase());
-      moduleFolder.mkdirs();
-      Settings.getSettings().getLogger().log(Level.INFO, "Writing folder{0}", moduleFolder.getPath());
-      
-      File pomFile = new File(moduleFolder, "pom.xml");
-      
-      copyPomFile(key, pomFile);
-      
-      writeServicesFile(key, moduleFolder);
-      
-      writeClassFile(key, moduleFolder);
-      
-      writeDataFile(key, moduleFolder, data);
-      
-    } catch (Exception ex) {
-      Settings.getSettings().getLogger().log(Level.INFO, "Couldn't write out template", ex);
+  /**
+   * Replace a data module with a newly rendered one.
+   * @param module The module to write
+   */
+  static void write(Module module) throws Exception {
+    String key = module.key;
+    
+    // Make required folders
+    File moduleFolder = moduleFolder(key);
+    Settings.getSettings().getLogger().log(Level.INFO, "Deleting folder {0}", moduleFolder.getPath());
+    FileUtils.deleteDirectory(moduleFolder);
+    moduleFolder.mkdirs();
+    Settings.getSettings().getLogger().log(Level.INFO, "Writing folder{0}", moduleFolder.getPath());
+    
+    FileUtils.writeStringToFile(new File(moduleFolder, "pom.xml"), module.pom, "UTF-8");
+    
+    writeServicesFile(key, moduleFolder);
+    
+    File classFolder = new File(moduleFolder, "src/main/java/org/quickgeo/data");
+    classFolder.mkdirs();
+    FileUtils.writeStringToFile(new File(classFolder, key.toUpperCase() + ".java"), module.classData, "UTF-8");
+    
+    File resourcesFolder = new File(moduleFolder, "src/main/resources");
+    resourcesFolder.mkdirs();
+    FileUtils.writeByteArrayToFile(new File(resourcesFolder, key.toUpperCase() + ".txt"), module.text);
+    FileUtils.writeByteArrayToFile(new File(resourcesFolder, key.toUpperCase() + ".bin"), module.binary);
+    
+    if (module.delta != null) {
+      writeDeltaFile(key, module.delta);
     }
   }
   
+  private static File moduleFolder(String key) {
+    return new File(Settings.getSettings().getProjectFolder(), "quickgeo-" + key.toLowerCase());
+  }
   
-  private static void copyPomFile(String key, File pomFile) throws Exception {
-  
-    String pom = FileUtils.readFileToString(new File(new File(Settings.getSettings().getGenerationFolder(), "template"), "pom.xml"), "UTF-8");
-    pom = pom.replaceAll(";cc;", key.toLowerCase());
-    pom = pom.replaceAll(";CC;", key.toUpperCase());
-    
-    FileUtils.writeStringToFile(pomFile, pom, "UTF-8");
+  private static String readTemplate(String name, String key) throws Exception {
+    String template = FileUtils.readFileToString(new File(new File(Settings.getSettings().getGenerationFolder(), "template"), name), "UTF-8");
+    template = template.replaceAll(";cc;", key.toLowerCase());
+    template = template.replaceAll(";CC;", key.toUpperCase());
+    return template;
   }
   
   private static void writeServicesFile(String key, File moduleFolder) throws Exception {
-    File servicesFolder = new File(new URI("file://" + moduleFolder.getPath() + "/src/main/resources/META-INF/services"));
+    File servicesFolder = new File(moduleFolder, "src/main/resources/META-INF/services");
     servicesFolder.mkdirs();
     String serviceString = "org.quickgeo.data." + key.toUpperCase();
     File servicesFile = new File(servicesFolder, "org.quickgeo.PostalSource");
@@ -75,25 +140,78 @@ public final class TemplateWriter {
     
   }
   
-  private static void writeClassFile(String key, File moduleFolder) throws Exception {
-    String classData = FileUtils.readFileToString(new File(new File(Settings.getSettings().getGenerationFolder(), "template"), "cc.java"), "UTF-8");
-    classData = classData.replaceAll(";cc;", key.toLowerCase());
-    classData = classData.replaceAll(";CC;", key.toUpperCase());
+  /**
+   * Write the rows added, removed and changed since the previous data, which
+   * a running PostalDb can apply without reloading the whole country.
+   */
+  private static void writeDeltaFile(String key, PlaceDelta delta) throws Exception {
+    File deltaFolder = Settings.getSettings().getDeltaFolder();
+    deltaFolder.mkdirs();
+    File deltaFile = new File(deltaFolder, key.toUpperCase() + ".delta");
+    FileOutputStream fos = new FileOutputStream(deltaFile);
+    try {
+      delta.write(fos);
+    } finally {
+      fos.close();
+    }
     
-    File classFolder = new File(new URI("file://" + moduleFolder.getPath() + "/src/main/java/org/quickgeo/data"));
-    classFolder.mkdirs();
-    File classFile = new File(classFolder, key.toUpperCase() + ".java");
-    FileUtils.writeStringToFile(classFile, classData, "UTF-8");    
-  }  
+    Settings.getSettings().getLogger().log(Level.INFO, "Wrote delta for {0} : {1} added, {2} removed, {3} changed",
+            new Object[] {key, delta.getAdded().size(), delta.getRemoved().size(), delta.getChanged().size()});
+  }
   
-  private static void writeDataFile(String key, File moduleFolder, InputStream data) throws Exception {
-    File resourcesFolder = new File(new URI("file://" + moduleFolder.getPath() + "/src/main/resources"));
-    resourcesFolder.mkdirs();
-    File dataFile = new File(resourcesFolder, key.toUpperCase() + ".txt");
-    FileOutputStream fos = new FileOutputStream(dataFile);
-    IOUtils.copy(data, fos);
-    data.close();
-    fos.close();
+  /**
+   * Delete the delta written for a country by an earlier run, if any.
+   */
+  static void deleteDeltaFile(String key) {
+    File file = new File(Settings.getSettings().getDeltaFolder(), key.toUpperCase() + ".delta");
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException ex) {
+      Settings.getSettings().getLogger().log(Level.WARNING, "Couldn't delete stale delta " + file, ex);
+    }
+  }
+  
+  /**
+   * Find the rectangle enclosing every place of a postal data file, so the
+   * generated source can tell a lazily loaded PostalDb where its places are
+   * without being parsed.
+   * @return A Java expression for the bounds, which is {@code null} if the
+   * data has no usable coordinates.
+   */
+  private static String bounds(byte[] data) throws Exception {
+    double north = Double.NEGATIVE_INFINITY;
+    double west = Double.POSITIVE_INFINITY;
+    double south = Double.POSITIVE_INFINITY;
+    double east = Double.NEGATIVE_INFINITY;
+    
+    for (Object line : IOUtils.readLines(new ByteArrayInputStream(data), "UTF-8")) {
+      List<String> items = Lists.newArrayList(SPLITTER.split((String) line));
+      if (items.size() < 11) {
+        continue;
+      }
+      
+      double latitude;
+      double longitude;
+      try {
+        latitude = Double.parseDouble(items.get(9));
+        longitude = Double.parseDouble(items.get(10));
+      } catch (NumberFormatException ex) {
+        continue;
+      }
+      if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+        continue;
+      }
+      
+      north = Math.max(north, latitude);
+      west = Math.min(west, longitude);
+      south = Math.min(south, latitude);
+      east = Math.max(east, longitude);
+    }
+    
+    if (north < south) {
+      return "null";
+    }
+    return "new PostalDb.GeoRect(" + north + ", " + west + ", " + south + ", " + east + ")";
   }
   
   //////////////////////////////// Attributes \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
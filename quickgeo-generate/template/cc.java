@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class ;CC; implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/;CC;.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return ";CC;";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return ;BOUNDS;;
+  }
+  
+  @Override
+  public String getChecksum() {
+    return ";CHECKSUM;";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------
@@ -8,6 +8,7 @@
 package org.quickgeo.data;
 
 import java.io.InputStream;
+import org.quickgeo.PostalDb;
 import org.quickgeo.PostalSource;
 
 /**
@@ -34,6 +35,26 @@ public class GY implements PostalSource {
   
   //------------------------ Overrides:
   
+  @Override
+  public InputStream getBinaryStream() {
+    return getClass().getResourceAsStream("/GY.bin");
+  }
+  
+  @Override
+  public String getCountryCode() {
+    return "GY";
+  }
+  
+  @Override
+  public PostalDb.GeoRect getBounds() {
+    return null;
+  }
+  
+  @Override
+  public String getChecksum() {
+    return "13-6d8c03e2";
+  }
+  
   //---------------------------- Abstract Methods -----------------------------
   
   //---------------------------- Utility Methods ------------------------------